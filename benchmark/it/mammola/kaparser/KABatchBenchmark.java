@@ -0,0 +1,215 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A formula evaluated over many rows: row by row, with a data provider that
+ * reads the current row by name or by resolved slot, and with a single call
+ * over a KAColumnarBatch, on the calling thread and on the common fork/join
+ * pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KABatchBenchmark {
+
+    private static final String FORMULA = "if(QUANTITY > 100, PRICE * 0.9, PRICE) * QUANTITY - DISCOUNT";
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    private KACompiledFormula formula;
+    private RowProvider provider;
+    private KACompiledFormula resolvedFormula;
+    private RowProvider resolvedProvider;
+    private KAColumnarBatch batch;
+    private double[] output;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        double[] price = new double[rows];
+        double[] quantity = new double[rows];
+        double[] discount = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            price[i] = 10 + (i % 97);
+            quantity[i] = i % 250;
+            discount[i] = i % 7;
+        }
+
+        KAParser parser = new KAParser(ZoneId.of("UTC"));
+        provider = new RowProvider(price, quantity, discount);
+        parser.addDataProvider(provider);
+        formula = parser.compile(FORMULA);
+
+        KAParser resolvingParser = new KAParser(ZoneId.of("UTC"));
+        resolvedProvider = new ResolvingRowProvider(price, quantity, discount);
+        resolvingParser.addDataProvider(resolvedProvider);
+        resolvedFormula = resolvingParser.compile(FORMULA);
+
+        batch = new KAColumnarBatch(rows);
+        batch.setDoubleColumn("PRICE", price);
+        batch.setDoubleColumn("QUANTITY", quantity);
+        batch.setDoubleColumn("DISCOUNT", discount);
+        output = new double[rows];
+    }
+
+    @Benchmark
+    public double rowByRow() throws KAParserException {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        double total = 0;
+        for (int i = 0; i < rows; i++) {
+            provider.row = i;
+            result.setValue(0.0);
+            formula.evaluate(result);
+            total += result.getValue();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double rowByRowResolved() throws KAParserException {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        double total = 0;
+        for (int i = 0; i < rows; i++) {
+            resolvedProvider.row = i;
+            result.setValue(0.0);
+            resolvedFormula.evaluate(result);
+            total += result.getValue();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public double[] batch() throws KAParserException {
+        Arrays.fill(output, 0);
+        formula.evaluate(batch, output);
+        return output;
+    }
+
+    @Benchmark
+    public double[] parallelBatch() throws KAParserException {
+        Arrays.fill(output, 0);
+        formula.evaluateParallel(batch, output, null, null);
+        return output;
+    }
+
+    static class RowProvider implements KAParserDataProvider {
+
+        final double[] price;
+        final double[] quantity;
+        final double[] discount;
+        int row;
+
+        RowProvider(final double[] price, final double[] quantity, final double[] discount) {
+            this.price = price;
+            this.quantity = quantity;
+            this.discount = discount;
+        }
+
+        @Override
+        public Boolean getValue(Object sender, String valueName, KAParserCalculationDoubleResult value) {
+            switch (valueName) {
+                case "PRICE":
+                    value.setValue(price[row]);
+                    return true;
+                case "QUANTITY":
+                    value.setValue(quantity[row]);
+                    return true;
+                case "DISCOUNT":
+                    value.setValue(discount[row]);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public Boolean getStrValue(Object sender, String valueName, KAParserCalculationStringResult value) {
+            return false;
+        }
+
+        @Override
+        public Boolean getRangeValues(Object sender, String rangeFunction, String internalFunc,
+                KAParserValueType valueType, List<Object> valuesArray) {
+            return false;
+        }
+
+        @Override
+        public Boolean calcUserFunction(Object sender, String func, List<String> parameters,
+                KAParserCalculationDoubleResult value) {
+            return false;
+        }
+
+        @Override
+        public Boolean calcStrUserFunction(Object sender, String func, List<String> parameters,
+                KAParserCalculationStringResult value) {
+            return false;
+        }
+    }
+
+    /**
+     * The same values, resolved to slots when the formula is compiled.
+     */
+    static final class ResolvingRowProvider extends RowProvider {
+
+        private static final String[] NAMES = {"PRICE", "QUANTITY", "DISCOUNT"};
+
+        ResolvingRowProvider(final double[] price, final double[] quantity, final double[] discount) {
+            super(price, quantity, discount);
+        }
+
+        @Override
+        public int resolve(String valueName) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(valueName)) {
+                    return i;
+                }
+            }
+            return NOT_RESOLVED;
+        }
+
+        @Override
+        public boolean getValue(Object sender, int slot, KAParserCalculationDoubleResult value) {
+            switch (slot) {
+                case 0:
+                    value.setValue(price[row]);
+                    return true;
+                case 1:
+                    value.setValue(quantity[row]);
+                    return true;
+                default:
+                    value.setValue(discount[row]);
+                    return true;
+            }
+        }
+    }
+}
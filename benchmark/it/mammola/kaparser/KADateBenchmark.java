@@ -0,0 +1,101 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The date functions over a batch of dates spread across 2000-2040 in a zone
+ * with daylight saving time: the fields of a date, the start and the end of
+ * its month, building dates, parsing texts and the distance from a fixed
+ * clock.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KADateBenchmark {
+
+    private static final int ROWS = 10000;
+
+    @Param({"fields", "month", "todate", "stringtodatetime", "distance"})
+    public String functions;
+
+    private KACompiledFormula formula;
+    private KAColumnarBatch batch;
+    private double[] output;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        KAParser parser = new KAParser(KAParserConfiguration.builder(ZoneId.of("Europe/Rome"))
+                .setClock(Clock.fixed(Instant.parse("2020-06-14T10:30:00Z"), ZoneId.of("UTC"))).build());
+        double first = KADateTimeUtilities.instantToDouble(Instant.parse("2000-01-01T00:00:00Z"));
+        double last = KADateTimeUtilities.instantToDouble(Instant.parse("2040-01-01T00:00:00Z"));
+        double[] dates = new double[ROWS];
+        double[] days = new double[ROWS];
+        String[] texts = new String[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            dates[i] = Math.floor(first + (last - first) * i / ROWS);
+            days[i] = 1 + (i % 28);
+            texts[i] = String.format("%02d-%02d-%04d %02d:%02d", 1 + (i % 28), 1 + (i % 12), 2000 + (i % 40),
+                    i % 24, i % 60);
+        }
+        batch = new KAColumnarBatch(ROWS);
+        batch.setDoubleColumn("D", dates);
+        batch.setDoubleColumn("DAY", days);
+        batch.setStringColumn("TEXT", texts);
+        formula = parser.compile(formula(functions));
+        output = new double[ROWS];
+    }
+
+    @Benchmark
+    public double[] batch() throws KAParserException {
+        Arrays.fill(output, 0);
+        formula.evaluate(batch, output);
+        return output;
+    }
+
+    private static String formula(final String functions) {
+        switch (functions) {
+            case "fields":
+                return "getyear(D) * 10000 + getmonth(D) * 100 + getday(D) + gethour(D) + getminute(D)";
+            case "month":
+                return "endofthemonth(D) - startofthemonth(D) + previousmonday(D)";
+            case "todate":
+                return "todate(DAY, 6, 2020) - todate(DAY, 3, 2021)";
+            case "stringtodatetime":
+                return "stringtodatetime(TEXT, 'DD-MM-YYYY HH:ss')";
+            case "distance":
+                return "distancefromnow(D) + distancefromtoday(D)";
+            default:
+                throw new IllegalArgumentException("Unknown functions " + functions);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of the rows that fail, errorRate percent of them reading a value
+ * no provider has: row by row catching the errors raised with and without
+ * stack traces, row by row with tryEvaluate, and over a batch collecting
+ * the errors in a KABatchErrors. The messages are not read, as a caller
+ * counting the failures would not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KAErrorBenchmark {
+
+    private static final int ROWS = 100000;
+    private static final String FORMULA = "if(QUANTITY == 0, MISSING, round(PRICE / QUANTITY, 2))";
+
+    @Param({"0", "10", "100"})
+    public int errorRate;
+
+    private RowProvider provider;
+    private KACompiledFormula formula;
+    private KACompiledFormula stacklessFormula;
+    private KAColumnarBatch batch;
+    private double[] output;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        double[] price = new double[ROWS];
+        double[] quantity = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            price[i] = 10 + (i % 97);
+            quantity[i] = ((i % 100) < errorRate) ? 0 : 1 + (i % 250);
+        }
+        provider = new RowProvider(price, quantity);
+        formula = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addValueProvider(provider).build()).compile(FORMULA);
+        stacklessFormula = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addValueProvider(provider).setErrorStackTraces(false).build()).compile(FORMULA);
+        batch = new KAColumnarBatch(ROWS);
+        batch.setDoubleColumn("PRICE", price);
+        batch.setDoubleColumn("QUANTITY", quantity);
+        output = new double[ROWS];
+    }
+
+    @Benchmark
+    public int thrown() {
+        return rowByRow(formula);
+    }
+
+    @Benchmark
+    public int thrownStackless() {
+        return rowByRow(stacklessFormula);
+    }
+
+    @Benchmark
+    public int returned() {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        int failures = 0;
+        for (int i = 0; i < ROWS; i++) {
+            provider.row = i;
+            result.setValue(0.0);
+            if (formula.tryEvaluate(result) != null) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    @Benchmark
+    public int batch() throws KAParserException {
+        Arrays.fill(output, 0);
+        KABatchErrors errors = new KABatchErrors();
+        formula.evaluate(batch, output, errors);
+        return errors.size();
+    }
+
+    private int rowByRow(final KACompiledFormula rowFormula) {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        int failures = 0;
+        for (int i = 0; i < ROWS; i++) {
+            provider.row = i;
+            result.setValue(0.0);
+            try {
+                rowFormula.evaluate(result);
+            } catch (KAParserException e) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * The values of the current row.
+     */
+    static final class RowProvider implements KAPrimitiveDataProvider {
+
+        private final double[] price;
+        private final double[] quantity;
+        int row;
+
+        RowProvider(final double[] price, final double[] quantity) {
+            this.price = price;
+            this.quantity = quantity;
+        }
+
+        @Override
+        public int resolve(String valueName) {
+            switch (valueName) {
+                case "PRICE":
+                    return 0;
+                case "QUANTITY":
+                    return 1;
+                default:
+                    return NOT_RESOLVED;
+            }
+        }
+
+        @Override
+        public boolean tryGetDouble(Object sender, int slot, KAParserCalculationDoubleResult value) {
+            value.setValue((slot == 0) ? price[row] : quantity[row]);
+            return true;
+        }
+
+        @Override
+        public boolean tryGetString(Object sender, int slot, KAParserCalculationStringResult value) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * Formulas shaped like the ones the library is used for, shared by the
+ * benchmarks. The identifiers in capitals are values of a data provider.
+ */
+final class KAFormulaCorpus {
+
+    static final String[] FORMULAS = {
+        "1 + 2 * 3",
+        "(PRICE * QUANTITY) - DISCOUNT %% PRICE",
+        "round(PRICE * 1,22, 2)",
+        "if(QUANTITY > 100, PRICE * 0,9, if(QUANTITY > 10, PRICE * 0,95, PRICE))",
+        "safediv(REVENUE - COSTS, REVENUE) * 100",
+        "and(QUANTITY >= 1, not(empty(CUSTOMER_CODE)), PRICE <> 0)",
+        "between(getmonth(ORDER_DATE), 6, 8) * SUMMER_BONUS",
+        "max(PRICE_1, PRICE_2, PRICE_3, PRICE_4) - min(PRICE_1, PRICE_2, PRICE_3, PRICE_4)",
+        "sum(Q1, Q2, Q3, Q4) / 4 ** 2 + frac(pi * 1000)",
+        "len(concatenate(FIRST_NAME, ' ', LAST_NAME)) > 30",
+        "equalsignorecase(uppercase(COUNTRY), 'IT') | (VAT_CODE == 22)",
+        "distancefromtoday(DUE_DATE) > 30; todouble('1234,56') + 0.44",
+        "concatenate(\"Order \", tostr(ORDER_ID), ' of ', left(CUSTOMER_NAME, 20))",
+        "if(pos('@', EMAIL) >= 0, substr(EMAIL, 0, pos('@', EMAIL)), EMAIL)",
+        "replicate('-', 40) + trim(DESCRIPTION) + rtrim(NOTES)",
+    };
+
+    private KAFormulaCorpus() {
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rules sharing their subexpressions and their values, calculated on the
+ * same row: one compiled formula after the other and all together as a
+ * KAFormulaSet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KAFormulaSetBenchmark {
+
+    private static final String[] RULES = {
+        "if(safediv(AMOUNT, QUANTITY) > LIMIT, 1, 0)",
+        "safediv(AMOUNT, QUANTITY) * (1 - DISCOUNT / 100)",
+        "if(todate(DAY, MONTH, YEAR) > todate(1, 1, 2020), AMOUNT, 0)",
+        "round(safediv(AMOUNT, QUANTITY) * QUANTITY - AMOUNT, 2)",
+        "between(todate(DAY, MONTH, YEAR), todate(1, 1, 2020), todate(31, 12, 2020))",
+        "AMOUNT * (1 - DISCOUNT / 100) - LIMIT",
+    };
+
+    @Param({"6", "60"})
+    public int rules;
+
+    private KACompiledFormula[] formulas;
+    private KAFormulaSet set;
+    private double[] results;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        KAParser parser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addValueProvider(new RowProvider()).build());
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < rules; i++) {
+            texts.add(RULES[i % RULES.length]);
+        }
+        formulas = new KACompiledFormula[rules];
+        for (int i = 0; i < rules; i++) {
+            formulas[i] = parser.compile(texts.get(i));
+        }
+        set = parser.compileSet(texts);
+        results = new double[rules];
+    }
+
+    @Benchmark
+    public double[] oneByOne() throws KAParserException {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        for (int i = 0; i < formulas.length; i++) {
+            result.setValue(0.0);
+            formulas[i].evaluate(result);
+            results[i] = result.getDoubleValue();
+        }
+        return results;
+    }
+
+    @Benchmark
+    public double[] formulaSet() throws KAParserException {
+        for (int i = 0; i < results.length; i++) {
+            results[i] = 0.0;
+        }
+        set.evaluate(results);
+        return results;
+    }
+
+    /**
+     * The values of a single row.
+     */
+    static final class RowProvider implements KAPrimitiveDataProvider {
+
+        private static final String[] NAMES = {"AMOUNT", "QUANTITY", "LIMIT", "DISCOUNT", "DAY", "MONTH", "YEAR"};
+        private static final double[] VALUES = {1250.0, 8, 150, 5, 14, 6, 2020};
+
+        @Override
+        public int resolve(String valueName) {
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(valueName)) {
+                    return i;
+                }
+            }
+            return NOT_RESOLVED;
+        }
+
+        @Override
+        public boolean tryGetDouble(Object sender, int slot, KAParserCalculationDoubleResult value) {
+            value.setValue(VALUES[slot]);
+            return true;
+        }
+
+        @Override
+        public boolean tryGetString(Object sender, int slot, KAParserCalculationStringResult value) {
+            return false;
+        }
+    }
+}
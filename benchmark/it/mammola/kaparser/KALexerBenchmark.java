@@ -0,0 +1,338 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lexing of the formulas of KAFormulaCorpus with the lexer of KAParser and
+ * with the previous one (a StringBuilder and a Character.toString for every
+ * character of numbers and identifiers), kept here as LegacyLexer. Both read
+ * the text of every identifier, as the parser does. Run it with "-prof gc"
+ * to compare the allocations too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KALexerBenchmark {
+
+    private KAParser parser;
+    private KALexStatus[] states;
+    private KALexComputationResult lexResult;
+
+    @Setup
+    public void setUp() {
+        parser = new KAParser(ZoneId.of("UTC"));
+        lexResult = new KALexComputationResult();
+        states = new KALexStatus[KAFormulaCorpus.FORMULAS.length];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = new KALexStatus();
+            states[i].setFormula(KAFormulaCorpus.FORMULAS[i]);
+            // ',' is lexed as a separator, so that no character is an error
+            states[i].setArgumentSeparator(true);
+        }
+    }
+
+    @Benchmark
+    public int lexer() throws KAParserException {
+        int result = 0;
+        for (KALexStatus lexState : states) {
+            lexState.setCharIndex(0);
+            do {
+                parser.yylex(lexState, lexResult);
+                result += consume(lexResult);
+            } while (lexResult.getToken() != KAToken.TOKEN_EOF);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int legacyLexer() throws KAParserException {
+        int result = 0;
+        for (KALexStatus lexState : states) {
+            lexState.setCharIndex(0);
+            do {
+                LegacyLexer.yylex(lexState, lexResult);
+                result += consume(lexResult);
+            } while (lexResult.getToken() != KAToken.TOKEN_EOF);
+        }
+        return result;
+    }
+
+    private static int consume(final KALexComputationResult lexResult) {
+        switch (lexResult.getToken()) {
+            case TOKEN_IDENTIFIER:
+            case TOKEN_STRING:
+                return lexResult.getStringValue().length();
+            case TOKEN_NUMBER:
+                return lexResult.isInteger() ? (int) lexResult.getIntValue() : (int) lexResult.getDoubleValue();
+            default:
+                return lexResult.getToken().ordinal();
+        }
+    }
+
+    /**
+     * The lexer KAParser used before the char[] one, for comparison.
+     */
+    static final class LegacyLexer {
+
+        private LegacyLexer() {
+        }
+
+        private static Boolean isDecimalSeparator(final char aValue) {
+            return (aValue == '.') || (aValue == ',');
+        }
+
+        private static Boolean isStringSeparator(final char aValue) {
+            return (aValue == '\'') || (aValue == '\"');
+        }
+
+        static void yylex(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+            int currentInteger;
+            double currentFloat;
+            double currentdecimal;
+
+            lexResult.clear();
+
+            if (lexState.isEof()) {
+                lexResult.setToken(KAToken.TOKEN_EOF);
+                return;
+            }
+
+            while ((lexState.currentChar() == ' ') && (!lexState.isEof())) {
+                lexState.advance();
+            }
+
+            if (lexState.isEof()) {
+                lexResult.setToken(KAToken.TOKEN_EOF);
+                return;
+            }
+
+            if (isStringSeparator(lexState.currentChar())) {
+                StringBuilder sb = new StringBuilder("");
+                char currentCharSeparator = lexState.currentChar();
+
+                lexState.advance();
+
+                Boolean doLoop = true;
+
+                while (doLoop) {
+                    if (lexState.isEof()) {
+                        throw new KAParserException("Invalid string");
+                    }
+                    if (lexState.currentChar() == currentCharSeparator) {
+                        doLoop = false;
+                    } else {
+                        sb.append(lexState.currentChar());
+                        lexState.advance();
+                    }
+                }
+
+                lexState.advance();
+                lexResult.setString(sb.toString());
+                return;
+            }
+
+            if (Character.isDigit(lexState.currentChar())) {
+                StringBuilder sb = new StringBuilder(Character.toString(lexState.currentChar()));
+
+                lexState.advance();
+
+                while ((!lexState.isEof()) && (Character.isDigit(lexState.currentChar()))) {
+                    sb.append(Character.toString(lexState.currentChar()));
+                    lexState.advance();
+                }
+
+                try {
+                    currentInteger = Integer.parseInt(sb.toString());
+                } catch (NumberFormatException e) {
+                    lexResult.setToken(KAToken.TOKEN_ERROR);
+                    return;
+                }
+
+                if ((!lexState.isEof()) && (isDecimalSeparator(lexState.currentChar()))
+                        && !((lexState.currentChar() == ',') && lexState.isArgumentSeparator())) {
+                    lexState.advance();
+                    currentFloat = (double) currentInteger;
+
+                    currentdecimal = (double) 1;
+                    while ((!lexState.isEof()) && (Character.isDigit(lexState.currentChar()))) {
+                        currentdecimal = currentdecimal / 10;
+                        currentFloat = currentFloat
+                                + (currentdecimal * Integer.parseInt(Character.toString(lexState.currentChar())));
+                        lexState.advance();
+                    }
+
+                    lexResult.setDouble(currentFloat);
+                } else {
+                    lexResult.setInteger(currentInteger);
+                }
+
+                return;
+            }
+
+            if (Character.isLetter(lexState.currentChar()) || (lexState.currentChar() == '_')
+                    || (lexState.currentChar() == '@')) {
+                StringBuilder sb = new StringBuilder(Character.toString(lexState.currentChar()));
+                lexState.advance();
+
+                while ((!lexState.isEof()) && ((Character.isLetterOrDigit(lexState.currentChar()))
+                        || (lexState.currentChar() == '_') || (lexState.currentChar() == '@'))) {
+                    sb.append(Character.toString(lexState.currentChar()));
+                    lexState.advance();
+                }
+
+                lexResult.setString(sb.toString());
+                lexResult.setToken(KAToken.TOKEN_IDENTIFIER);
+                return;
+            }
+
+            char opChar = lexState.currentChar();
+            lexState.advance();
+            switch (opChar) {
+                case '=': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_EQUAL);
+                    } else {
+                        lexResult.setToken(KAToken.TOKEN_ERROR);
+                    }
+                    break;
+                }
+                case '+': {
+                    lexResult.setToken(KAToken.TOKEN_ADD);
+                    break;
+                }
+                case '-': {
+                    lexResult.setToken(KAToken.TOKEN_SUBTRACT);
+                    break;
+                }
+                case '*': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '*')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_POWER);
+                    } else {
+                        lexResult.setToken(KAToken.TOKEN_MULTIPLE);
+                    }
+                    break;
+                }
+                case '/': {
+                    lexResult.setToken(KAToken.TOKEN_DIVIDE);
+                    break;
+                }
+                case '%': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '%')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_PERCENT);
+                    } else {
+                        lexResult.setToken(KAToken.TOKEN_MOD);
+                    }
+                    break;
+                }
+                case '~': {
+                    lexResult.setToken(KAToken.TOKEN_INVERT);
+                    break;
+                }
+                case '^': {
+                    lexResult.setToken(KAToken.TOKEN_XOR);
+                    break;
+                }
+                case '&': {
+                    lexResult.setToken(KAToken.TOKEN_AND);
+                    break;
+                }
+                case '|': {
+                    lexResult.setToken(KAToken.TOKEN_OR);
+                    break;
+                }
+                case '<': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_LESS_EQUAL);
+                    } else {
+                        if ((!lexState.isEof()) && (lexState.currentChar() == '>')) {
+                            lexState.advance();
+                            lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
+                        } else {
+                            lexResult.setToken(KAToken.TOKEN_LESS);
+                        }
+                    }
+                    break;
+                }
+                case '>': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_GREATER_EQUAL);
+                    } else {
+                        if ((!lexState.isEof()) && (lexState.currentChar() == '<')) {
+                            lexState.advance();
+                            lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
+                        } else {
+                            lexResult.setToken(KAToken.TOKEN_GREATER);
+                        }
+                    }
+                    break;
+                }
+                case '!': {
+                    if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
+                        lexState.advance();
+                        lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
+                    } else {
+                        lexResult.setToken(KAToken.TOKEN_NOT);
+                    }
+                    break;
+                }
+                case '(': {
+                    lexResult.setToken(KAToken.TOKEN_LEFTBRACE);
+                    break;
+                }
+                case ')': {
+                    lexResult.setToken(KAToken.TOKEN_RIGHTBRACE);
+                    break;
+                }
+                case ';': {
+                    lexResult.setToken(KAToken.TOKEN_SEMICOLON);
+                    break;
+                }
+                case ',': {
+                    if (lexState.isArgumentSeparator()) {
+                        lexResult.setToken(KAToken.TOKEN_COMMA);
+                    } else {
+                        lexResult.setToken(KAToken.TOKEN_ERROR);
+                        lexState.goBack();
+                    }
+                    break;
+                }
+                default: {
+                    lexResult.setToken(KAToken.TOKEN_ERROR);
+                    lexState.goBack();
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of formulas with nested function calls, like
+ * if(x > 0, if(x > 1, ..., 0), 0): the time must grow linearly with the
+ * nesting depth, since the parameters of the functions are parsed only once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KANestingBenchmark {
+
+    @Param({"1", "10", "20", "40", "80"})
+    public int depth;
+
+    private KAParser parser;
+    private String formula;
+    private String stringFormula;
+
+    @Setup
+    public void setUp() {
+        parser = new KAParser(ZoneId.of("UTC"));
+
+        StringBuilder sb = new StringBuilder();
+        StringBuilder ssb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("if(").append(i).append(" >= 0, ");
+            ssb.append("concatenate('").append(i).append("', ");
+        }
+        sb.append("round(3.14159, 2)");
+        ssb.append("uppercase('x')");
+        for (int i = 0; i < depth; i++) {
+            sb.append(", 0)");
+            ssb.append(")");
+        }
+        formula = sb.toString();
+        stringFormula = ssb.toString();
+    }
+
+    @Benchmark
+    public KACompiledFormula compile() throws KAParserException {
+        return parser.compile(formula);
+    }
+
+    @Benchmark
+    public double calculate() throws KAParserException {
+        KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+        parser.calculate(formula, result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public String calculateString() throws KAParserException {
+        KAParserCalculationStringResult result = new KAParserCalculationStringResult();
+        parser.calculateString(stringFormula, result);
+        return result.getValue();
+    }
+}
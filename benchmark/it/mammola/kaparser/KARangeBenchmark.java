@@ -0,0 +1,190 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The range aggregates, like sum(childs(AMOUNT)), through a data provider
+ * stub: one passing the values of the range as a list of boxed numbers
+ * (getRangeValues), one streaming them (streamRangeValues) and one
+ * calculating the aggregates itself (aggregateRange).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KARangeBenchmark {
+
+    private static final String FORMULA = "sum(childs(AMOUNT)) / max(1, count(childs(AMOUNT)))"
+            + " + max(childs(AMOUNT)) - min(childsnotnull(AMOUNT)) + avg(parents(AMOUNT))";
+
+    @Param({"10", "1000"})
+    public int size;
+
+    private KACompiledFormula listFormula;
+    private KACompiledFormula streamFormula;
+    private KACompiledFormula aggregateFormula;
+    private KAParserCalculationDoubleResult result;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = 10 + (i * 37) % 1000;
+        }
+        listFormula = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(new RangeProvider(values)).build()).compile(FORMULA);
+        streamFormula = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(new StreamingRangeProvider(values)).build()).compile(FORMULA);
+        aggregateFormula = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(new AggregatingRangeProvider(values)).build()).compile(FORMULA);
+        result = new KAParserCalculationDoubleResult();
+    }
+
+    @Benchmark
+    public double listProvider() throws KAParserException {
+        result.setValue(0.0);
+        listFormula.evaluate(result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public double streamingProvider() throws KAParserException {
+        result.setValue(0.0);
+        streamFormula.evaluate(result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public double aggregatingProvider() throws KAParserException {
+        result.setValue(0.0);
+        aggregateFormula.evaluate(result);
+        return result.getValue();
+    }
+
+    /**
+     * A provider knowing only the values of the ranges of AMOUNT, all the
+     * same whatever the range function.
+     */
+    static class RangeProvider implements KAParserDataProvider {
+
+        final double[] values;
+
+        RangeProvider(final double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public Boolean getValue(Object sender, String valueName, KAParserCalculationDoubleResult value) {
+            return false;
+        }
+
+        @Override
+        public Boolean getStrValue(Object sender, String valueName, KAParserCalculationStringResult value) {
+            return false;
+        }
+
+        @Override
+        public Boolean getRangeValues(Object sender, String rangeFunction, String internalFunc,
+                KAParserValueType valueType, List<Object> valuesArray) {
+            if (!"AMOUNT".equals(internalFunc)) {
+                return false;
+            }
+            for (double value : values) {
+                valuesArray.add(value);
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean calcUserFunction(Object sender, String func, List<String> parameters,
+                KAParserCalculationDoubleResult value) {
+            return false;
+        }
+
+        @Override
+        public Boolean calcStrUserFunction(Object sender, String func, List<String> parameters,
+                KAParserCalculationStringResult value) {
+            return false;
+        }
+    }
+
+    /**
+     * The same values, streamed with no list and no boxing.
+     */
+    static class StreamingRangeProvider extends RangeProvider {
+
+        StreamingRangeProvider(final double[] values) {
+            super(values);
+        }
+
+        @Override
+        public boolean streamRangeValues(Object sender, String rangeFunction, String internalFunc,
+                DoubleConsumer consumer) {
+            if (!"AMOUNT".equals(internalFunc)) {
+                return false;
+            }
+            for (double value : values) {
+                consumer.accept(value);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The same values, aggregated by the provider itself: as a store
+     * answering with precalculated totals would.
+     */
+    static final class AggregatingRangeProvider extends StreamingRangeProvider {
+
+        private final double[] aggregates = new double[KARangeAggregate.values().length];
+
+        AggregatingRangeProvider(final double[] values) {
+            super(values);
+            KARangeAccumulator accumulator = new KARangeAccumulator();
+            for (double value : values) {
+                accumulator.accept(value);
+            }
+            for (KARangeAggregate aggregate : KARangeAggregate.values()) {
+                aggregates[aggregate.ordinal()] = accumulator.get(aggregate);
+            }
+        }
+
+        @Override
+        public boolean aggregateRange(Object sender, KARangeAggregate aggregate, String rangeFunction,
+                String internalFunc, KAParserCalculationDoubleResult value) {
+            if (!"AMOUNT".equals(internalFunc)) {
+                return false;
+            }
+            value.setValue(aggregates[aggregate.ordinal()]);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A KAFormulaSheet of levels of formulas, each one reading two formulas of
+ * the level below, recalculated entirely after its inputs change: on the
+ * calling thread (0 threads) and on fork/join pools of growing parallelism,
+ * to show how the recalculation scales with the cores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KASheetBenchmark {
+
+    private static final int LEVELS = 50;
+
+    @Param({"200", "4000"})
+    public int width;
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    private KAFormulaSheet sheet;
+    private ForkJoinPool pool;
+    private double input;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        sheet = new KAFormulaSheet(KAParserConfiguration.builder(ZoneId.of("UTC")).build());
+        for (int i = 0; i < width; i++) {
+            sheet.setValue(name(0, i), i);
+        }
+        for (int level = 1; level <= LEVELS; level++) {
+            for (int i = 0; i < width; i++) {
+                sheet.setFormula(name(level, i), "if(" + name(level - 1, i) + " > " + name(level - 1, (i + 1) % width)
+                        + ", " + name(level - 1, i) + " * 0.5, " + name(level - 1, (i + 1) % width) + " + 1)");
+            }
+        }
+        sheet.recalculate();
+        if (threads > 0) {
+            pool = new ForkJoinPool(threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void changeInputs() {
+        input++;
+        for (int i = 0; i < width; i++) {
+            sheet.setValue(name(0, i), input + i);
+        }
+    }
+
+    @Benchmark
+    public int recalculate() {
+        return (pool != null) ? sheet.recalculate(pool) : sheet.recalculate();
+    }
+
+    private static String name(final int level, final int index) {
+        return "L" + level + "_" + index;
+    }
+}
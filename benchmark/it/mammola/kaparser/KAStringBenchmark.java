@@ -0,0 +1,145 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * String formulas concatenating terms values, literals and string
+ * functions, with + and with concatenate(...): parsed and calculated by
+ * calculateString at every call and evaluated once compiled.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class KAStringBenchmark {
+
+    private static final String[] TERMS = {"FIRST_NAME", "' '", "uppercase(LAST_NAME)", "', '", "left(CITY, 3)",
+        "tostr(ORDER_ID)", "trim(NOTES)"};
+
+    @Param({"2", "10", "50"})
+    public int terms;
+
+    private KAParser parser;
+    private String plusFormula;
+    private String concatenateFormula;
+    private KACompiledFormula plusCompiled;
+    private KACompiledFormula concatenateCompiled;
+    private KAParserCalculationStringResult result;
+
+    @Setup
+    public void setUp() throws KAParserException {
+        parser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addValueProvider(new CustomerProvider()).build());
+        StringBuilder plus = new StringBuilder();
+        StringBuilder concatenate = new StringBuilder("concatenate(");
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) {
+                plus.append(" + ");
+                concatenate.append(", ");
+            }
+            plus.append(TERMS[i % TERMS.length]);
+            concatenate.append(TERMS[i % TERMS.length]);
+        }
+        concatenate.append(')');
+        plusFormula = plus.toString();
+        concatenateFormula = concatenate.toString();
+        plusCompiled = parser.compileString(plusFormula);
+        concatenateCompiled = parser.compileString(concatenateFormula);
+        result = new KAParserCalculationStringResult();
+    }
+
+    @Benchmark
+    public String calculatePlus() throws KAParserException {
+        result.setValue("");
+        parser.calculateString(plusFormula, result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public String calculateConcatenate() throws KAParserException {
+        result.setValue("");
+        parser.calculateString(concatenateFormula, result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public String compiledPlus() throws KAParserException {
+        result.setValue("");
+        plusCompiled.evaluateString(result);
+        return result.getValue();
+    }
+
+    @Benchmark
+    public String compiledConcatenate() throws KAParserException {
+        result.setValue("");
+        concatenateCompiled.evaluateString(result);
+        return result.getValue();
+    }
+
+    /**
+     * The values of a customer.
+     */
+    static final class CustomerProvider implements KAPrimitiveDataProvider {
+
+        private static final String[] NAMES = {"FIRST_NAME", "LAST_NAME", "CITY", "NOTES"};
+        private static final String[] VALUES = {"Mario", "Rossi", "Milano", "  call before delivery  "};
+        private static final int ORDER_ID = NAMES.length;
+
+        @Override
+        public int resolve(String valueName) {
+            if ("ORDER_ID".equals(valueName)) {
+                return ORDER_ID;
+            }
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equals(valueName)) {
+                    return i;
+                }
+            }
+            return NOT_RESOLVED;
+        }
+
+        @Override
+        public boolean tryGetDouble(Object sender, int slot, KAParserCalculationDoubleResult value) {
+            if (slot != ORDER_ID) {
+                return false;
+            }
+            value.setValue(48213);
+            return true;
+        }
+
+        @Override
+        public boolean tryGetString(Object sender, int slot, KAParserCalculationStringResult value) {
+            if (slot == ORDER_ID) {
+                return false;
+            }
+            value.setValue(VALUES[slot]);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The errors raised by the rows of a batch evaluation, in the order of the
+ * rows. The output of a row with an error keeps its incoming value.
+ */
+public final class KABatchErrors {
+
+    private int[] rows = new int[4];
+    private final ArrayList<KAParserException> errors = new ArrayList<>();
+
+    public int size() {
+        return errors.size();
+    }
+
+    public boolean isEmpty() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * The row of the index-th error.
+     */
+    public int getRow(final int index) {
+        if ((index < 0) || (index >= errors.size())) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + errors.size());
+        }
+        return rows[index];
+    }
+
+    public KAParserException getError(final int index) {
+        return errors.get(index);
+    }
+
+    public void clear() {
+        errors.clear();
+    }
+
+    // the rows must be added in ascending order
+    void add(final int row, final KAParserException error) {
+        int size = errors.size();
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        rows[size] = row;
+        errors.add(error);
+    }
+
+    void addAll(final KABatchErrors other) {
+        for (int i = 0; i < other.size(); i++) {
+            add(other.rows[i], other.errors.get(i));
+        }
+    }
+}
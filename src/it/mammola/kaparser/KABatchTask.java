@@ -0,0 +1,84 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A range of rows of a batch evaluated by a fork/join pool: it is split in
+ * halves down to chunks of chunkSize rows at most. Each chunk writes only
+ * its own elements of the output, with its own evaluation context, and
+ * the errors of the halves are joined in the order of the rows.
+ */
+final class KABatchTask extends RecursiveAction {
+
+    // smaller chunks cost more in scheduling than they gain in parallelism
+    private static final int MIN_CHUNK_SIZE = 256;
+    // chunks per worker, to balance rows of different cost
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    private static final long serialVersionUID = 1L;
+
+    private final KACompiledFormula formula;
+    private final KAColumnarBatch batch;
+    private final double[] output;
+    private final String[] stringOutput;
+    private final int from;
+    private final int to;
+    private final int chunkSize;
+    private final boolean stopOnError;
+    private final long now;
+    private final KABatchErrors errors = new KABatchErrors();
+
+    KABatchTask(final KACompiledFormula formula, final KAColumnarBatch batch, final double[] output,
+            final String[] stringOutput, final int from, final int to, final int chunkSize,
+            final boolean stopOnError, final long now) {
+        this.formula = formula;
+        this.batch = batch;
+        this.output = output;
+        this.stringOutput = stringOutput;
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+        this.stopOnError = stopOnError;
+        this.now = now;
+    }
+
+    static int chunkSize(final int rowCount, final int parallelism) {
+        return Math.max(MIN_CHUNK_SIZE, rowCount / (Math.max(parallelism, 1) * CHUNKS_PER_THREAD));
+    }
+
+    KABatchErrors getErrors() {
+        return errors;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= chunkSize) {
+            if (output != null) {
+                formula.evaluateRows(batch, output, from, to, errors, stopOnError, now);
+            } else {
+                formula.evaluateStringRows(batch, stringOutput, from, to, errors, stopOnError, now);
+            }
+        } else {
+            int middle = (from + to) >>> 1;
+            KABatchTask left = new KABatchTask(formula, batch, output, stringOutput, from, middle, chunkSize,
+                    stopOnError, now);
+            KABatchTask right = new KABatchTask(formula, batch, output, stringOutput, middle, to, chunkSize,
+                    stopOnError, now);
+            invokeAll(left, right);
+            errors.addAll(left.errors);
+            errors.addAll(right.errors);
+        }
+    }
+}
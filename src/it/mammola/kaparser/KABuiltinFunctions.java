@@ -0,0 +1,879 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * The functions every parser knows, registered in KAFunctionRegistry.
+ */
+final class KABuiltinFunctions {
+
+    private static final String MP_INT_FUNC_TRUNC = "trunc";
+    private static final String MP_INT_FUNC_SIN = "sin";
+    private static final String MP_INT_FUNC_COS = "cos";
+    private static final String MP_INT_FUNC_TAN = "tan";
+    private static final String MP_INT_FUNC_FRAC = "frac";
+    private static final String MP_INT_FUNC_INT = "int";
+
+    private static final String MP_SPECFUNC_IF = "if";
+    private static final String MP_SPECFUNC_EMPTY = "empty";
+    private static final String MP_SPECFUNC_LEN = "len";
+    private static final String MP_SPECFUNC_AND = "and";
+    private static final String MP_SPECFUNC_OR = "or";
+    private static final String MP_SPECFUNC_SAFEDIV = "safediv";
+    private static final String MP_SPECFUNC_CONCATENATE = "concatenate";
+    private static final String MP_SPECFUNC_REPLICATE = "replicate";
+    private static final String MP_SPECFUNC_LEFT = "left";
+    private static final String MP_SPECFUNC_RIGHT = "right";
+    private static final String MP_SPECFUNC_SUBSTR = "substr";
+    private static final String MP_SPECFUNC_TOSTR = "tostr";
+    private static final String MP_SPECFUNC_POS = "pos";
+    private static final String MP_SPECFUNC_UPPERCASE = "uppercase";
+    private static final String MP_SPECFUNC_LOWERCASE = "lowercase";
+    private static final String MP_SPECFUNC_EQUALS = "equals";
+    private static final String MP_SPECFUNC_EQUALSIGNORECASE = "equalsignorecase";
+    private static final String MP_SPECFUNC_COMPARETO = "compareto";
+    private static final String MP_SPECFUNC_COMPARETOIGNORECASE = "comparetoignorecase";
+    private static final String MP_SPECFUNC_ROUND = "round";
+    private static final String MP_SPECFUNC_CEIL = "ceil";
+    private static final String MP_SPECFUNC_FLOOR = "floor";
+    private static final String MP_SPECFUNC_NOT = "not";
+    private static final String MP_SPECFUNC_SUM = "sum";
+    private static final String MP_SPECFUNC_MAX = "max";
+    private static final String MP_SPECFUNC_MIN = "min";
+    private static final String MP_SPECFUNC_AVG = "avg";
+    private static final String MP_SPECFUNC_COUNT = "count";
+    private static final String MP_SPECFUNC_GETDAY = "getday";
+    private static final String MP_SPECFUNC_GETWEEK = "getweek";
+    private static final String MP_SPECFUNC_GETMONTH = "getmonth";
+    private static final String MP_SPECFUNC_GETYEAR = "getyear";
+    private static final String MP_SPECFUNC_GETHOUR = "gethour";
+    private static final String MP_SPECFUNC_GETMINUTE = "getminute";
+    private static final String MP_SPECFUNC_GETSECOND = "getsecond";
+    private static final String MP_SPECFUNC_PREVIOUSMONDAY = "previousmonday";
+    private static final String MP_SPECFUNC_STARTOFTHEMONTH = "startofthemonth";
+    private static final String MP_SPECFUNC_ENDOFTHEMONTH = "endofthemonth";
+    private static final String MP_SPECFUNC_TODATE = "todate";
+    private static final String MP_SPECFUNC_TODATETIME = "todatetime";
+    private static final String MP_SPECFUNC_DISTANCEFROMNOW = "distancefromnow";
+    private static final String MP_SPECFUNC_DISTANCEFROMTODAY = "distancefromtoday";
+    private static final String MP_SPECFUNC_STRINGTODATETIME = "stringtodatetime";
+    private static final String MP_SPECFUNC_TODOUBLE = "todouble";
+    private static final String MP_SPECFUNC_BETWEEN = "between";
+    private static final String MP_SPECFUNC_TRIM = "trim";
+    private static final String MP_SPECFUNC_LTRIM = "ltrim";
+    private static final String MP_SPECFUNC_RTRIM = "rtrim";
+    private static final String MP_SPECFUNC_RAISEERROR = "raiseerror";
+
+    private static final String MP_RANGEFUNC_CHILDSNOTNULL = "childsnotnull";
+    private static final String MP_RANGEFUNC_PARENTNOTNULL = "parentnotnull";
+    private static final String MP_RANGEFUNC_PARENTSNOTNULL = "parentsnotnull";
+    private static final String MP_RANGEFUNC_CHILDS = "childs";
+    private static final String MP_RANGEFUNC_PARENTS = "parents";
+    private static final String MP_RANGEFUNC_PARENT = "parent";
+    private static final String MP_RANGEFUNC_THIS = "this";
+
+    private static final KAParserValueType FLOAT = KAParserValueType.TYPE_FLOAT;
+    private static final KAParserValueType STRING = KAParserValueType.TYPE_STRING;
+    private static final int UNLIMITED = KAFunction.UNLIMITED_PARAMETERS;
+
+    private KABuiltinFunctions() {
+    }
+
+    static List<KAFunction> getFunctions() {
+        ArrayList<KAFunction> result = new ArrayList<>();
+        addNumericFunctions(result);
+        addDateTimeFunctions(result);
+        addStringFunctions(result);
+        addRangeFunctions(result);
+        return result;
+    }
+
+    // ------------ numeric functions
+
+    /**
+     * A function of a single number, calculated starting from the value the
+     * call receives, as the internal functions always did. As in the past
+     * the whole text between the braces is its parameter, so a ',' there is
+     * a decimal separator: sin(1,2) is the sine of 1.2.
+     */
+    abstract static class InternalFunction extends KAFunction {
+
+        InternalFunction(final String name) {
+            super(name, FLOAT, 1, 1, true);
+        }
+
+        @Override
+        public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+            return apply(arguments.getDouble(0, arguments.getIncoming()));
+        }
+
+        abstract double apply(final double value);
+    }
+
+    /**
+     * A pure function of a single number.
+     */
+    private abstract static class SimpleFunction extends KAFunction {
+
+        SimpleFunction(final String name) {
+            super(name, FLOAT, 1, 1, true);
+        }
+
+        @Override
+        public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+            return apply(sender, arguments.getDouble(0));
+        }
+
+        abstract double apply(final KAParser sender, final double value);
+    }
+
+    // a function of a single date, in the calendar of the evaluation
+    private abstract static class CalendarFunction extends KAFunction {
+
+        CalendarFunction(final String name) {
+            super(name, FLOAT, 1, 1, true);
+        }
+
+        @Override
+        public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+            return apply(arguments.getCalendar(), arguments.getDouble(0));
+        }
+
+        abstract double apply(final KACalendar calendar, final double value);
+    }
+
+    private static void addNumericFunctions(List<KAFunction> functions) {
+        functions.add(new InternalFunction(MP_INT_FUNC_TRUNC) {
+            @Override
+            double apply(final double value) {
+                return Math.floor(value);
+            }
+        });
+        functions.add(new InternalFunction(MP_INT_FUNC_SIN) {
+            @Override
+            double apply(final double value) {
+                return Math.sin(value);
+            }
+        });
+        functions.add(new InternalFunction(MP_INT_FUNC_COS) {
+            @Override
+            double apply(final double value) {
+                return Math.cos(value);
+            }
+        });
+        functions.add(new InternalFunction(MP_INT_FUNC_TAN) {
+            @Override
+            double apply(final double value) {
+                return Math.tan(value);
+            }
+        });
+        functions.add(new InternalFunction(MP_INT_FUNC_FRAC) {
+            @Override
+            double apply(final double value) {
+                return value - Math.floor(value);
+            }
+        });
+        functions.add(new InternalFunction(MP_INT_FUNC_INT) {
+            @Override
+            double apply(final double value) {
+                return Math.floor(value);
+            }
+        });
+
+        functions.add(new KAFunction(MP_SPECFUNC_IF, FLOAT, 3, 3, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                // the chosen parameter starts from the value of the condition
+                double condition = arguments.getDouble(0);
+                if (condition != 0) {
+                    return arguments.getDouble(1, condition);
+                } else {
+                    return arguments.getDouble(2, condition);
+                }
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_RAISEERROR, FLOAT, 1, 1, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return null;
+            }
+
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                arguments.raiseError(KAErrorType.USER_EXCEPTION, arguments.getText(0));
+                return 0;
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_AND, FLOAT, 2, UNLIMITED, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                for (int i = 0; i < arguments.size(); i++) {
+                    if (!floatToBoolean(arguments.getDouble(i))) {
+                        return booleanToFloat(false);
+                    }
+                }
+                return booleanToFloat(true);
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_OR, FLOAT, 2, UNLIMITED, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                for (int i = 0; i < arguments.size(); i++) {
+                    if (floatToBoolean(arguments.getDouble(i))) {
+                        return booleanToFloat(true);
+                    }
+                }
+                return booleanToFloat(false);
+            }
+        });
+        functions.add(new SimpleFunction(MP_SPECFUNC_NOT) {
+            @Override
+            double apply(final KAParser sender, final double value) {
+                if (floatToBoolean(value)) {
+                    return 0;
+                } else {
+                    return 1;
+                }
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_SAFEDIV, FLOAT, 2, 2, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return KAMathUtilities.safeDivide(arguments.getDouble(0), arguments.getDouble(1));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_BETWEEN, FLOAT, 3, 3, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double value = arguments.getDouble(0);
+                double minimum = arguments.getDouble(1);
+                double maximum = arguments.getDouble(2);
+
+                int decimalNumbers = arguments.getDecimalNumbers();
+
+                return booleanToFloat(KAMathUtilities.isEqualOrGreater(value, minimum, decimalNumbers)
+                        && KAMathUtilities.isEqualOrLessThan(value, maximum, decimalNumbers));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_ROUND, FLOAT, 2, 2, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double value = arguments.getDouble(0);
+                return KAMathUtilities.roundTo(value, (int) Math.round(arguments.getDouble(1)));
+            }
+        });
+        functions.add(new SimpleFunction(MP_SPECFUNC_CEIL) {
+            @Override
+            double apply(final KAParser sender, final double value) {
+                return Math.ceil(value);
+            }
+        });
+        functions.add(new SimpleFunction(MP_SPECFUNC_FLOOR) {
+            @Override
+            double apply(final KAParser sender, final double value) {
+                return Math.floor(value);
+            }
+        });
+    }
+
+    // ------------ date and time functions
+
+    private static void addDateTimeFunctions(List<KAFunction> functions) {
+        functions.add(new ClockFunction(MP_SPECFUNC_DISTANCEFROMTODAY) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double value = arguments.getDouble(0);
+                // the start of the UTC day, as Instant.truncatedTo(DAYS)
+                long today = Math.floorDiv(arguments.getNowEpochSecond(), 86400) * 86400;
+                return Math.floor(KACalendar.toEpochHour(today) - value);
+            }
+        });
+        functions.add(new ClockFunction(MP_SPECFUNC_DISTANCEFROMNOW) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double value = arguments.getDouble(0);
+                return KACalendar.toEpochHour(arguments.getNowEpochSecond()) - value;
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETDAY) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getDayOfMonth(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETYEAR) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getYear(value);
+            }
+        });
+        functions.add(new SimpleFunction(MP_SPECFUNC_GETWEEK) {
+            @Override
+            double apply(final KAParser sender, final double value) {
+                return KADateTimeUtilities.doubleToInstant(value).get(ChronoField.ALIGNED_WEEK_OF_YEAR);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETMONTH) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getMonth(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETHOUR) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getHour(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETMINUTE) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getMinute(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_GETSECOND) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.getSecond(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_PREVIOUSMONDAY) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.previousMonday(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_STARTOFTHEMONTH) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.startOfTheMonth(value);
+            }
+        });
+        functions.add(new CalendarFunction(MP_SPECFUNC_ENDOFTHEMONTH) {
+            @Override
+            double apply(final KACalendar calendar, final double value) {
+                return calendar.endOfTheMonth(value);
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_TODATE, FLOAT, 3, 3, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double day = arguments.getDouble(0);
+                double month = arguments.getDouble(1);
+                double year = arguments.getDouble(2);
+                LocalDate dt = LocalDate.of((int) Math.floor(year), (int) Math.floor(month), (int) Math.floor(day));
+
+                return KADateTimeUtilities.instantToDouble(Instant.from(dt.atStartOfDay(arguments.getZone())));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_TODATETIME, FLOAT, 6, 6, true) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                double day = arguments.getDouble(0);
+                double month = arguments.getDouble(1);
+                double year = arguments.getDouble(2);
+                double hour = arguments.getDouble(3);
+                double minute = arguments.getDouble(4);
+                double second = arguments.getDouble(5);
+
+                LocalDateTime dt = LocalDateTime.of((int) Math.floor(year), (int) Math.floor(month),
+                        (int) Math.floor(day), (int) Math.floor(hour), (int) Math.floor(minute),
+                        (int) Math.floor(second));
+                return KADateTimeUtilities.instantToDouble(Instant.from(dt));
+            }
+        });
+        functions.add(new StringToDateTime(null));
+    }
+
+    /**
+     * A function of the current time, read from the clock of the evaluation:
+     * the formulas calling it are time dependent.
+     */
+    abstract static class ClockFunction extends KAFunction {
+
+        ClockFunction(final String name) {
+            super(name, FLOAT, 1, 1, false);
+        }
+    }
+
+    /**
+     * stringtodatetime(text, pattern), with the pattern compiled by
+     * KADateTimeFormat. When the pattern is a literal the parser compiles it
+     * with the formula (withPattern), otherwise it is looked up in the
+     * formats already compiled at every call.
+     */
+    static final class StringToDateTime extends KAFunction {
+
+        private final KADateTimeFormat format;
+
+        private StringToDateTime(final KADateTimeFormat format) {
+            super(MP_SPECFUNC_STRINGTODATETIME, FLOAT, 2, 2, true);
+            this.format = format;
+        }
+
+        // IllegalArgumentException if the pattern is not valid
+        StringToDateTime withPattern(final String pattern, final ZoneId zone) {
+            return new StringToDateTime(KADateTimeFormat.of(pattern, zone));
+        }
+
+        @Override
+        public KAParserValueType getParameterType(final int index) {
+            return STRING;
+        }
+
+        @Override
+        public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+            String value = arguments.getString(0);
+            KADateTimeFormat valueFormat = (format != null) ? format
+                    : KADateTimeFormat.of(arguments.getString(1), arguments.getZone());
+            long epochSecond = 0;
+            try {
+                epochSecond = valueFormat.parse(value);
+            } catch (ParseException e) {
+                arguments.raiseError(KAErrorType.PARSE_ERROR, value);
+            }
+            return KACalendar.toEpochHour(epochSecond);
+        }
+    }
+
+    // ------------ string functions
+
+    /**
+     * A numeric function of strings.
+     */
+    private abstract static class StringTestFunction extends KAFunction {
+
+        StringTestFunction(final String name, final int parameters) {
+            super(name, FLOAT, parameters, parameters, true);
+        }
+
+        @Override
+        public KAParserValueType getParameterType(final int index) {
+            return STRING;
+        }
+    }
+
+    /**
+     * A string function of a single string, calculated starting from the
+     * value the call receives. Called with no parameters or with more than
+     * one it is a user function of the data providers, as in the past.
+     */
+    abstract static class TrimFunction extends KAFunction {
+
+        TrimFunction(final String name) {
+            super(name, STRING, 1, 1, true);
+        }
+
+        @Override
+        public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                throws KAParserException {
+            return apply(arguments.getString(0, arguments.getIncomingString()));
+        }
+
+        abstract String apply(final String value);
+    }
+
+    private static void addStringFunctions(List<KAFunction> functions) {
+        functions.add(new StringTestFunction(MP_SPECFUNC_LEN, 1) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return (double) arguments.getString(0).length();
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_POS, 2) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                return (double) arguments.getString(1).indexOf(value);
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_TODOUBLE, 1) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return strToFloatExt(arguments.getString(0));
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_EMPTY, 1) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return booleanToFloat(arguments.getString(0).trim().length() == 0);
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_EQUALS, 2) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                return booleanToFloat(value.compareTo(arguments.getString(1)) == 0);
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_EQUALSIGNORECASE, 2) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                return booleanToFloat(value.equalsIgnoreCase(arguments.getString(1)));
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_COMPARETO, 2) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                return value.compareTo(arguments.getString(1));
+            }
+        });
+        functions.add(new StringTestFunction(MP_SPECFUNC_COMPARETOIGNORECASE, 2) {
+            @Override
+            public double calculate(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                return value.compareToIgnoreCase(arguments.getString(1));
+            }
+        });
+
+        functions.add(new KAFunction(MP_SPECFUNC_IF, STRING, 3, 3, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return (index == 0) ? FLOAT : STRING;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                if (KAMathUtilities.isEqualOrGreater(arguments.getDouble(0), 1.0, arguments.getDecimalNumbers())) {
+                    return arguments.getString(1);
+                } else {
+                    return arguments.getString(2);
+                }
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_REPLICATE, STRING, 2, 2, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return (index == 1) ? FLOAT : STRING;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                int count = (int) Math.round(arguments.getDouble(1));
+                StringBuilder sb = new StringBuilder(value);
+                for (int i = 1; i <= count; i++) {
+                    sb.append(value);
+                }
+                return sb.toString();
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_CONCATENATE, STRING, 2, UNLIMITED, true) {
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                // every parameter starts from the value of the previous one
+                StringBuilder sb = new StringBuilder();
+                String value = "";
+                for (int i = 0; i < arguments.size(); i++) {
+                    value = arguments.getString(i, value);
+                    sb.append(value);
+                }
+                return sb.toString();
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_TOSTR, STRING, 1, 1, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return FLOAT;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return Double.toString(arguments.getDouble(0));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_UPPERCASE, STRING, 1, 1, true) {
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return arguments.getString(0).toUpperCase();
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_LOWERCASE, STRING, 1, 1, true) {
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                return arguments.getString(0).toLowerCase();
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_LEFT, STRING, 2, 2, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return (index == 1) ? FLOAT : STRING;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                int length = (int) Math.round(arguments.getDouble(1));
+                return value.substring(0, Math.min(value.length(), length));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_RIGHT, STRING, 2, 2, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return (index == 1) ? FLOAT : STRING;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                int length = (int) Math.round(arguments.getDouble(1));
+                return value.substring(Math.max(0, value.length() - length));
+            }
+        });
+        functions.add(new KAFunction(MP_SPECFUNC_SUBSTR, STRING, 3, 3, true) {
+            @Override
+            public KAParserValueType getParameterType(final int index) {
+                return (index >= 1) ? FLOAT : STRING;
+            }
+
+            @Override
+            public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                    throws KAParserException {
+                String value = arguments.getString(0);
+                int start = (int) Math.round(arguments.getDouble(1));
+                int length = (int) Math.round(arguments.getDouble(2));
+                return value.substring(start, start + length); // -1, alla pascal!
+            }
+        });
+        functions.add(new TrimFunction(MP_SPECFUNC_TRIM) {
+            @Override
+            String apply(final String value) {
+                return value.trim();
+            }
+        });
+        functions.add(new TrimFunction(MP_SPECFUNC_LTRIM) {
+            @Override
+            String apply(final String value) {
+                return trimStart(value, " ");
+            }
+        });
+        functions.add(new TrimFunction(MP_SPECFUNC_RTRIM) {
+            @Override
+            String apply(final String value) {
+                return trimEnd(value, " ");
+            }
+        });
+    }
+
+    // ------------ range functions
+
+    /**
+     * A built-in aggregate of its parameters that also accepts a range as its
+     * only parameter, like sum(childs(NAME)). Such a call is recognized when
+     * the formula is compiled and becomes a KANode.RangeAggregate, so
+     * calculate and calculateString get the values of the parameters only.
+     */
+    static final class RangeFunction extends KAFunction {
+
+        private final KARangeAggregate aggregate;
+
+        RangeFunction(final String name, final KAParserValueType valueType, final int minParameters,
+                final KARangeAggregate aggregate) {
+            super(name, valueType, minParameters, UNLIMITED, false);
+            this.aggregate = aggregate;
+        }
+
+        KARangeAggregate getAggregate() {
+            return aggregate;
+        }
+
+        @Override
+        public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+            KARangeAccumulator values = new KARangeAccumulator();
+            for (int i = 0; i < arguments.size(); i++) {
+                values.accept(arguments.getDouble(i));
+            }
+            return values.get(aggregate);
+        }
+
+        @Override
+        public String calculateString(final KAParser sender, final KAFunctionArguments arguments)
+                throws KAParserException {
+            StringRange values = new StringRange(aggregate);
+            for (int i = 0; i < arguments.size(); i++) {
+                values.accept(arguments.getString(i));
+            }
+            return values.getResult();
+        }
+    }
+
+    /**
+     * The string values of a range function: the aggregate is chosen up front
+     * so that only sum concatenates them. max and min start from the empty
+     * string, as they always did.
+     */
+    static final class StringRange implements Consumer<String> {
+
+        private final KARangeAggregate aggregate;
+        private final StringBuilder sum = new StringBuilder();
+        private String min = "";
+        private String max = "";
+        private long count;
+
+        StringRange(final KARangeAggregate aggregate) {
+            this.aggregate = aggregate;
+        }
+
+        @Override
+        public void accept(final String value) {
+            switch (aggregate) {
+                case SUM:
+                    sum.append(value);
+                    break;
+                case MAX:
+                    if (max.compareTo(value) < 0) {
+                        max = value;
+                    }
+                    break;
+                case MIN:
+                    if (min.compareTo(value) > 0) {
+                        min = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            count++;
+        }
+
+        String getResult() {
+            switch (aggregate) {
+                case SUM:
+                    return sum.toString();
+                case MAX:
+                    return max;
+                case MIN:
+                    return min;
+                default:
+                    return Long.toString(count);
+            }
+        }
+    }
+
+    private static void addRangeFunctions(List<KAFunction> functions) {
+        functions.add(new RangeFunction(MP_SPECFUNC_SUM, FLOAT, 1, KARangeAggregate.SUM));
+        functions.add(new RangeFunction(MP_SPECFUNC_MIN, FLOAT, 1, KARangeAggregate.MIN));
+        functions.add(new RangeFunction(MP_SPECFUNC_MAX, FLOAT, 1, KARangeAggregate.MAX));
+        functions.add(new RangeFunction(MP_SPECFUNC_AVG, FLOAT, 1, KARangeAggregate.AVG));
+        functions.add(new RangeFunction(MP_SPECFUNC_COUNT, FLOAT, 1, KARangeAggregate.COUNT));
+
+        functions.add(new RangeFunction(MP_SPECFUNC_SUM, STRING, 0, KARangeAggregate.SUM));
+        functions.add(new RangeFunction(MP_SPECFUNC_MAX, STRING, 0, KARangeAggregate.MAX));
+        functions.add(new RangeFunction(MP_SPECFUNC_MIN, STRING, 0, KARangeAggregate.MIN));
+        functions.add(new RangeFunction(MP_SPECFUNC_COUNT, STRING, 0, KARangeAggregate.COUNT));
+    }
+
+    // the name of a called function in lowercase, if it is a range function,
+    // otherwise null
+    static String rangeFunction(final String function) {
+        String name = function.toLowerCase(Locale.ROOT);
+        switch (name) {
+            case MP_RANGEFUNC_CHILDSNOTNULL:
+            case MP_RANGEFUNC_PARENTNOTNULL:
+            case MP_RANGEFUNC_PARENTSNOTNULL:
+            case MP_RANGEFUNC_CHILDS:
+            case MP_RANGEFUNC_PARENTS:
+            case MP_RANGEFUNC_PARENT:
+            case MP_RANGEFUNC_THIS:
+                return name;
+            default:
+                return null;
+        }
+    }
+
+    // the internal function of a range, between the braces of the call that
+    // is the whole text of the parameter, or null if they are empty
+    static String rangeArgument(final String text) {
+        String tempValue = text.substring(text.indexOf('(')).trim();
+
+        int len = tempValue.length();
+
+        if ((len <= 2) || (tempValue.charAt(len - 1) != ')')) {
+            return null; // '()' o non finisce con ')'
+        }
+
+        return tempValue.substring(1, len - 1).trim();
+    }
+
+    private static double booleanToFloat(final boolean aValue) {
+        if (aValue) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    private static Boolean floatToBoolean(final double aValue) {
+        return Math.round(Math.abs(aValue)) >= 1;
+    }
+
+    private static double strToFloatExt(final String value) {
+        String tempValue = value;
+
+        // float.Parse(aValue, CultureInfo.InvariantCulture.NumberFormat);
+
+        if (tempValue.indexOf(',') >= 0) {
+            tempValue = tempValue.replace(',', '.');
+        }
+
+        return Double.parseDouble(tempValue);
+    }
+
+    private static String trimEnd(final String input, final String charsToTrim) {
+        return input.replaceAll("[" + charsToTrim + "]+$", "");
+    }
+
+    private static String trimStart(final String input, final String charsToTrim) {
+        return input.replaceAll("^[" + charsToTrim + "]+", "");
+    }
+}
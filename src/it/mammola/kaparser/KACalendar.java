@@ -0,0 +1,287 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The calendar of a time zone, calculating the fields of the dates (epoch
+ * hours, as the formulas store them) with integer arithmetic only, without
+ * creating any java.time object.
+ *
+ * The offsets of the zone are read from a table of its transitions between
+ * the years 1800 and 2200, built once for each zone. The dates outside the
+ * table are left to KADateTimeUtilities, so the results are always the ones
+ * of java.time, errors included.
+ */
+final class KACalendar {
+
+    private static final int SECONDS_PER_DAY = 86400;
+    private static final int SECONDS_PER_HOUR = 3600;
+    // 1800-01-01 and 2200-01-01
+    private static final long TABLE_START = -5364662400L;
+    private static final long TABLE_END = 7258118400L;
+    // the dates calculated from a date are at most a month away from it
+    private static final long MARGIN = 40L * SECONDS_PER_DAY;
+    // days from 0000-03-01 to 1970-01-01, and days in 400 years
+    private static final long DAYS_0000_TO_1970 = 719468;
+    private static final long DAYS_PER_CYCLE = 146097;
+
+    private static final ConcurrentHashMap<ZoneId, KACalendar> CALENDARS = new ConcurrentHashMap<>();
+
+    private final ZoneId zone;
+    private final int initialOffset;
+    // for every transition: its instant, the offsets before and after it, and
+    // the local times it spans (a gap or an overlap)
+    private final long[] transitions;
+    private final int[] offsetsBefore;
+    private final int[] offsetsAfter;
+    private final long[] localStarts;
+    private final long[] localEnds;
+
+    private KACalendar(final ZoneId zone) {
+        this.zone = zone;
+        ZoneRules rules = zone.getRules();
+        this.initialOffset = rules.getOffset(Instant.ofEpochSecond(TABLE_START)).getTotalSeconds();
+        List<ZoneOffsetTransition> found = new ArrayList<>();
+        ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochSecond(TABLE_START));
+        while ((transition != null) && (transition.toEpochSecond() < TABLE_END)) {
+            found.add(transition);
+            transition = rules.nextTransition(transition.getInstant());
+        }
+        int count = found.size();
+        transitions = new long[count];
+        offsetsBefore = new int[count];
+        offsetsAfter = new int[count];
+        localStarts = new long[count];
+        localEnds = new long[count];
+        for (int i = 0; i < count; i++) {
+            transition = found.get(i);
+            transitions[i] = transition.toEpochSecond();
+            offsetsBefore[i] = transition.getOffsetBefore().getTotalSeconds();
+            offsetsAfter[i] = transition.getOffsetAfter().getTotalSeconds();
+            localStarts[i] = transitions[i] + Math.min(offsetsBefore[i], offsetsAfter[i]);
+            localEnds[i] = transitions[i] + Math.max(offsetsBefore[i], offsetsAfter[i]);
+        }
+    }
+
+    static KACalendar of(final ZoneId zone) {
+        KACalendar result = CALENDARS.get(zone);
+        if (result == null) {
+            result = new KACalendar(zone);
+            KACalendar previous = CALENDARS.putIfAbsent(zone, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    // ------------ the conversions of KADateTimeUtilities, on primitives
+
+    // as KADateTimeUtilities.doubleToInstant
+    static long toEpochSecond(final double value) {
+        return (long) Math.floor(value * SECONDS_PER_HOUR);
+    }
+
+    // as KADateTimeUtilities.instantToDouble
+    static double toEpochHour(final long epochSecond) {
+        return (double) ((int) Math.floorDiv(epochSecond, SECONDS_PER_HOUR));
+    }
+
+    // ------------ the fields of a date in the zone
+
+    int getYear(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getYear(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return year(Math.floorDiv(toLocal(second), SECONDS_PER_DAY));
+    }
+
+    int getMonth(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getMonth(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return month(Math.floorDiv(toLocal(second), SECONDS_PER_DAY));
+    }
+
+    int getDayOfMonth(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getDayOfMonth(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return dayOfMonth(Math.floorDiv(toLocal(second), SECONDS_PER_DAY));
+    }
+
+    int getHour(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getHour(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return (int) (Math.floorMod(toLocal(second), SECONDS_PER_DAY) / SECONDS_PER_HOUR);
+    }
+
+    int getMinute(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getMinute(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return (int) (Math.floorMod(toLocal(second), SECONDS_PER_HOUR) / 60);
+    }
+
+    int getSecond(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.getSecond(KADateTimeUtilities.doubleToInstant(value), zone);
+        }
+        return (int) Math.floorMod(toLocal(second), 60);
+    }
+
+    // ------------ the dates calculated from a date, at the start of their day
+
+    double previousMonday(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.instantToDouble(
+                    KADateTimeUtilities.previousMonday(KADateTimeUtilities.doubleToInstant(value), zone));
+        }
+        long day = Math.floorDiv(toLocal(second), SECONDS_PER_DAY);
+        // 1970-01-01 was a Thursday: 0 is Monday
+        int dayOfWeek = (int) Math.floorMod(day + 3, 7);
+        return toEpochHour(startOfDay(day - ((dayOfWeek == 0) ? 7 : dayOfWeek)));
+    }
+
+    double startOfTheMonth(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.instantToDouble(
+                    KADateTimeUtilities.startOfTheMonth(KADateTimeUtilities.doubleToInstant(value), zone));
+        }
+        long day = Math.floorDiv(toLocal(second), SECONDS_PER_DAY);
+        return toEpochHour(startOfDay(day - dayOfMonth(day) + 1));
+    }
+
+    double endOfTheMonth(final double value) {
+        long second = toEpochSecond(value);
+        if (!covers(second)) {
+            return KADateTimeUtilities.instantToDouble(
+                    KADateTimeUtilities.endOfTheMonth(KADateTimeUtilities.doubleToInstant(value), zone));
+        }
+        long day = Math.floorDiv(toLocal(second), SECONDS_PER_DAY);
+        return toEpochHour(startOfDay(day - dayOfMonth(day) + lengthOfMonth(year(day), month(day))));
+    }
+
+    // ------------ offsets
+
+    private static boolean covers(final long epochSecond) {
+        return (epochSecond >= TABLE_START + MARGIN) && (epochSecond < TABLE_END - MARGIN);
+    }
+
+    // the local time, in seconds from 1970-01-01T00:00, of an instant
+    private long toLocal(final long epochSecond) {
+        int index = lastAtOrBefore(transitions, epochSecond);
+        return epochSecond + ((index < 0) ? initialOffset : offsetsAfter[index]);
+    }
+
+    // the instant the day starts, as LocalDate.atStartOfDay(zone): a
+    // midnight in a gap moves to the end of the gap, a midnight in an
+    // overlap takes the earlier offset
+    private long startOfDay(final long epochDay) {
+        long local = epochDay * SECONDS_PER_DAY;
+        int index = lastAtOrBefore(localStarts, local);
+        if (index < 0) {
+            return local - initialOffset;
+        } else if (local < localEnds[index]) {
+            return (offsetsAfter[index] > offsetsBefore[index]) ? transitions[index] : local - offsetsBefore[index];
+        } else {
+            return local - offsetsAfter[index];
+        }
+    }
+
+    // the index of the last element not greater than key, or -1
+    private static int lastAtOrBefore(final long[] sorted, final long key) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    // ------------ the proleptic Gregorian calendar on epoch days, counting
+    // the years from March so the leap day is the last one
+
+    private static long dayOfEra(final long epochDay) {
+        long shifted = epochDay + DAYS_0000_TO_1970;
+        return shifted - Math.floorDiv(shifted, DAYS_PER_CYCLE) * DAYS_PER_CYCLE;
+    }
+
+    private static long yearOfEra(final long dayOfEra) {
+        return (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    }
+
+    // the month from March (0) to February (11)
+    private static long marchMonth(final long dayOfEra) {
+        long yearOfEra = yearOfEra(dayOfEra);
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        return (5 * dayOfYear + 2) / 153;
+    }
+
+    static int year(final long epochDay) {
+        long shifted = epochDay + DAYS_0000_TO_1970;
+        long era = Math.floorDiv(shifted, DAYS_PER_CYCLE);
+        long dayOfEra = shifted - era * DAYS_PER_CYCLE;
+        long year = yearOfEra(dayOfEra) + era * 400;
+        return (int) ((marchMonth(dayOfEra) >= 10) ? year + 1 : year);
+    }
+
+    static int month(final long epochDay) {
+        long marchMonth = marchMonth(dayOfEra(epochDay));
+        return (int) ((marchMonth < 10) ? marchMonth + 3 : marchMonth - 9);
+    }
+
+    static int dayOfMonth(final long epochDay) {
+        long dayOfEra = dayOfEra(epochDay);
+        long yearOfEra = yearOfEra(dayOfEra);
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long marchMonth = (5 * dayOfYear + 2) / 153;
+        return (int) (dayOfYear - (153 * marchMonth + 2) / 5 + 1);
+    }
+
+    static int lengthOfMonth(final int year, final int month) {
+        switch (month) {
+            case 2:
+                return ((year % 4 == 0) && ((year % 100 != 0) || (year % 400 == 0))) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * The values of a set of rows, stored by column, to evaluate a compiled
+ * formula over all the rows with a single call of KACompiledFormula.evaluate.
+ *
+ * A column is bound to an identifier of the formula by its name, exactly as
+ * written in the formula. An identifier without a column, or whose value is
+ * null in a row (its bit is set in the nulls of the column, or the element
+ * of a string column is null), is asked to the data providers of the parser
+ * as KAParser.calculate does. The arrays are not copied: they must not be
+ * changed while the batch is evaluated.
+ */
+public class KAColumnarBatch {
+
+    private final int rowCount;
+    private final HashMap<String, Column> columns = new HashMap<>();
+
+    public KAColumnarBatch(final int rowCount) {
+        if (rowCount < 0) {
+            throw new IllegalArgumentException("Invalid rows count " + rowCount);
+        }
+        this.rowCount = rowCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void setDoubleColumn(final String name, final double[] values) {
+        setDoubleColumn(name, values, null);
+    }
+
+    public void setDoubleColumn(final String name, final double[] values, final BitSet nulls) {
+        checkLength(name, values.length);
+        columns.put(name, new Column(values, null, nulls));
+    }
+
+    public void setStringColumn(final String name, final String[] values) {
+        setStringColumn(name, values, null);
+    }
+
+    public void setStringColumn(final String name, final String[] values, final BitSet nulls) {
+        checkLength(name, values.length);
+        columns.put(name, new Column(null, values, nulls));
+    }
+
+    public void removeColumn(final String name) {
+        columns.remove(name);
+    }
+
+    // the column of an identifier, or null
+    Column getColumn(final String name) {
+        return columns.get(name);
+    }
+
+    private void checkLength(final String name, final int length) {
+        if (length < rowCount) {
+            throw new IllegalArgumentException("Column " + name + " has " + length + " values, " + rowCount
+                    + " expected");
+        }
+    }
+
+    static final class Column {
+
+        // the column of an identifier the batch has no column for
+        static final Column MISSING = new Column(null, null, null);
+
+        private final double[] doubles;
+        private final String[] strings;
+        private final BitSet nulls;
+
+        Column(final double[] doubles, final String[] strings, final BitSet nulls) {
+            this.doubles = doubles;
+            this.strings = strings;
+            this.nulls = nulls;
+        }
+
+        boolean hasDouble(final int row) {
+            return (doubles != null) && ((nulls == null) || !nulls.get(row));
+        }
+
+        boolean hasString(final int row) {
+            return (strings != null) && (strings[row] != null) && ((nulls == null) || !nulls.get(row));
+        }
+
+        double getDouble(final int row) {
+            return doubles[row];
+        }
+
+        String getString(final int row) {
+            return strings[row];
+        }
+    }
+}
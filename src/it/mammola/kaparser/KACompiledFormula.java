@@ -0,0 +1,297 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A formula parsed once by KAParser.compile or KAParser.compileString.
+ *
+ * Evaluating it gives the same results of KAParser.calculate and
+ * KAParser.calculateString without lexing and parsing the formula again.
+ * Syntax errors are raised when the formula is compiled, while the errors
+ * that depend on the values (unknown identifiers, wrong parameters count,
+ * user exceptions...) are raised when it is evaluated. A function parameter
+ * that cannot be compiled raises its error only if it is calculated.
+ * A compiled formula is immutable and uses the data providers and the
+ * settings of the parser that compiled it.
+ *
+ * A formula can also be evaluated over all the rows of a KAColumnarBatch,
+ * reading the values of its identifiers from the columns of the batch, on
+ * the calling thread or in parallel on a fork/join pool.
+ */
+public class KACompiledFormula {
+
+    private final KAParser parser;
+    private final String formula;
+    private final KAParserValueType valueType;
+    private final KANode root;
+    private final Set<String> references;
+    private final boolean timeDependent;
+    // how many slots the identifiers read from the columns of a batch have
+    private final int columnCount;
+
+    KACompiledFormula(final KAParser parser, final String formula, final KAParserValueType valueType, final KANode root,
+            final Set<String> references, final boolean timeDependent, final int columnCount) {
+        this.parser = parser;
+        this.formula = formula;
+        this.valueType = valueType;
+        this.root = root;
+        this.references = Collections.unmodifiableSet(new LinkedHashSet<>(references));
+        this.timeDependent = timeDependent;
+        this.columnCount = columnCount;
+    }
+
+    public String getFormula() {
+        return formula;
+    }
+
+    public KAParserValueType getValueType() {
+        return valueType;
+    }
+
+    /**
+     * The identifiers whose values the formula reads from the data providers
+     * (or from the columns of a batch), in the order they appear. The values
+     * read by ranges and by user functions are up to the data providers and
+     * are not included.
+     */
+    public Set<String> getReferences() {
+        return references;
+    }
+
+    /**
+     * True if the formula reads the clock of the configuration (now, today,
+     * distancefromnow, distancefromtoday). The clock is read once for each
+     * evaluation, or batch, and its resolution is the hour, as the one of the
+     * dates: the result of such a formula on the same values holds until the
+     * next hour starts. The registered functions reading the clock
+     * (KAFunctionArguments.getNow) are not detected.
+     */
+    public boolean isTimeDependent() {
+        return timeDependent;
+    }
+
+    KANode getRoot() {
+        return root;
+    }
+
+    public void evaluate(KAParserCalculationDoubleResult resValue) throws KAParserException {
+        evaluate(resValue, KAEvaluationContext.NOT_PINNED);
+    }
+
+    public void evaluateString(KAParserCalculationStringResult resValue) throws KAParserException {
+        evaluateString(resValue, KAEvaluationContext.NOT_PINNED);
+    }
+
+    /**
+     * Evaluates the formula as evaluate does, but returns the type of the
+     * error instead of raising it: null if the evaluation succeeded. The
+     * position of the error is resValue.getErrorPosition, and the error
+     * itself, resValue.getError, is created only if it is asked for, so a
+     * failing row costs little more than a calculated one. The errors raised
+     * by the data providers and by the registered functions are kept as they
+     * are, and have the type USER_EXCEPTION if they have none.
+     */
+    public KAErrorType tryEvaluate(KAParserCalculationDoubleResult resValue) {
+        if (valueType != KAParserValueType.TYPE_FLOAT) {
+            throw new IllegalStateException("Formula [" + formula + "] was compiled as a string formula");
+        }
+        KAEvaluationError error = resValue.getEvaluationError();
+        error.clear();
+        KAEvaluationContext context = new KAEvaluationContext(parser);
+        context.recordErrors(error);
+        try {
+            resValue.setValue(root.evaluate(resValue.getDoubleValue(), context));
+            return null;
+        } catch (KAParserException e) {
+            return error.caught(e);
+        }
+    }
+
+    public KAErrorType tryEvaluateString(KAParserCalculationStringResult resValue) {
+        if (valueType != KAParserValueType.TYPE_STRING) {
+            throw new IllegalStateException("Formula [" + formula + "] was compiled as a numeric formula");
+        }
+        KAEvaluationError error = resValue.getEvaluationError();
+        error.clear();
+        KAEvaluationContext context = new KAEvaluationContext(parser);
+        context.recordErrors(error);
+        try {
+            resValue.setValue(root.evaluateString(resValue.getValue(), context));
+            return null;
+        } catch (KAParserException e) {
+            return error.caught(e);
+        }
+    }
+
+    // an evaluation reading the clock as it was at the epoch second now
+    void evaluate(KAParserCalculationDoubleResult resValue, final long now) throws KAParserException {
+        if (valueType != KAParserValueType.TYPE_FLOAT) {
+            throw new IllegalStateException("Formula [" + formula + "] was compiled as a string formula");
+        }
+        resValue.setValue(root.evaluate(resValue.getDoubleValue(), new KAEvaluationContext(parser, null, 0, now)));
+    }
+
+    void evaluateString(KAParserCalculationStringResult resValue, final long now) throws KAParserException {
+        if (valueType != KAParserValueType.TYPE_STRING) {
+            throw new IllegalStateException("Formula [" + formula + "] was compiled as a numeric formula");
+        }
+        resValue.setValue(root.evaluateString(resValue.getValue(), new KAEvaluationContext(parser, null, 0, now)));
+    }
+
+    /**
+     * Evaluates the formula for every row of the batch, storing the result of
+     * row i in output[i]. As the result of evaluate, output[i] holds the
+     * incoming value of its row. If a row raises an error, the evaluation
+     * stops there, with the rows before it already stored.
+     */
+    public void evaluate(final KAColumnarBatch batch, double[] output) throws KAParserException {
+        evaluate(batch, output, null);
+    }
+
+    /**
+     * Evaluates the formula for every row of the batch, as
+     * evaluate(KAColumnarBatch, double[]) does, but the rows that raise an
+     * error are added to errors and the evaluation goes on. The errors are
+     * collected as tryEvaluate returns them, without a stack trace. If
+     * errors is null, the first error is raised.
+     */
+    public void evaluate(final KAColumnarBatch batch, double[] output, final KABatchErrors errors)
+            throws KAParserException {
+        checkBatch(KAParserValueType.TYPE_FLOAT, batch, output.length);
+        KABatchErrors rowErrors = (errors != null) ? errors : new KABatchErrors();
+        evaluateRows(batch, output, 0, batch.getRowCount(), rowErrors, errors == null, KAEvaluationContext.NOT_PINNED);
+        raiseFirstError(rowErrors, errors);
+    }
+
+    /**
+     * Evaluates the string formula for every row of the batch, as
+     * evaluate(KAColumnarBatch, double[]) does. A null element of output is
+     * an empty incoming value.
+     */
+    public void evaluateString(final KAColumnarBatch batch, String[] output) throws KAParserException {
+        evaluateString(batch, output, null);
+    }
+
+    public void evaluateString(final KAColumnarBatch batch, String[] output, final KABatchErrors errors)
+            throws KAParserException {
+        checkBatch(KAParserValueType.TYPE_STRING, batch, output.length);
+        KABatchErrors rowErrors = (errors != null) ? errors : new KABatchErrors();
+        evaluateStringRows(batch, output, 0, batch.getRowCount(), rowErrors, errors == null,
+                KAEvaluationContext.NOT_PINNED);
+        raiseFirstError(rowErrors, errors);
+    }
+
+    /**
+     * Evaluates the formula for every row of the batch, as
+     * evaluate(KAColumnarBatch, double[], KABatchErrors) does, splitting the
+     * rows in chunks evaluated in parallel by the pool (the common pool, if
+     * pool is null). Every row is stored in its own element of output and
+     * the errors are reported in the order of the rows, so the results do not
+     * depend on the chunks. If errors is null, the error of the first row
+     * that fails is raised and the rows after it may be stored or not. The
+     * data providers asked for the values that are not in the batch are
+     * called by many threads at once.
+     */
+    public void evaluateParallel(final KAColumnarBatch batch, double[] output, final KABatchErrors errors,
+            final ForkJoinPool pool) throws KAParserException {
+        checkBatch(KAParserValueType.TYPE_FLOAT, batch, output.length);
+        invokeParallel(batch, output, null, errors, pool);
+    }
+
+    public void evaluateParallelString(final KAColumnarBatch batch, String[] output, final KABatchErrors errors,
+            final ForkJoinPool pool) throws KAParserException {
+        checkBatch(KAParserValueType.TYPE_STRING, batch, output.length);
+        invokeParallel(batch, null, output, errors, pool);
+    }
+
+    // evaluates the rows from (inclusive) to (exclusive), adding their errors;
+    // with stopOnError the first error ends the rows. The clock is read at
+    // the epoch second now, if pinned by the batch
+    void evaluateRows(final KAColumnarBatch batch, double[] output, final int from, final int to,
+            final KABatchErrors errors, final boolean stopOnError, final long now) {
+        KAEvaluationContext context = batchContext(batch, stopOnError, now);
+        for (int row = from; row < to; row++) {
+            context.setRow(row);
+            try {
+                output[row] = root.evaluate(output[row], context);
+            } catch (KAParserException e) {
+                errors.add(row, e);
+                if (stopOnError) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void evaluateStringRows(final KAColumnarBatch batch, String[] output, final int from, final int to,
+            final KABatchErrors errors, final boolean stopOnError, final long now) {
+        KAEvaluationContext context = batchContext(batch, stopOnError, now);
+        for (int row = from; row < to; row++) {
+            context.setRow(row);
+            try {
+                output[row] = root.evaluateString((output[row] != null) ? output[row] : "", context);
+            } catch (KAParserException e) {
+                errors.add(row, e);
+                if (stopOnError) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // the errors collected rather than raised need no stack trace
+    private KAEvaluationContext batchContext(final KAColumnarBatch batch, final boolean stopOnError, final long now) {
+        KAEvaluationContext result = new KAEvaluationContext(parser, batch, columnCount, now);
+        if (!stopOnError) {
+            result.omitErrorStackTraces();
+        }
+        return result;
+    }
+
+    private void invokeParallel(final KAColumnarBatch batch, double[] output, String[] stringOutput,
+            final KABatchErrors errors, final ForkJoinPool pool) throws KAParserException {
+        ForkJoinPool usedPool = (pool != null) ? pool : ForkJoinPool.commonPool();
+        // all the chunks read the clock at the same instant
+        long now = timeDependent ? KAEvaluationContext.readClock(parser) : KAEvaluationContext.NOT_PINNED;
+        KABatchTask task = new KABatchTask(this, batch, output, stringOutput, 0, batch.getRowCount(),
+                KABatchTask.chunkSize(batch.getRowCount(), usedPool.getParallelism()), errors == null, now);
+        usedPool.invoke(task);
+        if (errors != null) {
+            errors.addAll(task.getErrors());
+        }
+        raiseFirstError(task.getErrors(), errors);
+    }
+
+    private void checkBatch(final KAParserValueType batchValueType, final KAColumnarBatch batch, final int length) {
+        if (valueType != batchValueType) {
+            throw new IllegalStateException("Formula [" + formula + "] was compiled as a "
+                    + ((valueType == KAParserValueType.TYPE_FLOAT) ? "numeric" : "string") + " formula");
+        }
+        if (length < batch.getRowCount()) {
+            throw new IllegalArgumentException("Output has " + length + " elements, " + batch.getRowCount()
+                    + " expected");
+        }
+    }
+
+    private static void raiseFirstError(final KABatchErrors rowErrors, final KABatchErrors errors)
+            throws KAParserException {
+        if ((errors == null) && !rowErrors.isEmpty()) {
+            throw rowErrors.getError(0);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * A KAParserDataProvider seen as a KAPrimitiveDataProvider.
+ *
+ * There is one slot contract: the slots are the ones the provider gives
+ * with KAParserDataProvider.resolve, read with its getValue and getStrValue
+ * by slot, unchanged. The names the provider does not resolve are read by
+ * name, as the provider always did: each compiled identifier keeps its own
+ * name for it, so the adapter holds no state.
+ */
+public final class KADataProviderAdapter implements KAPrimitiveDataProvider {
+
+    private final KAParserDataProvider dataProvider;
+
+    public KADataProviderAdapter(final KAParserDataProvider dataProvider) {
+        this.dataProvider = dataProvider;
+    }
+
+    public KAParserDataProvider getDataProvider() {
+        return dataProvider;
+    }
+
+    @Override
+    public int resolve(final String valueName) {
+        int slot = dataProvider.resolve(valueName);
+        return (slot >= 0) ? slot : NOT_RESOLVED;
+    }
+
+    @Override
+    public boolean tryGetDouble(final Object sender, final int slot, KAParserCalculationDoubleResult value) {
+        return dataProvider.getValue(sender, slot, value);
+    }
+
+    @Override
+    public boolean tryGetString(final Object sender, final int slot, KAParserCalculationStringResult value) {
+        return dataProvider.getStrValue(sender, slot, value);
+    }
+
+    // the value of a name the provider did not resolve, since it may know
+    // it at some evaluations only
+    boolean tryGetDouble(final Object sender, final String valueName, KAParserCalculationDoubleResult value) {
+        return dataProvider.getValue(sender, valueName, value);
+    }
+
+    boolean tryGetString(final Object sender, final String valueName, KAParserCalculationStringResult value) {
+        return dataProvider.getStrValue(sender, valueName, value);
+    }
+}
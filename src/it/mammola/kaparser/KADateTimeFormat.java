@@ -0,0 +1,167 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pattern of stringtodatetime, translated and compiled once for each time
+ * zone and shared by all the threads.
+ *
+ * The patterns made only of numeric days, months, four digit years, hours,
+ * minutes and seconds are parsed by an immutable DateTimeFormatter, strict:
+ * a text it does not take exactly (a single digit day, a day 31 of
+ * February, a trailing text...) is parsed by a SimpleDateFormat, cloned
+ * from the one kept by the pattern, as all the other patterns are. The
+ * results are the ones of SimpleDateFormat, lenient included.
+ */
+final class KADateTimeFormat {
+
+    // the patterns of the formulas are a few: beyond this size the cache is
+    // simply emptied
+    private static final int MAX_FORMATS = 256;
+    private static final ConcurrentHashMap<Key, KADateTimeFormat> FORMATS = new ConcurrentHashMap<>();
+    // the time zones of SimpleDateFormat drop the transitions before 1900
+    // and follow their last rules from 2037, so java.time is used between
+    private static final int FIRST_YEAR = 1901;
+    private static final int LAST_YEAR = 2036;
+
+    private final ZoneId zone;
+    private final DateTimeFormatter formatter;
+    private final SimpleDateFormat prototype;
+
+    private KADateTimeFormat(final String pattern, final ZoneId zone) {
+        this.zone = zone;
+        this.prototype = new SimpleDateFormat(pattern);
+        this.prototype.setTimeZone(TimeZone.getTimeZone(zone));
+        this.formatter = isNumeric(pattern) ? numericFormatter(pattern) : null;
+    }
+
+    /**
+     * The format of a pattern of stringtodatetime, written as Oracle does
+     * ("DD-MM-YYYY") or as SimpleDateFormat does. IllegalArgumentException
+     * if the pattern is not valid.
+     */
+    static KADateTimeFormat of(final String pattern, final ZoneId zone) {
+        Key key = new Key(pattern, zone);
+        KADateTimeFormat result = FORMATS.get(key);
+        if (result == null) {
+            result = new KADateTimeFormat(translate(pattern), zone);
+            if (FORMATS.size() >= MAX_FORMATS) {
+                FORMATS.clear();
+            }
+            FORMATS.put(key, result);
+        }
+        return result;
+    }
+
+    // java è pazzo. Questo per ripristinare un minimo di semplicità e
+    // far accettare formati alla Oracle tipo "DD-MM-YYYY".
+    static String translate(final String pattern) {
+        return pattern.replace("DD", "dd").replace("YYYY", "yyyy").replace("YY", "yy").replace("mm", "MM");
+    }
+
+    /**
+     * The epoch second of the text.
+     */
+    long parse(final String text) throws ParseException {
+        if (formatter != null) {
+            try {
+                LocalDateTime dateTime = LocalDateTime.parse(text, formatter);
+                if ((dateTime.getYear() >= FIRST_YEAR) && (dateTime.getYear() <= LAST_YEAR)) {
+                    return ZonedDateTime.ofLocal(dateTime, zone, null).withLaterOffsetAtOverlap().toEpochSecond();
+                }
+            } catch (DateTimeException e) {
+                // left to SimpleDateFormat
+            }
+        }
+        return ((SimpleDateFormat) prototype.clone()).parse(text).toInstant().getEpochSecond();
+    }
+
+    // digits only, each field at most once, no text and no quotes
+    private static boolean isNumeric(final String pattern) {
+        String found = "";
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))) {
+                int end = i;
+                while ((end < pattern.length()) && (pattern.charAt(end) == c)) {
+                    end++;
+                }
+                String field = pattern.substring(i, end);
+                if (!(field.equals("dd") || field.equals("MM") || field.equals("yyyy") || field.equals("HH")
+                        || field.equals("mm") || field.equals("ss")) || (found.indexOf(c) >= 0)) {
+                    return false;
+                }
+                found = found + c;
+                i = end;
+            } else if ((c == '\'') || (c > 127)) {
+                return false;
+            } else {
+                i++;
+            }
+        }
+        return !found.isEmpty();
+    }
+
+    private static DateTimeFormatter numericFormatter(final String pattern) {
+        return new DateTimeFormatterBuilder().appendPattern(pattern)
+                .parseDefaulting(ChronoField.ERA, 1)
+                .parseDefaulting(ChronoField.YEAR_OF_ERA, 1970)
+                .parseDefaulting(ChronoField.MONTH_OF_YEAR, 1)
+                .parseDefaulting(ChronoField.DAY_OF_MONTH, 1)
+                .parseDefaulting(ChronoField.HOUR_OF_DAY, 0)
+                .parseDefaulting(ChronoField.MINUTE_OF_HOUR, 0)
+                .parseDefaulting(ChronoField.SECOND_OF_MINUTE, 0)
+                .toFormatter(Locale.ROOT)
+                .withResolverStyle(ResolverStyle.STRICT);
+    }
+
+    private static final class Key {
+
+        private final String pattern;
+        private final ZoneId zone;
+
+        Key(final String pattern, final ZoneId zone) {
+            this.pattern = pattern;
+            this.zone = zone;
+        }
+
+        @Override
+        public int hashCode() {
+            return pattern.hashCode() * 31 + zone.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return pattern.equals(other.pattern) && zone.equals(other.zone);
+        }
+    }
+}
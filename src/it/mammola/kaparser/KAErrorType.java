@@ -20,5 +20,6 @@ public enum KAErrorType {
     FUNCTION_UNKNOWN, 
     PARSE_ERROR, 
     EXTERNAL_FUNCTION_ERROR, 
-    USER_EXCEPTION   
+    USER_EXCEPTION, 
+    CIRCULAR_REFERENCE
 }
@@ -0,0 +1,279 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+
+/**
+ * The state of a single evaluation of a compiled formula: the settings of
+ * the parser when the evaluation started, the instant of the clock and, for
+ * a batch, the row being evaluated. Every evaluation has its own context, so
+ * the evaluations of a formula can run on many threads at once.
+ */
+class KAEvaluationContext {
+
+    // the clock is read when the evaluation first needs it
+    static final long NOT_PINNED = Long.MIN_VALUE;
+    // the slot of an identifier whose column is found by name at every read
+    static final int NO_COLUMN = -1;
+
+    private final KAParser parser;
+    private final int decimalNumbers;
+    private final ZoneId zone;
+    private final KACalendar calendar;
+    private final KAColumnarBatch batch;
+    // the columns of the batch, by the slots the formula gave to their
+    // identifiers, found when the evaluation first reads them
+    private KAColumnarBatch.Column[] columns;
+    private int row;
+    // the errors that are not raised to the caller need no stack trace
+    private boolean errorStackTraces;
+    // where the errors are recorded instead of raised, if not null
+    private KAEvaluationError recordedError;
+    // the epoch second of the clock, the same for the whole evaluation
+    private long now;
+    // the results the values are read into, reused by all the values
+    private KAParserCalculationDoubleResult valueResult;
+    private KAParserCalculationStringResult stringValueResult;
+    // the subexpressions shared by the formulas of a KAFormulaSet, calculated
+    // for the current row: a slot is valid if its stamp is the current one
+    private double[] sharedValues;
+    private double[] sharedIncoming;
+    private int[] sharedStamps;
+    private int sharedStamp;
+    // the results of the pure user functions (see KAUserFunctionPurity) kept
+    // for the current evaluation, that is the current row, and for the batch
+    private KAUserFunctionCache.Local evaluationResults;
+    private KAUserFunctionCache.Local batchResults;
+
+    KAEvaluationContext(final KAParser parser) {
+        this(parser, null, 0);
+    }
+
+    KAEvaluationContext(final KAParser parser, final KAColumnarBatch batch, final int columnCount) {
+        this(parser, batch, columnCount, NOT_PINNED);
+    }
+
+    // a context for the formulas whose identifiers have columnCount slots,
+    // reading the clock at the epoch second now, shared with other
+    // contexts, or at its first use if NOT_PINNED
+    KAEvaluationContext(final KAParser parser, final KAColumnarBatch batch, final int columnCount,
+            final long now) {
+        KAParserConfiguration configuration = parser.getConfiguration();
+        this.parser = parser;
+        this.decimalNumbers = configuration.getDecimalNumbers();
+        this.zone = configuration.getZone();
+        this.calendar = configuration.getCalendar();
+        this.batch = batch;
+        if ((batch != null) && (columnCount > 0)) {
+            this.columns = new KAColumnarBatch.Column[columnCount];
+        }
+        this.now = now;
+        this.errorStackTraces = configuration.hasErrorStackTraces();
+    }
+
+    static long readClock(final KAParser parser) {
+        return Math.floorDiv(parser.getConfiguration().getClock().millis(), 1000);
+    }
+
+    KAParser getParser() {
+        return parser;
+    }
+
+    int getDecimalNumbers() {
+        return decimalNumbers;
+    }
+
+    ZoneId getZone() {
+        return zone;
+    }
+
+    KACalendar getCalendar() {
+        return calendar;
+    }
+
+    // the epoch second of the clock: all the rows of a batch, and all the
+    // formulas of a KAFormulaSet, see the same one
+    long getNow() {
+        if (now == NOT_PINNED) {
+            now = readClock(parser);
+        }
+        return now;
+    }
+
+    // for the evaluations returning or collecting their errors
+    void omitErrorStackTraces() {
+        errorStackTraces = false;
+    }
+
+    // for the evaluations returning their errors: the errors are recorded in
+    // error and the evaluation is stopped by KAEvaluationError.RECORDED
+    void recordErrors(final KAEvaluationError error) {
+        recordedError = error;
+    }
+
+    void raiseError(final KAErrorType errorCode, final String formula, final int position) throws KAParserException {
+        raiseError(errorCode, KAParserException.GENERIC_ERROR, formula, position);
+    }
+
+    void raiseError(final KAErrorType errorCode, final String errorMessage, final String formula, final int position)
+            throws KAParserException {
+        if (recordedError != null) {
+            recordedError.record(errorCode, errorMessage, formula, position);
+            throw KAEvaluationError.RECORDED;
+        }
+        parser.raiseError(errorCode, errorMessage, formula, position, errorStackTraces);
+    }
+
+    // raises again an error found when the formula was compiled
+    void raiseError(final KAParserException error) throws KAParserException {
+        if ((recordedError != null) && (error.getErrorType() != null)) {
+            raiseError(error.getErrorType(), error.getDescription(), error.getFormula(), error.getPosition());
+        }
+        throw error.copy(errorStackTraces);
+    }
+
+    // the column of the identifier with the given slot in the batch, or
+    // Column.MISSING
+    KAColumnarBatch.Column getColumn(final int slot, final String identifier) {
+        if (batch == null) {
+            return KAColumnarBatch.Column.MISSING;
+        }
+        if (slot == NO_COLUMN) {
+            return findColumn(identifier);
+        }
+        KAColumnarBatch.Column result = columns[slot];
+        if (result == null) {
+            result = findColumn(identifier);
+            columns[slot] = result;
+        }
+        return result;
+    }
+
+    private KAColumnarBatch.Column findColumn(final String identifier) {
+        KAColumnarBatch.Column result = batch.getColumn(identifier);
+        return (result != null) ? result : KAColumnarBatch.Column.MISSING;
+    }
+
+    int getRow() {
+        return row;
+    }
+
+    void setRow(final int row) {
+        this.row = row;
+        if ((evaluationResults != null) && !evaluationResults.isEmpty()) {
+            evaluationResults.clear();
+        }
+    }
+
+    KAParserCalculationDoubleResult getValueResult() {
+        if (valueResult == null) {
+            valueResult = new KAParserCalculationDoubleResult();
+        }
+        return valueResult;
+    }
+
+    KAParserCalculationStringResult getStringValueResult() {
+        if (stringValueResult == null) {
+            stringValueResult = new KAParserCalculationStringResult();
+        }
+        return stringValueResult;
+    }
+
+    // forgets the shared subexpressions, before a new row is calculated
+    void startShared(final int size) {
+        if ((sharedStamps == null) || (sharedStamps.length < size)) {
+            sharedValues = new double[size];
+            sharedIncoming = new double[size];
+            sharedStamps = new int[size];
+            sharedStamp = 0;
+        }
+        sharedStamp++;
+    }
+
+    boolean hasShared(final int slot, final double incoming) {
+        return (sharedStamps != null) && (sharedStamps[slot] == sharedStamp)
+                && (Double.doubleToRawLongBits(sharedIncoming[slot]) == Double.doubleToRawLongBits(incoming));
+    }
+
+    double getShared(final int slot) {
+        return sharedValues[slot];
+    }
+
+    void setShared(final int slot, final double incoming, final double value) {
+        if (sharedStamps != null) {
+            sharedValues[slot] = value;
+            sharedIncoming[slot] = incoming;
+            sharedStamps[slot] = sharedStamp;
+        }
+    }
+
+    // true if a result of a user function may have been kept, so it is worth
+    // looking for it
+    boolean hasUserFunctionResults() {
+        KAUserFunctionCache cache = parser.getUserFunctionCache();
+        return (evaluationResults != null) || (batchResults != null) || ((cache != null) && cache.isUsed());
+    }
+
+    // the result kept for a call, from the narrowest scope, or null
+    Object getUserFunctionResult(final KAUserFunctionCache.Key key) {
+        Object result = null;
+        if (evaluationResults != null) {
+            result = evaluationResults.get(key);
+        }
+        if ((result == null) && (batchResults != null)) {
+            result = batchResults.get(key);
+        }
+        if (result == null) {
+            KAUserFunctionCache cache = parser.getUserFunctionCache();
+            if ((cache != null) && cache.isUsed()) {
+                result = cache.get(key);
+            }
+        }
+        return result;
+    }
+
+    void putUserFunctionResult(final KAUserFunctionCache.Key key, final KAUserFunctionPurity purity,
+            final Object result) {
+        switch (purity) {
+            case EVALUATION:
+                if (evaluationResults == null) {
+                    int size = parser.getConfiguration().getUserFunctionCacheSize();
+                    if (size == 0) {
+                        return;
+                    }
+                    evaluationResults = new KAUserFunctionCache.Local(size);
+                }
+                evaluationResults.put(key, result);
+                break;
+            case BATCH:
+                if (batchResults == null) {
+                    int size = parser.getConfiguration().getUserFunctionCacheSize();
+                    if (size == 0) {
+                        return;
+                    }
+                    batchResults = new KAUserFunctionCache.Local(size);
+                }
+                batchResults.put(key, result);
+                break;
+            case GLOBAL:
+                KAUserFunctionCache cache = parser.getUserFunctionCache();
+                if (cache != null) {
+                    cache.put(key, result);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+}
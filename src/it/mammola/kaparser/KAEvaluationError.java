@@ -0,0 +1,77 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * The error of the last tryEvaluate of a result: the parser records its
+ * type, formula and position here instead of creating a KAParserException,
+ * which is built only when the caller asks for it.
+ */
+final class KAEvaluationError {
+
+    // raised in place of the recorded errors, to stop the evaluation: it has
+    // no stack trace and is never returned to the caller
+    static final KAParserException RECORDED = new KAParserException(KAErrorType.FUNCTION_ERROR,
+            KAParserException.GENERIC_ERROR, "", -1, false);
+
+    private KAErrorType errorType;
+    private String description;
+    private String formula;
+    private int position = -1;
+    private KAParserException exception;
+
+    void clear() {
+        errorType = null;
+        description = null;
+        formula = null;
+        position = -1;
+        exception = null;
+    }
+
+    void record(final KAErrorType errorType, final String description, final String formula, final int position) {
+        this.errorType = errorType;
+        this.description = description;
+        this.formula = formula;
+        this.position = position;
+        this.exception = null;
+    }
+
+    // the type of the error that stopped the evaluation: the errors not
+    // recorded, raised by the data providers or the registered functions,
+    // are kept as they are, as user exceptions if they have no type
+    KAErrorType caught(final KAParserException e) {
+        if (e != RECORDED) {
+            errorType = (e.getErrorType() != null) ? e.getErrorType() : KAErrorType.USER_EXCEPTION;
+            description = null;
+            formula = e.getFormula();
+            position = e.getPosition();
+            exception = e;
+        }
+        return errorType;
+    }
+
+    KAErrorType getErrorType() {
+        return errorType;
+    }
+
+    int getPosition() {
+        return position;
+    }
+
+    KAParserException getException() {
+        if ((exception == null) && (errorType != null)) {
+            exception = new KAParserException(errorType, description, formula, position, false);
+        }
+        return exception;
+    }
+}
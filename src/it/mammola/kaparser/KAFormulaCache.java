@@ -0,0 +1,165 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The compiled formulas KAParser keeps to avoid lexing and parsing again the
+ * formulas it is asked to calculate.
+ *
+ * The cache is split into segments, each one a small LRU map with its own
+ * lock, so threads looking up different formulas rarely wait for each other.
+ * When a segment is full its least recently used formula is evicted.
+ */
+public class KAFormulaCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    private final int maximumSize;
+    private final Segment[] segments;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    public KAFormulaCache(final int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("The maximum size of the cache must be greater than 0");
+        }
+        this.maximumSize = maximumSize;
+
+        int segmentsCount = 1;
+        while ((segmentsCount < MAX_SEGMENTS) && (maximumSize / (segmentsCount * 2) >= MIN_SEGMENT_SIZE)) {
+            segmentsCount = segmentsCount * 2;
+        }
+        segments = new Segment[segmentsCount];
+        for (int i = 0; i < segmentsCount; i++) {
+            // the first segments take the remainder, so the sizes add up to maximumSize
+            int segmentSize = (maximumSize / segmentsCount) + ((i < maximumSize % segmentsCount) ? 1 : 0);
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.size();
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    KACompiledFormula get(final String formula, final KAParserValueType valueType) {
+        Key key = new Key(formula, valueType);
+        Segment segment = segmentFor(key);
+        KACompiledFormula result;
+        synchronized (segment) {
+            result = segment.get(key);
+        }
+        if (result != null) {
+            hitCount.increment();
+        } else {
+            missCount.increment();
+        }
+        return result;
+    }
+
+    void put(final KACompiledFormula compiledFormula) {
+        Key key = new Key(compiledFormula.getFormula(), compiledFormula.getValueType());
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, compiledFormula);
+        }
+    }
+
+    private Segment segmentFor(final Key key) {
+        int hash = key.hashCode();
+        hash = hash ^ (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    private static final class Key {
+
+        private final String formula;
+        private final KAParserValueType valueType;
+
+        Key(final String formula, final KAParserValueType valueType) {
+            this.formula = formula;
+            this.valueType = valueType;
+        }
+
+        @Override
+        public int hashCode() {
+            return formula.hashCode() * 31 + valueType.ordinal();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (valueType == other.valueType) && formula.equals(other.formula);
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<Key, KACompiledFormula> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int segmentSize;
+
+        Segment(final int segmentSize) {
+            super(16, 0.75f, true);
+            this.segmentSize = segmentSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, KACompiledFormula> eldest) {
+            if (size() > segmentSize) {
+                evictionCount.increment();
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * Numeric formulas compiled together by KAParser.compileSet, to calculate
+ * all of them on the same values at once.
+ *
+ * The subexpressions found more than once, in the same formula or in many,
+ * are compiled once and calculated once for each row: the values of the
+ * identifiers, the operations and the calls to pure functions (the same
+ * todate(...), safediv(a, b)...). A data provider is therefore asked once
+ * for each value the formulas read. The calls to functions that are not
+ * pure, to user functions and to ranges are calculated every time, though
+ * the results of the user functions declared pure are reused within their
+ * scope (see KAUserFunctionPurity). The clock is read once for each
+ * evaluation, so the now and today constants are shared as well. A
+ * subexpression that raises an error raises it every time it is calculated;
+ * its message reports the first formula it was found in.
+ *
+ * As a KACompiledFormula, a formula set is immutable and can be evaluated by
+ * many threads at once.
+ */
+public final class KAFormulaSet {
+
+    private final KAParser parser;
+    private final KACompiledFormula[] formulas;
+    private final int sharedCount;
+    // the formulas number the columns they read together
+    private final int columnCount;
+
+    KAFormulaSet(final KAParser parser, final KACompiledFormula[] formulas, final int sharedCount,
+            final int columnCount) {
+        this.parser = parser;
+        this.formulas = formulas;
+        this.sharedCount = sharedCount;
+        this.columnCount = columnCount;
+    }
+
+    public int size() {
+        return formulas.length;
+    }
+
+    public String getFormula(final int index) {
+        return formulas[index].getFormula();
+    }
+
+    /**
+     * How many subexpressions are calculated once for all their uses.
+     */
+    public int getSharedCount() {
+        return sharedCount;
+    }
+
+    /**
+     * Calculates every formula, storing the result of formula i in
+     * results[i]. As the result of KACompiledFormula.evaluate, results[i]
+     * holds the incoming value of its formula. The first error stops the
+     * calculation, with the formulas before it already stored.
+     */
+    public void evaluate(double[] results) throws KAParserException {
+        if (results.length < formulas.length) {
+            throw new IllegalArgumentException("Results has " + results.length + " elements, " + formulas.length
+                    + " expected");
+        }
+        KAEvaluationContext context = new KAEvaluationContext(parser);
+        context.startShared(sharedCount);
+        for (int i = 0; i < formulas.length; i++) {
+            results[i] = formulas[i].getRoot().evaluate(results[i], context);
+        }
+    }
+
+    /**
+     * Calculates every formula for every row of the batch, storing the result
+     * of formula i for row r in outputs[i][r], as
+     * KACompiledFormula.evaluate(KAColumnarBatch, double[]) does. The first
+     * error stops the calculation.
+     */
+    public void evaluate(final KAColumnarBatch batch, double[][] outputs) throws KAParserException {
+        if (outputs.length < formulas.length) {
+            throw new IllegalArgumentException("Outputs has " + outputs.length + " arrays, " + formulas.length
+                    + " expected");
+        }
+        for (double[] output : outputs) {
+            if (output.length < batch.getRowCount()) {
+                throw new IllegalArgumentException("Output has " + output.length + " elements, "
+                        + batch.getRowCount() + " expected");
+            }
+        }
+        KAEvaluationContext context = new KAEvaluationContext(parser, batch, columnCount);
+        for (int row = 0; row < batch.getRowCount(); row++) {
+            context.setRow(row);
+            context.startShared(sharedCount);
+            for (int i = 0; i < formulas.length; i++) {
+                outputs[i][row] = formulas[i].getRoot().evaluate(outputs[i][row], context);
+            }
+        }
+    }
+}
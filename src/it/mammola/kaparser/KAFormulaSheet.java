@@ -0,0 +1,435 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Named cells holding values or formulas that reference each other by name,
+ * recalculated as a spreadsheet is: only what depends on a change.
+ *
+ * A formula is compiled once, when it is set, and the identifiers it reads
+ * (KACompiledFormula.getReferences) become its dependencies. The formulas
+ * read the cells before the value providers of the configuration, so a cell
+ * hides a value of the data providers with the same name. A formula that
+ * would depend on itself raises CIRCULAR_REFERENCE and leaves the sheet
+ * unchanged.
+ *
+ * Setting or removing a cell marks the formulas that depend on it, directly
+ * or not; recalculate evaluates only those, each one after the cells it
+ * reads. getValue and getStringValue recalculate first if something changed.
+ * The error raised by a formula is kept by its cell, so the formulas that
+ * read it fail too.
+ *
+ * The formulas can also be recalculated in parallel on a fork/join pool,
+ * level by level: the formulas of a level read only the levels before it,
+ * so they run at the same time.
+ *
+ * The formulas reading the clock (KACompiledFormula.isTimeDependent) are
+ * recalculated when the hour changes: each recalculation reads the clock
+ * once, so all the formulas see the same instant.
+ *
+ * The values read by ranges and user functions are not dependencies: when
+ * the data providers change, invalidate the names they feed. A sheet is not
+ * thread-safe: only recalculate(ForkJoinPool) uses many threads, and the
+ * data providers it calls must be thread-safe themselves.
+ */
+public final class KAFormulaSheet {
+
+    private final KAParser parser;
+    private final HashMap<String, Cell> cellsByName = new HashMap<>();
+    private final ArrayList<Cell> cells = new ArrayList<>();
+    private final ArrayList<Cell> changed = new ArrayList<>();
+    // the clock of the last recalculation, in epoch seconds, and its hour
+    private long now;
+    private long clockHour = Long.MIN_VALUE;
+
+    public KAFormulaSheet(final KAParserConfiguration configuration) {
+        this.parser = new KAParser(configuration.toBuilder().insertValueProvider(new CellProvider()).build());
+    }
+
+    public void setValue(final String name, final double value) {
+        Cell cell = define(name, KAParserValueType.TYPE_FLOAT, null);
+        cell.value = value;
+    }
+
+    public void setStringValue(final String name, final String value) {
+        Cell cell = define(name, KAParserValueType.TYPE_STRING, null);
+        cell.stringValue = (value != null) ? value : "";
+    }
+
+    public void setFormula(final String name, final String formula) throws KAParserException {
+        setFormula(name, parser.compile(formula));
+    }
+
+    public void setStringFormula(final String name, final String formula) throws KAParserException {
+        setFormula(name, parser.compileString(formula));
+    }
+
+    /**
+     * Removes the value or the formula of a cell: the formulas reading it
+     * will ask the data providers.
+     */
+    public void remove(final String name) {
+        Cell cell = cellsByName.get(name);
+        if ((cell != null) && (cell.valueType != null)) {
+            define(name, null, null);
+        }
+    }
+
+    /**
+     * Marks the formulas that read name, a cell or a value of the data
+     * providers, to be recalculated.
+     */
+    public void invalidate(final String name) {
+        changed.add(cell(name));
+    }
+
+    public boolean contains(final String name) {
+        Cell cell = cellsByName.get(name);
+        return (cell != null) && (cell.valueType != null);
+    }
+
+    /**
+     * Evaluates the formulas depending on the cells changed since the last
+     * recalculation, in the order of their dependencies, and returns how
+     * many they are.
+     */
+    public int recalculate() {
+        ArrayDeque<Cell> ready = new ArrayDeque<>(prepareDirty());
+        int result = 0;
+        while (!ready.isEmpty()) {
+            Cell cell = ready.poll();
+            if (evaluate(cell, now)) {
+                result++;
+            }
+            for (Cell dependent : cell.dependents) {
+                if (dependent.dirty && (--dependent.pending == 0)) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Recalculates as recalculate() does, evaluating the formulas in parallel
+     * on the pool (the common pool, if pool is null). The formulas are split
+     * in levels, each one reading only the levels before it: the formulas of
+     * a level are split in chunks calculated at the same time, and the next
+     * level starts when they are all done, reading their values.
+     */
+    public int recalculate(final ForkJoinPool pool) {
+        ForkJoinPool tasksPool = (pool != null) ? pool : ForkJoinPool.commonPool();
+        int result = 0;
+        for (ArrayList<Cell> level : dirtyLevels()) {
+            int chunkSize = KABatchTask.chunkSize(level.size(), tasksPool.getParallelism());
+            if (level.size() <= chunkSize) {
+                new LevelTask(level, 0, level.size(), chunkSize, now).compute();
+            } else {
+                tasksPool.invoke(new LevelTask(level, 0, level.size(), chunkSize, now));
+            }
+            for (Cell cell : level) {
+                if (cell.formula != null) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
+    public double getValue(final String name) throws KAParserException {
+        return calculated(name, KAParserValueType.TYPE_FLOAT).value;
+    }
+
+    public String getStringValue(final String name) throws KAParserException {
+        return calculated(name, KAParserValueType.TYPE_STRING).stringValue;
+    }
+
+    /**
+     * The error raised by the formula of a cell when it was last calculated,
+     * or null.
+     */
+    public KAParserException getError(final String name) {
+        recalculate();
+        Cell cell = cellsByName.get(name);
+        return (cell != null) ? cell.error : null;
+    }
+
+    private void setFormula(final String name, final KACompiledFormula formula) throws KAParserException {
+        Cell cell = cell(name);
+        ArrayList<Cell> references = new ArrayList<>();
+        for (String reference : formula.getReferences()) {
+            references.add(cell(reference));
+        }
+        if (dependsOn(references, cell)) {
+            parser.raiseError(KAErrorType.CIRCULAR_REFERENCE, name, formula.getFormula(),
+                    formula.getFormula().length());
+        }
+        define(name, formula.getValueType(), formula);
+        for (Cell reference : references) {
+            cell.references.add(reference);
+            reference.dependents.add(cell);
+        }
+    }
+
+    // true if one of the cells is target or reads it, directly or not
+    private static boolean dependsOn(final ArrayList<Cell> cells, final Cell target) {
+        ArrayDeque<Cell> toVisit = new ArrayDeque<>();
+        HashSet<Cell> visited = new HashSet<>();
+        toVisit.add(target);
+        while (!toVisit.isEmpty()) {
+            Cell cell = toVisit.poll();
+            if (visited.add(cell)) {
+                toVisit.addAll(cell.dependents);
+            }
+        }
+        for (Cell cell : cells) {
+            if (visited.contains(cell)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the cell with its new content, without dependencies, marked as changed
+    private Cell define(final String name, final KAParserValueType valueType, final KACompiledFormula formula) {
+        Cell cell = cell(name);
+        for (Cell reference : cell.references) {
+            reference.dependents.remove(cell);
+        }
+        cell.references.clear();
+        cell.valueType = valueType;
+        cell.formula = formula;
+        cell.value = 0.0;
+        cell.stringValue = "";
+        cell.error = null;
+        changed.add(cell);
+        return cell;
+    }
+
+    // the cell of a name, created empty the first time the name is met
+    private Cell cell(final String name) {
+        Cell result = cellsByName.get(name);
+        if (result == null) {
+            result = new Cell(cells.size());
+            cells.add(result);
+            cellsByName.put(name, result);
+        }
+        return result;
+    }
+
+    private Cell calculated(final String name, final KAParserValueType valueType) throws KAParserException {
+        recalculate();
+        Cell cell = cellsByName.get(name);
+        if ((cell == null) || (cell.valueType != valueType)) {
+            throw new IllegalArgumentException("Cell " + name + " has no "
+                    + ((valueType == KAParserValueType.TYPE_FLOAT) ? "numeric" : "string") + " value");
+        }
+        if (cell.error != null) {
+            throw cell.error;
+        }
+        return cell;
+    }
+
+    // marks the changed cells and all the cells that depend on them as
+    // dirty, each one waiting for the dirty cells it reads, and returns the
+    // dirty cells that wait for none
+    private ArrayList<Cell> prepareDirty() {
+        readClock();
+        ArrayList<Cell> dirty = collectDirty();
+        changed.clear();
+        ArrayList<Cell> result = new ArrayList<>();
+        for (Cell cell : dirty) {
+            int pending = 0;
+            for (Cell reference : cell.references) {
+                if (reference.dirty) {
+                    pending++;
+                }
+            }
+            cell.pending = pending;
+            if (pending == 0) {
+                result.add(cell);
+            }
+        }
+        return result;
+    }
+
+    // the dirty cells split in levels: a cell comes in the level after the
+    // last of the dirty cells it reads
+    private ArrayList<ArrayList<Cell>> dirtyLevels() {
+        ArrayList<ArrayList<Cell>> result = new ArrayList<>();
+        ArrayList<Cell> level = prepareDirty();
+        while (!level.isEmpty()) {
+            result.add(level);
+            ArrayList<Cell> nextLevel = new ArrayList<>();
+            for (Cell cell : level) {
+                for (Cell dependent : cell.dependents) {
+                    if (dependent.dirty && (--dependent.pending == 0)) {
+                        nextLevel.add(dependent);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+        return result;
+    }
+
+    // a new hour changes the formulas reading the clock
+    private void readClock() {
+        now = KAEvaluationContext.readClock(parser);
+        long hour = Math.floorDiv(now, 3600);
+        if (hour != clockHour) {
+            clockHour = hour;
+            for (Cell cell : cells) {
+                if ((cell.formula != null) && cell.formula.isTimeDependent()) {
+                    changed.add(cell);
+                }
+            }
+        }
+    }
+
+    // the changed cells and all the cells that depend on them
+    private ArrayList<Cell> collectDirty() {
+        ArrayList<Cell> result = new ArrayList<>();
+        ArrayDeque<Cell> toVisit = new ArrayDeque<>(changed);
+        while (!toVisit.isEmpty()) {
+            Cell cell = toVisit.poll();
+            if (!cell.dirty) {
+                cell.dirty = true;
+                result.add(cell);
+                toVisit.addAll(cell.dependents);
+            }
+        }
+        return result;
+    }
+
+    // evaluates the formula of a dirty cell, if it has one, and cleans it
+    private static boolean evaluate(final Cell cell, final long now) {
+        cell.dirty = false;
+        if (cell.formula == null) {
+            return false;
+        }
+        cell.error = null;
+        try {
+            if (cell.valueType == KAParserValueType.TYPE_FLOAT) {
+                KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+                cell.formula.evaluate(result, now);
+                cell.value = result.getDoubleValue();
+            } else {
+                KAParserCalculationStringResult result = new KAParserCalculationStringResult();
+                cell.formula.evaluateString(result, now);
+                cell.stringValue = result.getValue();
+            }
+        } catch (KAParserException e) {
+            cell.error = e;
+        }
+        return true;
+    }
+
+    private static final class Cell {
+
+        private final int slot;
+        // null while the cell has neither a value nor a formula
+        private KAParserValueType valueType;
+        private KACompiledFormula formula;
+        private double value;
+        private String stringValue = "";
+        private KAParserException error;
+        private final LinkedHashSet<Cell> references = new LinkedHashSet<>();
+        private final LinkedHashSet<Cell> dependents = new LinkedHashSet<>();
+        private boolean dirty;
+        // the dirty cells read by this one that are not calculated yet
+        private int pending;
+
+        Cell(final int slot) {
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A range of the cells of a level calculated by a fork/join pool, split in
+     * halves down to chunks of chunkSize cells at most. The cells of a level
+     * do not read each other and every chunk writes only its own cells, so the
+     * values need no locks: the next level reads them after joining.
+     */
+    private static final class LevelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Cell> cells;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final long now;
+
+        LevelTask(final ArrayList<Cell> cells, final int from, final int to, final int chunkSize, final long now) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.now = now;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    evaluate(cells.get(i), now);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LevelTask(cells, from, middle, chunkSize, now),
+                        new LevelTask(cells, middle, to, chunkSize, now));
+            }
+        }
+    }
+
+    /**
+     * The cells as seen by the formulas: every name has the slot of its cell,
+     * which has a value only when it is defined and has no error.
+     */
+    private final class CellProvider implements KAPrimitiveDataProvider {
+
+        @Override
+        public int resolve(final String name) {
+            return cell(name).slot;
+        }
+
+        @Override
+        public boolean tryGetDouble(final Object sender, final int slot, KAParserCalculationDoubleResult value) {
+            Cell cell = cells.get(slot);
+            if ((cell.valueType != KAParserValueType.TYPE_FLOAT) || (cell.error != null)) {
+                return false;
+            }
+            value.setValue(cell.value);
+            return true;
+        }
+
+        @Override
+        public boolean tryGetString(final Object sender, final int slot, KAParserCalculationStringResult value) {
+            Cell cell = cells.get(slot);
+            if ((cell.valueType != KAParserValueType.TYPE_STRING) || (cell.error != null)) {
+                return false;
+            }
+            value.setValue(cell.stringValue);
+            return true;
+        }
+    }
+}
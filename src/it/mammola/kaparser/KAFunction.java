@@ -0,0 +1,105 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * A function that can be used in the formulas, registered in KAParser with
+ * registerFunction. The built-in functions are implemented the same way.
+ *
+ * The function calculates either a number (calculate) or a string
+ * (calculateString), as stated by its value type; a name can be registered
+ * once for each value type. Names are case insensitive. The parameters
+ * count is checked against the minimum and the maximum before the function
+ * is called.
+ *
+ * A pure function always gives the same result for the same parameters,
+ * without looking at anything else (the current time, the data providers...).
+ */
+public abstract class KAFunction {
+
+    public static final int UNLIMITED_PARAMETERS = Integer.MAX_VALUE;
+
+    private final String name;
+    private final KAParserValueType valueType;
+    private final int minParameters;
+    private final int maxParameters;
+    private final boolean pure;
+    private volatile KAParserFunctionHelp help;
+
+    protected KAFunction(final String name, final KAParserValueType valueType, final int minParameters,
+            final int maxParameters, final boolean pure) {
+        if ((name == null) || name.isEmpty()) {
+            throw new IllegalArgumentException("The name of the function is missing");
+        }
+        if ((minParameters < 0) || (maxParameters < minParameters)) {
+            throw new IllegalArgumentException("Wrong parameters count for function " + name);
+        }
+        this.name = name;
+        this.valueType = valueType;
+        this.minParameters = minParameters;
+        this.maxParameters = maxParameters;
+        this.pure = pure;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public KAParserValueType getValueType() {
+        return valueType;
+    }
+
+    public int getMinParameters() {
+        return minParameters;
+    }
+
+    public int getMaxParameters() {
+        return maxParameters;
+    }
+
+    public boolean isPure() {
+        return pure;
+    }
+
+    public KAParserFunctionHelp getHelp() {
+        return help;
+    }
+
+    public void setHelp(KAParserFunctionHelp help) {
+        this.help = help;
+    }
+
+    /**
+     * The kind of value calculated from the parameter at the given index,
+     * by default the value type of the function. If null the parameter is
+     * never calculated and only its text is available.
+     */
+    public KAParserValueType getParameterType(final int index) {
+        return valueType;
+    }
+
+    /**
+     * The numeric result of a function whose value type is TYPE_FLOAT. By
+     * default it raises FUNCTION_ERROR, as calculateString does for a
+     * function of TYPE_STRING.
+     */
+    public double calculate(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+        arguments.raiseError(KAErrorType.FUNCTION_ERROR, name);
+        return 0;
+    }
+
+    public String calculateString(final KAParser sender, final KAFunctionArguments arguments) throws KAParserException {
+        arguments.raiseError(KAErrorType.FUNCTION_ERROR, name);
+        return "";
+    }
+}
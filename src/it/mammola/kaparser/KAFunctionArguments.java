@@ -0,0 +1,103 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parameters of a function call, as seen by the function implementation.
+ * A parameter is calculated every time it is asked for, so a function
+ * calculates only the parameters it needs.
+ */
+public abstract class KAFunctionArguments {
+
+    KAFunctionArguments() {
+    }
+
+    public abstract int size();
+
+    /**
+     * The text of the parameter, as written in the formula.
+     */
+    public abstract String getText(final int index);
+
+    /**
+     * The texts of all the parameters, as written in the formula.
+     */
+    public List<String> getTexts() {
+        List<String> result = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            result.add(getText(i));
+        }
+        return result;
+    }
+
+    public double getDouble(final int index) throws KAParserException {
+        return getDouble(index, 0.0);
+    }
+
+    public String getString(final int index) throws KAParserException {
+        return getString(index, "");
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * The instant of the clock of the configuration, to the second, read
+     * once for the whole evaluation (or batch): every call to now, today and
+     * the functions of the current time sees the same one.
+     */
+    public Instant getNow() {
+        return Instant.ofEpochSecond(getNowEpochSecond());
+    }
+
+    /**
+     * The decimal numbers the parser compared the values with when the
+     * evaluation started: the same for the whole evaluation (or batch), even
+     * if the parser is configured again meanwhile.
+     */
+    public abstract int getDecimalNumbers();
+
+    /**
+     * The zone of the dates, as the parser had it when the evaluation
+     * started.
+     */
+    public abstract ZoneId getZone();
+
+    /**
+     * Raises an error on the function call, reporting the formula and the
+     * position of the call.
+     */
+    public abstract void raiseError(final KAErrorType errorType, final String errorMessage) throws KAParserException;
+
+    // the parameter is calculated starting from an incoming value, as the
+    // terms of the formulas are: some built-in functions depend on it
+    abstract double getDouble(final int index, final double incoming) throws KAParserException;
+
+    abstract String getString(final int index, final String incoming) throws KAParserException;
+
+    abstract long getNowEpochSecond();
+
+    // the calendar of the zone of the evaluation
+    abstract KACalendar getCalendar();
+
+    // the value the call itself received
+    abstract double getIncoming();
+
+    abstract String getIncomingString();
+}
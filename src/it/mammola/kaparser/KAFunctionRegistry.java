@@ -0,0 +1,85 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The functions known by a parser, hashed by their lowercase name. A
+ * registry is never changed once published: registering a function creates
+ * a new one, so it can be read by many threads without locks.
+ */
+final class KAFunctionRegistry {
+
+    private static final KAFunctionRegistry BUILTINS = new KAFunctionRegistry(new HashMap<String, KAFunction[]>())
+            .with(KABuiltinFunctions.getFunctions());
+
+    private final HashMap<String, KAFunction[]> functions;
+
+    private KAFunctionRegistry(final HashMap<String, KAFunction[]> functions) {
+        this.functions = functions;
+    }
+
+    static KAFunctionRegistry builtins() {
+        return BUILTINS;
+    }
+
+    KAFunctionRegistry with(final List<KAFunction> newFunctions) {
+        HashMap<String, KAFunction[]> result = new HashMap<>();
+        for (Map.Entry<String, KAFunction[]> entry : functions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().clone());
+        }
+        for (KAFunction function : newFunctions) {
+            String key = function.getName().toLowerCase(Locale.ROOT);
+            KAFunction[] byValueType = result.get(key);
+            if (byValueType == null) {
+                byValueType = new KAFunction[KAParserValueType.values().length];
+                result.put(key, byValueType);
+            }
+            byValueType[function.getValueType().ordinal()] = function;
+        }
+        return new KAFunctionRegistry(result);
+    }
+
+    /**
+     * True if the name is a function of any value type.
+     */
+    boolean isFunction(final String name) {
+        return functions.containsKey(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The function with the given name calculating the given value type, or
+     * null.
+     */
+    KAFunction get(final String name, final KAParserValueType valueType) {
+        KAFunction[] byValueType = functions.get(name.toLowerCase(Locale.ROOT));
+        return (byValueType != null) ? byValueType[valueType.ordinal()] : null;
+    }
+
+    List<KAFunction> getFunctions() {
+        ArrayList<KAFunction> result = new ArrayList<>();
+        for (KAFunction[] byValueType : functions.values()) {
+            for (KAFunction function : byValueType) {
+                if (function != null) {
+                    result.add(function);
+                }
+            }
+        }
+        return result;
+    }
+}
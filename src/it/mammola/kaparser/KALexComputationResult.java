@@ -13,20 +13,26 @@
 package it.mammola.kaparser;
 
 public class KALexComputationResult {
-private Boolean valueIsInteger;
-    private Boolean valueIsDouble;
-    private Boolean valueIsUndefined;
+    private boolean valueIsInteger;
+    private boolean valueIsDouble;
+    private boolean valueIsUndefined;
 
-    private Integer intValue;
+    private long intValue;
     private double doubleValue;
     private String stringValue;
     private KAToken token;
 
-    public Integer getIntValue() {
+    // an identifier is kept as its bounds in the formula until its text is
+    // asked for
+    private String source;
+    private int sourceStart;
+    private int sourceEnd;
+
+    public long getIntValue() {
         return intValue;
     }
 
-    public void setIntValue(Integer intValue) {
+    public void setIntValue(long intValue) {
         this.intValue = intValue;
     }
 
@@ -39,11 +45,16 @@ private Boolean valueIsInteger;
     }
 
     public String getStringValue() {
+        if (source != null) {
+            stringValue = source.substring(sourceStart, sourceEnd);
+            source = null;
+        }
         return stringValue;
     }
 
     public void setStringValue(String stringValue) {
         this.stringValue = stringValue;
+        this.source = null;
     }
 
     public KAToken getToken() {
@@ -56,22 +67,23 @@ private Boolean valueIsInteger;
 
     public void clear() {
         valueIsUndefined = true;
+        source = null;
         token = KAToken.TOKEN_UNDEFINED;
     }
 
-    public Boolean isInteger() {
+    public boolean isInteger() {
         return valueIsInteger;
     }
 
-    public Boolean isString() {
+    public boolean isString() {
         return (!valueIsDouble) && (!valueIsInteger) && (!valueIsUndefined);
     }
 
-    public Boolean isDouble() {
+    public boolean isDouble() {
         return valueIsDouble;
     }
 
-    public void setInteger(final Integer aValue) {
+    public void setInteger(final long aValue) {
         valueIsDouble = false;
         valueIsUndefined = false;
         valueIsInteger = true;
@@ -79,7 +91,7 @@ private Boolean valueIsInteger;
         intValue = aValue;
     }
 
-    public void setDouble(final Double aValue) {
+    public void setDouble(final double aValue) {
         valueIsDouble = true;
         valueIsUndefined = false;
         valueIsInteger = false;
@@ -93,5 +105,20 @@ private Boolean valueIsInteger;
         valueIsInteger = false;
         token = KAToken.TOKEN_STRING;
         stringValue = aValue;
-    }    
+        source = null;
+    }
+
+    /**
+     * An identifier made of the characters of source from start (inclusive)
+     * to end (exclusive).
+     */
+    public void setIdentifier(final String source, final int start, final int end) {
+        valueIsDouble = false;
+        valueIsUndefined = false;
+        valueIsInteger = false;
+        token = KAToken.TOKEN_IDENTIFIER;
+        this.source = source;
+        sourceStart = start;
+        sourceEnd = end;
+    }
 }
@@ -12,17 +12,28 @@
  */
 package it.mammola.kaparser;
 
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
 public class KALexStatus {
     private String formula;
-    private Integer charIndex;
-    private Integer lenFormula;
+    private char[] chars;
+    private int charIndex;
+    private int lenFormula;
+    private boolean argumentSeparator;
+    private KAParserConfiguration configuration;
+    private final Set<String> references = new LinkedHashSet<>();
+    private KANode.Interner interner;
+    private Map<String, Integer> columnSlots;
+    private boolean timeDependent;
 
-    public Boolean isEof() {
+    public boolean isEof() {
         return charIndex >= lenFormula;
     }
 
     public char currentChar() {
-        return formula.charAt(charIndex);
+        return chars[charIndex];
     }
 
     public void advance() {
@@ -39,11 +50,95 @@ public class KALexStatus {
 
     public void setFormula(String value) {
         formula = value;
-        lenFormula = formula.length();
+        chars = formula.toCharArray();
+        lenFormula = chars.length;
         charIndex = 0;
     }
 
-    public Integer getCharIndex() {
+    // the characters of the formula, read directly by the lexer
+    char[] getChars() {
+        return chars;
+    }
+
+    public int getCharIndex() {
         return charIndex;
-    }    
+    }
+
+    public void setCharIndex(int value) {
+        charIndex = value;
+    }
+
+    /**
+     * True while the parameters of a function call are lexed: ',' separates
+     * them instead of being a decimal separator.
+     */
+    public boolean isArgumentSeparator() {
+        return argumentSeparator;
+    }
+
+    public void setArgumentSeparator(boolean value) {
+        argumentSeparator = value;
+    }
+
+    // the configuration of the parser when the formula started to be
+    // compiled, used for the whole formula
+    KAParserConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    void setConfiguration(KAParserConfiguration value) {
+        configuration = value;
+    }
+
+    // the identifiers whose values are read by the formula, in the order they
+    // were compiled
+    Set<String> getReferences() {
+        return references;
+    }
+
+    void addReference(String value) {
+        references.add(value);
+    }
+
+    // the nodes shared with the other formulas of a KAFormulaSet, or null
+    KANode.Interner getInterner() {
+        return interner;
+    }
+
+    void setInterner(KANode.Interner value) {
+        interner = value;
+    }
+
+    // the slots of the identifiers in the columns of a batch, numbered from 0
+    // for the formula, or for all the formulas of a KAFormulaSet; null for
+    // a parameter of a user function, whose columns are found by name
+    void setColumnSlots(Map<String, Integer> value) {
+        columnSlots = value;
+    }
+
+    int columnSlot(String identifier) {
+        if (columnSlots == null) {
+            return KAEvaluationContext.NO_COLUMN;
+        }
+        Integer result = columnSlots.get(identifier);
+        if (result == null) {
+            result = columnSlots.size();
+            columnSlots.put(identifier, result);
+        }
+        return result;
+    }
+
+    // how many slots the columns need
+    int getColumnCount() {
+        return (columnSlots != null) ? columnSlots.size() : 0;
+    }
+
+    // true once the formula reads the clock
+    boolean isTimeDependent() {
+        return timeDependent;
+    }
+
+    void setTimeDependent(boolean value) {
+        timeDependent = value;
+    }
 }
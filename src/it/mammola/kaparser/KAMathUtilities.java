@@ -16,9 +16,39 @@ import java.math.BigDecimal;
 
 public class KAMathUtilities {
         public static final Integer DEFAULT_DECIMAL_NUMBERS = 5;
-    
+
+    private static final int DECIMAL_NUMBERS = DEFAULT_DECIMAL_NUMBERS;
+
+    // the powers of ten a double holds exactly
+    private static final double[] POWERS_OF_TEN = new double[23];
+    // the largest difference of two equal doubles, for 0..EPSILONS.length - 1
+    // decimal numbers
+    private static final double[] EPSILONS = new double[20];
+
+    static {
+        double power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+        for (int i = 0; i < EPSILONS.length; i++) {
+            EPSILONS[i] = epsilon(i);
+        }
+    }
 
     public static double roundTo(double unrounded, int precision, int roundingMode) {
+        // the decimal of Double.toString(unrounded) is rounded: unless its
+        // scaled value is close to a tie, the nearest integer to the scaled
+        // double is the one of the decimal
+        if ((precision >= 0) && (precision < POWERS_OF_TEN.length) && ((roundingMode == BigDecimal.ROUND_HALF_EVEN)
+                || (roundingMode == BigDecimal.ROUND_HALF_UP) || (roundingMode == BigDecimal.ROUND_HALF_DOWN))) {
+            double scaled = unrounded * POWERS_OF_TEN[precision];
+            if (Math.abs(scaled - Math.floor(scaled) - 0.5) > 4 * Math.ulp(scaled)) {
+                double rounded = Math.rint(scaled);
+                // as BigDecimal, there is no negative zero
+                return (rounded == 0) ? 0.0 : rounded / POWERS_OF_TEN[precision];
+            }
+        }
         BigDecimal bd = new BigDecimal(Double.toString(unrounded));
         BigDecimal rounded = bd.setScale(precision, roundingMode);
         return rounded.doubleValue();
@@ -29,59 +59,99 @@ public class KAMathUtilities {
     }
 
     public static Boolean doublesAreEqual(Double aValue1, Double aValue2, Integer decimalNumbers) {
-        Double compareValue = Math.pow(10.0, -1.0 * decimalNumbers) - Math.pow(10.0, -1.0 * (decimalNumbers + 1))
-                - Math.pow(10.0, -1.0 * (decimalNumbers + 2.0));
-        return Math.abs(aValue1 - aValue2) <= compareValue;
+        return isEqual(aValue1, aValue2, decimalNumbers);
     }
 
     public static Boolean doublesAreEqual(Double aValue1, Double aValue2) {
-        return doublesAreEqual(aValue1, aValue2, DEFAULT_DECIMAL_NUMBERS);
+        return isEqual(aValue1, aValue2, DECIMAL_NUMBERS);
     }
-    
+
     public static Boolean doubleIsEqualOrGreater(Double aValue1, Double aValue2, Integer aDecimalNumbers) {
-        return doublesAreEqual(aValue1, aValue2, aDecimalNumbers) || (aValue1 > aValue2);
+        return isEqualOrGreater(aValue1, aValue2, aDecimalNumbers);
     }
-    
+
     public static Boolean doubleIsEqualOrGreater(Double aValue1, Double aValue2) {
-        return doubleIsEqualOrGreater(aValue1, aValue2, DEFAULT_DECIMAL_NUMBERS);
+        return isEqualOrGreater(aValue1, aValue2, DECIMAL_NUMBERS);
     }
-        
+
     public static Boolean doubleIsEqualOrLessThan(Double aValue1, Double aValue2, Integer aDecimalNumbers) {
-        return doublesAreEqual(aValue1, aValue2, aDecimalNumbers) || (aValue1 < aValue2);
+        return isEqualOrLessThan(aValue1, aValue2, aDecimalNumbers);
     }
 
     public static Boolean doubleIsEqualOrLessThan(Double aValue1, Double aValue2) {
-        return doubleIsEqualOrLessThan(aValue1, aValue2, DEFAULT_DECIMAL_NUMBERS);
+        return isEqualOrLessThan(aValue1, aValue2, DECIMAL_NUMBERS);
     }
-    
+
     public static Boolean doubleIsGreater(Double aValue1, Double aValue2, Integer aDecimalNumbers) {
-        return (! doublesAreEqual(aValue1, aValue2, aDecimalNumbers)) && (aValue1 > aValue2);
+        return isGreater(aValue1, aValue2, aDecimalNumbers);
     }
 
 
     public static Boolean doubleIsGreater(Double aValue1, Double aValue2) {
-        return doubleIsGreater(aValue1, aValue2, DEFAULT_DECIMAL_NUMBERS);
+        return isGreater(aValue1, aValue2, DECIMAL_NUMBERS);
     }
-    
+
     public static Boolean doubleIsLessThan(Double aValue1, Double aValue2, Integer aDecimalNumbers) {
-        return (! doublesAreEqual(aValue1, aValue2, aDecimalNumbers)) && (aValue1 < aValue2);
+        return isLessThan(aValue1, aValue2, aDecimalNumbers);
     }
 
-    
+
     public static Boolean doubleIsLessThan(Double aValue1, Double aValue2) {
-        return doubleIsLessThan(aValue1, aValue2, DEFAULT_DECIMAL_NUMBERS);
+        return isLessThan(aValue1, aValue2, DECIMAL_NUMBERS);
     }
 
 
     public static Double safeDiv(Double numer, Double denom) {
+        return safeDivide(numer, denom);
+    }
+
+    public static Boolean doubleIsInteger(Double value) {
+        return (value != null) && isInteger(value);
+    }
+
+    // the same comparisons on primitive doubles, with no boxing, for the
+    // nodes and the built-in functions
+
+    static boolean isEqual(final double aValue1, final double aValue2, final int decimalNumbers) {
+        double compareValue = ((decimalNumbers >= 0) && (decimalNumbers < EPSILONS.length))
+                ? EPSILONS[decimalNumbers] : epsilon(decimalNumbers);
+        return Math.abs(aValue1 - aValue2) <= compareValue;
+    }
+
+    static boolean isEqual(final double aValue1, final double aValue2) {
+        return isEqual(aValue1, aValue2, DECIMAL_NUMBERS);
+    }
+
+    static boolean isEqualOrGreater(final double aValue1, final double aValue2, final int aDecimalNumbers) {
+        return isEqual(aValue1, aValue2, aDecimalNumbers) || (aValue1 > aValue2);
+    }
+
+    static boolean isEqualOrLessThan(final double aValue1, final double aValue2, final int aDecimalNumbers) {
+        return isEqual(aValue1, aValue2, aDecimalNumbers) || (aValue1 < aValue2);
+    }
+
+    static boolean isGreater(final double aValue1, final double aValue2, final int aDecimalNumbers) {
+        return (! isEqual(aValue1, aValue2, aDecimalNumbers)) && (aValue1 > aValue2);
+    }
+
+    static boolean isLessThan(final double aValue1, final double aValue2, final int aDecimalNumbers) {
+        return (! isEqual(aValue1, aValue2, aDecimalNumbers)) && (aValue1 < aValue2);
+    }
+
+    static double safeDivide(final double numer, final double denom) {
         if (denom == 0) {
             return 0.0;
         } else {
             return numer / denom;
         }
     }
-    
-    public static Boolean doubleIsInteger(Double value) {
-        return (value != null) && (!Double.isInfinite(value)) && (KAMathUtilities.doublesAreEqual(value, Math.floor(value)));
+
+    static boolean isInteger(final double value) {
+        return (!Double.isInfinite(value)) && isEqual(value, Math.floor(value));
+    }
+
+    private static double epsilon(final int decimalNumbers) {
+        return Math.pow(10.0, -1.0 * decimalNumbers) - Math.pow(10.0, -1.0 * (decimalNumbers + 1))
+                - Math.pow(10.0, -1.0 * (decimalNumbers + 2.0));
     }
 }
@@ -0,0 +1,1056 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A node of a compiled formula.
+ *
+ * Every term is calculated into a result that may already hold a value (the
+ * unary + and -, for instance, are applied to it), so a node receives that
+ * incoming value and returns the new one.
+ */
+abstract class KANode {
+
+    // a node is calculated only with the value type it was compiled for: a
+    // parameter asked for with the other one is compiled again for it (see
+    // FunctionCall.node), so these are never reached from a formula
+    double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+        context.raiseError(KAErrorType.FUNCTION_ERROR, "", -1);
+        return incoming;
+    }
+
+    String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+        context.raiseError(KAErrorType.FUNCTION_ERROR, "", -1);
+        return incoming;
+    }
+
+    // the key of a node that the formulas of a KAFormulaSet can share, or
+    // null: its result depends only on the incoming value, on the values of
+    // the row and on its children, compared by identity as they are already
+    // shared
+    Object shareKey() {
+        return null;
+    }
+
+    static double booleanToFloat(final boolean aValue) {
+        if (aValue) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    // the text of a function parameter, from the bounds stored when the
+    // formula was parsed
+    static String parameterText(final String formula, final int[] bounds, final int index) {
+        return formula.substring(bounds[index * 2], bounds[index * 2 + 1]).trim();
+    }
+
+    // the function called by a node that is a single call to a function of
+    // the data providers or to a user function, otherwise null
+    static String calledFunction(final KANode node) {
+        if (node instanceof UserFunction) {
+            return ((UserFunction) node).function;
+        } else if (node instanceof StringFunction) {
+            return ((StringFunction) node).function;
+        } else {
+            return null;
+        }
+    }
+
+    static KANode sequence(final List<KANode> nodes) {
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        } else {
+            return new Sequence(nodes.toArray(new KANode[nodes.size()]));
+        }
+    }
+
+    static KANode chain(final KANode first, final List<KAToken> operators, final List<KANode> operands) {
+        if (operators.isEmpty()) {
+            return first;
+        } else {
+            return new Chain(first, operators.toArray(new KAToken[operators.size()]),
+                    operands.toArray(new KANode[operands.size()]));
+        }
+    }
+
+    // ------------ common nodes
+
+    /**
+     * Expressions separated by ';': each one is calculated into the same result.
+     */
+    static final class Sequence extends KANode {
+
+        private final KANode[] nodes;
+
+        Sequence(final KANode[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            double value = incoming;
+            for (KANode node : nodes) {
+                value = node.evaluate(value, context);
+            }
+            return value;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            String value = incoming;
+            for (KANode node : nodes) {
+                value = node.evaluateString(value, context);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A function parameter that could not be compiled: the error is raised
+     * only if the parameter is actually calculated.
+     */
+    static final class Failure extends KANode {
+
+        private final KAParserException error;
+
+        Failure(final KAParserException error) {
+            this.error = error;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            context.raiseError(error);
+            return incoming;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            context.raiseError(error);
+            return incoming;
+        }
+    }
+
+    /**
+     * The parameters of a compiled function call, bound to an evaluation.
+     */
+    static final class Arguments extends KAFunctionArguments {
+
+        private final FunctionCall call;
+        private final KAEvaluationContext context;
+        private final double incoming;
+        private final String incomingString;
+
+        Arguments(final FunctionCall call, final KAEvaluationContext context, final double incoming,
+                final String incomingString) {
+            this.call = call;
+            this.context = context;
+            this.incoming = incoming;
+            this.incomingString = incomingString;
+        }
+
+        @Override
+        public int size() {
+            return call.arguments.length;
+        }
+
+        @Override
+        public String getText(final int index) {
+            return parameterText(call.formula, call.bounds, index);
+        }
+
+        @Override
+        public void raiseError(final KAErrorType errorType, final String errorMessage) throws KAParserException {
+            if (errorMessage != null) {
+                context.raiseError(errorType, errorMessage, call.formula, call.position);
+            } else {
+                context.raiseError(errorType, call.formula, call.position);
+            }
+        }
+
+        @Override
+        double getDouble(final int index, final double incoming) throws KAParserException {
+            return call.node(index, KAParserValueType.TYPE_FLOAT, context).evaluate(incoming, context);
+        }
+
+        @Override
+        String getString(final int index, final String incoming) throws KAParserException {
+            return call.node(index, KAParserValueType.TYPE_STRING, context).evaluateString(incoming, context);
+        }
+
+        @Override
+        long getNowEpochSecond() {
+            return context.getNow();
+        }
+
+        @Override
+        public int getDecimalNumbers() {
+            return context.getDecimalNumbers();
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return context.getZone();
+        }
+
+        @Override
+        KACalendar getCalendar() {
+            return context.getCalendar();
+        }
+
+        @Override
+        double getIncoming() {
+            return incoming;
+        }
+
+        @Override
+        String getIncomingString() {
+            return incomingString;
+        }
+    }
+
+    /**
+     * The parameters of a call to a user function, kept by its node. As the
+     * data providers alone know whether they read a parameter as a number or
+     * as a string, a parameter is compiled the first time it is asked for
+     * with a value type, then reused by all the following calls.
+     */
+    static final class UserParameters {
+
+        private final List<String> texts;
+        private final AtomicReferenceArray<KANode> numeric;
+        private final AtomicReferenceArray<KANode> strings;
+        // the value types the provider reads the parameters with, as far as
+        // the calls of this node know
+        private volatile KAParserValueType[] types;
+
+        UserParameters(final List<String> texts) {
+            this.texts = texts;
+            this.numeric = new AtomicReferenceArray<>(texts.size());
+            this.strings = new AtomicReferenceArray<>(texts.size());
+        }
+
+        // a single string parameter, already compiled
+        UserParameters(final String text, final KANode string) {
+            this(Collections.singletonList(text));
+            strings.set(0, string);
+        }
+
+        List<String> getTexts() {
+            return texts;
+        }
+
+        // threads compiling the same parameter at once get equal nodes, so
+        // any of them can be kept
+        KANode get(final int index, final KAParserValueType valueType, final KAParser parser) {
+            AtomicReferenceArray<KANode> nodes = (valueType == KAParserValueType.TYPE_STRING) ? strings : numeric;
+            KANode result = nodes.get(index);
+            if (result == null) {
+                result = parser.compileParameter(texts.get(index), valueType);
+                nodes.set(index, result);
+            }
+            return result;
+        }
+
+        // until the provider reads it, a parameter is a string if it is
+        // already compiled as one or if it does not compile as a number
+        KAParserValueType[] getTypes(final KAParser parser) {
+            KAParserValueType[] result = types;
+            if (result == null) {
+                result = new KAParserValueType[texts.size()];
+                for (int i = 0; i < result.length; i++) {
+                    if ((strings.get(i) != null) || (get(i, KAParserValueType.TYPE_FLOAT, parser) instanceof Failure)) {
+                        result[i] = KAParserValueType.TYPE_STRING;
+                    } else {
+                        result[i] = KAParserValueType.TYPE_FLOAT;
+                    }
+                }
+                types = result;
+            }
+            return result;
+        }
+
+        // the array is replaced, never changed, as other threads may read it
+        void setType(final int index, final KAParserValueType valueType) {
+            KAParserValueType[] result = types.clone();
+            result[index] = valueType;
+            types = result;
+        }
+    }
+
+    /**
+     * The parameters of a call to a user function, bound to an evaluation.
+     * For a pure function the values of all the parameters are calculated
+     * once, before the call, as the key of its result (evaluateAll); the
+     * provider then reads those same values. A parameter the provider reads
+     * with another value type is calculated when it is read, and the result
+     * of that call is not kept.
+     */
+    static final class UserArguments extends KAFunctionArguments {
+
+        private final UserParameters parameters;
+        private final String formula;
+        private final int position;
+        private final KAEvaluationContext context;
+        private final double incoming;
+        private final String incomingString;
+        // the types and the values of the key, if calculated
+        private KAParserValueType[] types;
+        private List<Object> values;
+        private boolean keyed;
+
+        UserArguments(final UserParameters parameters, final String formula, final int position,
+                final KAEvaluationContext context, final double incoming, final String incomingString) {
+            this.parameters = parameters;
+            this.formula = formula;
+            this.position = position;
+            this.context = context;
+            this.incoming = incoming;
+            this.incomingString = incomingString;
+        }
+
+        @Override
+        public int size() {
+            return parameters.getTexts().size();
+        }
+
+        @Override
+        public String getText(final int index) {
+            return parameters.getTexts().get(index);
+        }
+
+        @Override
+        public List<String> getTexts() {
+            return parameters.getTexts();
+        }
+
+        @Override
+        public void raiseError(final KAErrorType errorType, final String errorMessage) throws KAParserException {
+            if (errorMessage != null) {
+                context.raiseError(errorType, errorMessage, formula, position);
+            } else {
+                context.raiseError(errorType, formula, position);
+            }
+        }
+
+        @Override
+        double getDouble(final int index, final double incoming) throws KAParserException {
+            if (read(index, KAParserValueType.TYPE_FLOAT) && (incoming == 0.0)) {
+                return (Double) values.get(index);
+            }
+            keyed = false;
+            return parameters.get(index, KAParserValueType.TYPE_FLOAT, context.getParser())
+                    .evaluate(incoming, context);
+        }
+
+        @Override
+        String getString(final int index, final String incoming) throws KAParserException {
+            if (read(index, KAParserValueType.TYPE_STRING) && incoming.isEmpty()) {
+                return (String) values.get(index);
+            }
+            keyed = false;
+            return parameters.get(index, KAParserValueType.TYPE_STRING, context.getParser())
+                    .evaluateString(incoming, context);
+        }
+
+        // the values of all the parameters, each one calculated with the type
+        // the provider last read it with at this call: the key of the result.
+        // Null if a parameter fails, as the call is then calculated anyway
+        List<Object> evaluateAll() {
+            types = parameters.getTypes(context.getParser());
+            List<Object> result = new ArrayList<>(types.length);
+            try {
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == KAParserValueType.TYPE_FLOAT) {
+                        result.add(parameters.get(i, KAParserValueType.TYPE_FLOAT, context.getParser())
+                                .evaluate(0.0, context));
+                    } else {
+                        result.add(parameters.get(i, KAParserValueType.TYPE_STRING, context.getParser())
+                                .evaluateString("", context));
+                    }
+                }
+            } catch (KAParserException e) {
+                return null;
+            }
+            values = result;
+            keyed = true;
+            return result;
+        }
+
+        // whether the provider read only the values of the key, so that its
+        // result can be kept under it
+        boolean isKeyed() {
+            return keyed;
+        }
+
+        // whether the parameter has its value in the key with this type; the
+        // type read is remembered for the next calls
+        private boolean read(final int index, final KAParserValueType valueType) {
+            if (types == null) {
+                return false;
+            }
+            if (types[index] != valueType) {
+                parameters.setType(index, valueType);
+                return false;
+            }
+            return values != null;
+        }
+
+        @Override
+        long getNowEpochSecond() {
+            return context.getNow();
+        }
+
+        @Override
+        public int getDecimalNumbers() {
+            return context.getDecimalNumbers();
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return context.getZone();
+        }
+
+        @Override
+        KACalendar getCalendar() {
+            return context.getCalendar();
+        }
+
+        @Override
+        double getIncoming() {
+            return incoming;
+        }
+
+        @Override
+        String getIncomingString() {
+            return incomingString;
+        }
+    }
+
+    // ------------ common subexpressions
+
+    /**
+     * A subexpression of the formulas of a KAFormulaSet. If it is used more
+     * than once it has a slot, and it is calculated once for each row and
+     * incoming value: the other uses read the value kept by the context.
+     */
+    static final class Shared extends KANode {
+
+        private final KANode node;
+        // both set while the set is compiled
+        private int uses = 1;
+        private int slot = -1;
+
+        Shared(final KANode node) {
+            this.node = node;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            if ((slot < 0) || !context.hasShared(slot, incoming)) {
+                double value = node.evaluate(incoming, context);
+                if (slot >= 0) {
+                    context.setShared(slot, incoming, value);
+                }
+                return value;
+            }
+            return context.getShared(slot);
+        }
+
+        // the string values are not kept
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            return node.evaluateString(incoming, context);
+        }
+    }
+
+    /**
+     * The nodes of the formulas of a KAFormulaSet, compiled bottom up: a node
+     * equal to one already compiled is replaced by it. The constants are
+     * shared only to find the equal nodes using them.
+     */
+    static final class Interner {
+
+        private final HashMap<Object, KANode> nodes = new HashMap<>();
+
+        KANode intern(final KANode node) {
+            Object key = node.shareKey();
+            if (key == null) {
+                return node;
+            }
+            KANode result = nodes.get(key);
+            if (result == null) {
+                result = (node instanceof Constant) ? node : new Shared(node);
+                nodes.put(key, result);
+            } else if (result instanceof Shared) {
+                ((Shared) result).uses++;
+            }
+            return result;
+        }
+
+        // gives a slot to every node used more than once, returning how many
+        // they are
+        int assignSlots() {
+            int result = 0;
+            for (KANode node : nodes.values()) {
+                if ((node instanceof Shared) && (((Shared) node).uses > 1)) {
+                    ((Shared) node).slot = result++;
+                }
+            }
+            return result;
+        }
+    }
+
+    // ------------ double nodes
+
+    static final class Constant extends KANode {
+
+        private final double value;
+
+        Constant(final double value) {
+            this.value = value;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) {
+            return value;
+        }
+
+        @Override
+        Object shareKey() {
+            return Arrays.asList(Constant.class, value);
+        }
+    }
+
+    /**
+     * A left-associative run of binary operators of the same precedence level.
+     * The right operands are calculated one after the other into the same
+     * temporary result.
+     */
+    static final class Chain extends KANode {
+
+        private final KANode first;
+        private final KAToken[] operators;
+        private final KANode[] operands;
+
+        Chain(final KANode first, final KAToken[] operators, final KANode[] operands) {
+            this.first = first;
+            this.operators = operators;
+            this.operands = operands;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            double value = first.evaluate(incoming, context);
+            double operand = 0.0;
+            for (int i = 0; i < operators.length; i++) {
+                operand = operands[i].evaluate(operand, context);
+                value = apply(operators[i], value, operand, context.getDecimalNumbers());
+            }
+            return value;
+        }
+
+        @Override
+        Object shareKey() {
+            List<Object> result = new ArrayList<>();
+            result.add(Chain.class);
+            result.add(first);
+            Collections.addAll(result, operators);
+            Collections.addAll(result, operands);
+            return result;
+        }
+
+        private static double apply(final KAToken operator, final double value1, final double value2,
+                final int decimalNumbers) {
+            switch (operator) {
+                case TOKEN_OR:
+                    return (double) ((int) Math.floor(value1) | (int) Math.floor(value2));
+                case TOKEN_AND:
+                    return (double) ((int) Math.floor(value1) & (int) Math.floor(value2));
+                case TOKEN_XOR:
+                    return (double) ((int) Math.floor(value1) ^ (int) Math.floor(value2));
+                case TOKEN_LESS:
+                    return booleanToFloat(KAMathUtilities.isLessThan(value1, value2, decimalNumbers));
+                case TOKEN_LESS_EQUAL:
+                    return booleanToFloat(KAMathUtilities.isEqualOrLessThan(value1, value2, decimalNumbers));
+                case TOKEN_EQUAL:
+                    return booleanToFloat(KAMathUtilities.isEqual(value1, value2, decimalNumbers));
+                case TOKEN_NOT_EQUAL:
+                    return booleanToFloat(!KAMathUtilities.isEqual(value1, value2, decimalNumbers));
+                case TOKEN_GREATER_EQUAL:
+                    return booleanToFloat(KAMathUtilities.isEqualOrGreater(value1, value2, decimalNumbers));
+                case TOKEN_GREATER:
+                    return booleanToFloat(KAMathUtilities.isGreater(value1, value2, decimalNumbers));
+                case TOKEN_ADD:
+                    return value1 + value2;
+                case TOKEN_SUBTRACT:
+                    return value1 - value2;
+                case TOKEN_MULTIPLE:
+                    return value1 * value2;
+                case TOKEN_DIVIDE:
+                    return value1 / value2;
+                case TOKEN_MOD:
+                    return Math.floor(value1) % Math.floor(value2);
+                case TOKEN_PERCENT:
+                    return value1 * value2 / 100;
+                default:
+                    return value1;
+            }
+        }
+    }
+
+    static final class Unary extends KANode {
+
+        private final KAToken operator;
+        private final KANode operand;
+
+        Unary(final KAToken operator, final KANode operand) {
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            double value = operand.evaluate(0.0, context);
+            switch (operator) {
+                case TOKEN_NOT:
+                    return booleanToFloat(KAMathUtilities.isEqual(Math.floor(value), 0.0));
+                case TOKEN_INVERT:
+                    return (double) (~(int) (Math.floor(value)));
+                case TOKEN_ADD:
+                    return incoming + value;
+                case TOKEN_SUBTRACT:
+                    return incoming - value;
+                default:
+                    return incoming;
+            }
+        }
+
+        @Override
+        Object shareKey() {
+            return Arrays.asList(Unary.class, operator, operand);
+        }
+    }
+
+    static final class Power extends KANode {
+
+        private final KANode base;
+        private final KANode exponent;
+
+        Power(final KANode base, final KANode exponent) {
+            this.base = base;
+            this.exponent = exponent;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            double value = base.evaluate(incoming, context);
+            return Math.pow(value, exponent.evaluate(0.0, context));
+        }
+
+        @Override
+        Object shareKey() {
+            return Arrays.asList(Power.class, base, exponent);
+        }
+    }
+
+    /**
+     * The now and today constants, read from the clock of the evaluation.
+     */
+    static final class Now extends KANode {
+
+        private final boolean today;
+
+        Now(final boolean today) {
+            this.today = today;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) {
+            if (today) {
+                return KACalendar.toEpochHour(context.getNow());
+            } else {
+                return (double) (context.getNow() / 3600);
+            }
+        }
+
+        // the clock is read once for each evaluation
+        @Override
+        Object shareKey() {
+            return Arrays.asList(Now.class, today);
+        }
+    }
+
+    /**
+     * An identifier that is not an internal constant: a value of the batch
+     * being evaluated, found once for the batch by the slot of its column, or
+     * of the value providers, read by the slots resolved when the formula was
+     * compiled.
+     */
+    static final class Value extends KANode {
+
+        private final String identifier;
+        private final int column;
+        private final KAResolvedValue resolved;
+        private final String formula;
+        private final int position;
+
+        Value(final String identifier, final int column, final KAResolvedValue resolved, final String formula,
+                final int position) {
+            this.identifier = identifier;
+            this.column = column;
+            this.resolved = resolved;
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            KAColumnarBatch.Column values = context.getColumn(column, identifier);
+            if (values.hasDouble(context.getRow())) {
+                return values.getDouble(context.getRow());
+            }
+            KAParserCalculationDoubleResult tempValue = context.getValueResult();
+            tempValue.setValue(incoming);
+            if (!resolved.getValue(context.getParser(), tempValue)) {
+                context.raiseError(KAErrorType.FUNCTION_ERROR, identifier, formula, position);
+            }
+            return tempValue.getDoubleValue();
+        }
+
+        @Override
+        Object shareKey() {
+            return Arrays.asList(Value.class, identifier);
+        }
+    }
+
+    /**
+     * A call to a function of the registry, found when the formula was
+     * compiled, in both the numeric and the string flavour. The parameters
+     * that are never calculated have no node, only their text.
+     */
+    static final class FunctionCall extends KANode {
+
+        private final KAFunction function;
+        private final KANode[] arguments;
+        // the value type each parameter was compiled for
+        private final KAParserValueType[] types;
+        private final int[] bounds;
+        private final String formula;
+        private final int position;
+        // the parameters asked for with another value type, or never
+        // calculated, compiled when the function first asks for them
+        private volatile UserParameters recompiled;
+
+        FunctionCall(final KAFunction function, final KANode[] arguments, final int[] bounds, final String formula,
+                final int position) {
+            this.function = function;
+            this.arguments = arguments;
+            this.types = new KAParserValueType[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                types[i] = function.getParameterType(i);
+            }
+            this.bounds = bounds;
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            checkParametersCount(context);
+            return function.calculate(context.getParser(), new Arguments(this, context, incoming, ""));
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            checkParametersCount(context);
+            return function.calculateString(context.getParser(), new Arguments(this, context, 0.0, incoming));
+        }
+
+        // the parameter compiled for the value type: as the texts of the
+        // parameters were, one can be calculated as a number or as a string
+        // whatever its declared type
+        private KANode node(final int index, final KAParserValueType valueType, final KAEvaluationContext context) {
+            KANode result = arguments[index];
+            if ((result != null) && (types[index] == valueType)) {
+                return result;
+            }
+            UserParameters parameters = recompiled;
+            if (parameters == null) {
+                List<String> texts = new ArrayList<>(arguments.length);
+                for (int i = 0; i < arguments.length; i++) {
+                    texts.add(parameterText(formula, bounds, i));
+                }
+                parameters = new UserParameters(texts);
+                recompiled = parameters;
+            }
+            return parameters.get(index, valueType, context.getParser());
+        }
+
+        private void checkParametersCount(final KAEvaluationContext context) throws KAParserException {
+            if ((arguments.length < function.getMinParameters()) || (arguments.length > function.getMaxParameters())) {
+                context.raiseError(KAErrorType.WRONG_PARAM_COUNT, formula, position);
+            }
+        }
+
+        // a pure function, if all its parameters are calculated
+        @Override
+        Object shareKey() {
+            if (!function.isPure()) {
+                return null;
+            }
+            List<Object> result = new ArrayList<>();
+            result.add(FunctionCall.class);
+            result.add(function);
+            for (KANode argument : arguments) {
+                if (argument == null) {
+                    return null;
+                }
+                result.add(argument);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A call that always raises the same error when it is calculated: a
+     * function the registry knows only for the other value type, a range
+     * without its braces...
+     */
+    static final class CallError extends KANode {
+
+        private final KAErrorType errorType;
+        private final String formula;
+        private final int position;
+
+        CallError(final KAErrorType errorType, final String formula, final int position) {
+            this.errorType = errorType;
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            context.raiseError(errorType, formula, position);
+            return 0;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            context.raiseError(errorType, formula, position);
+            return "";
+        }
+    }
+
+    /**
+     * A built-in aggregate of a range, like sum(childs(NAME)), recognized when
+     * the formula was compiled: the data providers are asked for the range
+     * function and its internal function, both taken from the text once.
+     */
+    static final class RangeAggregate extends KANode {
+
+        private final KARangeAggregate aggregate;
+        private final String rangeFunction;
+        private final String argument;
+        private final String formula;
+        private final int position;
+
+        RangeAggregate(final KARangeAggregate aggregate, final String rangeFunction, final String argument,
+                final String formula, final int position) {
+            this.aggregate = aggregate;
+            this.rangeFunction = rangeFunction;
+            this.argument = argument;
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            KAParserCalculationDoubleResult result = new KAParserCalculationDoubleResult();
+            if (!context.getParser().doInternalRangeCalculate(aggregate, rangeFunction, argument, result)) {
+                context.raiseError(KAErrorType.FUNCTION_ERROR, formula, position);
+            }
+            return result.getDoubleValue();
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            KABuiltinFunctions.StringRange values = new KABuiltinFunctions.StringRange(aggregate);
+            if (!context.getParser().doInternalRangeStrCalculate(rangeFunction, argument, values)) {
+                context.raiseError(KAErrorType.FUNCTION_ERROR, formula, position);
+            }
+            return values.getResult();
+        }
+    }
+
+    /**
+     * A call to a function implemented by the data providers, in both the
+     * numeric and the string flavour.
+     */
+    static final class UserFunction extends KANode {
+
+        private final String function;
+        private final UserParameters parameters;
+        private final String formula;
+        private final int position;
+
+        UserFunction(final String function, final List<String> parameters, final String formula, final int position) {
+            this.function = function;
+            this.parameters = new UserParameters(parameters);
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        double evaluate(final double incoming, final KAEvaluationContext context) throws KAParserException {
+            return context.getParser().doUserFunction(context, function,
+                    new UserArguments(parameters, formula, position, context, incoming, ""), formula, position);
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            return context.getParser().doStrUserFunction(context, function,
+                    new UserArguments(parameters, formula, position, context, 0.0, incoming), formula, position);
+        }
+    }
+
+    // ------------ string nodes
+
+    static final class StringConstant extends KANode {
+
+        private final String value;
+
+        StringConstant(final String value) {
+            this.value = value;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) {
+            return value;
+        }
+    }
+
+    /**
+     * A term the string grammar skips: the result is left untouched.
+     */
+    static final class Unchanged extends KANode {
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) {
+            return incoming;
+        }
+    }
+
+    static final class Concatenation extends KANode {
+
+        private final KANode first;
+        private final KANode[] operands;
+
+        Concatenation(final KANode first, final KANode[] operands) {
+            this.first = first;
+            this.operands = operands;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            String value = first.evaluateString(incoming, context);
+            String operand = "";
+            for (KANode node : operands) {
+                operand = node.evaluateString(operand, context);
+                value = value + operand;
+            }
+            return value;
+        }
+    }
+
+    static final class StringValue extends KANode {
+
+        private final String identifier;
+        private final int column;
+        private final KAResolvedValue resolved;
+        private final String formula;
+        private final int position;
+
+        StringValue(final String identifier, final int column, final KAResolvedValue resolved, final String formula,
+                final int position) {
+            this.identifier = identifier;
+            this.column = column;
+            this.resolved = resolved;
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            KAColumnarBatch.Column values = context.getColumn(column, identifier);
+            if (values.hasString(context.getRow())) {
+                return values.getString(context.getRow());
+            }
+            KAParserCalculationStringResult tempValue = context.getStringValueResult();
+            tempValue.setValue(incoming);
+            if (!resolved.getStrValue(context.getParser(), tempValue)) {
+                context.raiseError(KAErrorType.FUNCTION_ERROR, identifier, formula, position);
+            }
+            return tempValue.getValue();
+        }
+    }
+
+    /**
+     * A string function with a single parameter that is not in the registry:
+     * a function of the data providers applied to the value of the parameter
+     * or, at last, a user function.
+     */
+    static final class StringFunction extends KANode {
+
+        private final String function;
+        private final KAResolvedValue resolved;
+        private final KANode argument;
+        private final UserParameters parameters;
+        private final String formula;
+        private final int position;
+
+        StringFunction(final String function, final KAResolvedValue resolved, final KANode argument,
+                final int[] bounds, final String formula, final int position) {
+            this.function = function;
+            this.resolved = resolved;
+            this.argument = argument;
+            this.parameters = new UserParameters(parameterText(formula, bounds, 0), argument);
+            this.formula = formula;
+            this.position = position;
+        }
+
+        @Override
+        String evaluateString(final String incoming, final KAEvaluationContext context) throws KAParserException {
+            KAParserCalculationStringResult tempValue = new KAParserCalculationStringResult();
+            tempValue.setValue(argument.evaluateString(incoming, context));
+            if (!resolved.getStrValue(context.getParser(), tempValue)) {
+                tempValue.setValue(context.getParser().doStrUserFunction(context, function,
+                        new UserArguments(parameters, formula, position, context, 0.0, incoming), formula, position));
+            }
+            return tempValue.getValue();
+        }
+    }
+}
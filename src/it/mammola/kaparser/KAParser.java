@@ -12,118 +12,186 @@
  */
 package it.mammola.kaparser;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.temporal.ChronoField;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
 
 public class KAParser {
 
-    private static final String MP_INT_FUNC_TRUNC = "trunc";
-    private static final String MP_INT_FUNC_SIN = "sin";
-    private static final String MP_INT_FUNC_COS = "cos";
-    private static final String MP_INT_FUNC_TAN = "tan";
-    private static final String MP_INT_FUNC_FRAC = "frac";
-    private static final String MP_INT_FUNC_INT = "int";
-
     private static final String MP_INTCONST_NOW = "now";
     private static final String MP_INTCONST_TODAY = "today";
     private static final String MP_INTCONST_TRUE = "true";
     private static final String MP_INTCONST_FALSE = "false";
     private static final String MP_INTCONST_PI = "pi";
 
-    private static final String MP_SPECFUNC_IF = "if";
-    private static final String MP_SPECFUNC_EMPTY = "empty";
-    private static final String MP_SPECFUNC_LEN = "len";
-    private static final String MP_SPECFUNC_AND = "and";
-    private static final String MP_SPECFUNC_OR = "or";
-    private static final String MP_SPECFUNC_SAFEDIV = "safediv";
-    private static final String MP_SPECFUNC_CONCATENATE = "concatenate";
-    private static final String MP_SPECFUNC_REPLICATE = "replicate";
-    private static final String MP_SPECFUNC_LEFT = "left";
-    private static final String MP_SPECFUNC_RIGHT = "right";
-    private static final String MP_SPECFUNC_SUBSTR = "substr";
-    private static final String MP_SPECFUNC_TOSTR = "tostr";
-    private static final String MP_SPECFUNC_POS = "pos";
-    private static final String MP_SPECFUNC_UPPERCASE = "uppercase";
-    private static final String MP_SPECFUNC_LOWERCASE = "lowercase";
-    private static final String MP_SPECFUNC_EQUALS = "equals";
-    private static final String MP_SPECFUNC_EQUALSIGNORECASE = "equalsignorecase";
-    private static final String MP_SPECFUNC_COMPARETO = "compareto";
-    private static final String MP_SPECFUNC_COMPARETOIGNORECASE = "comparetoignorecase";
-    private static final String MP_SPECFUNC_ROUND = "round";
-    private static final String MP_SPECFUNC_CEIL = "ceil";
-    private static final String MP_SPECFUNC_FLOOR = "floor";
-    private static final String MP_SPECFUNC_NOT = "not";
-    private static final String MP_SPECFUNC_SUM = "sum";
-    private static final String MP_SPECFUNC_MAX = "max";
-    private static final String MP_SPECFUNC_MIN = "min";
-    private static final String MP_SPECFUNC_AVG = "avg";
-    private static final String MP_SPECFUNC_COUNT = "count";
-    private static final String MP_SPECFUNC_GETDAY = "getday";
-    private static final String MP_SPECFUNC_GETWEEK = "getweek";
-    private static final String MP_SPECFUNC_GETMONTH = "getmonth";
-    private static final String MP_SPECFUNC_GETYEAR = "getyear";
-    private static final String MP_SPECFUNC_GETHOUR = "gethour";
-    private static final String MP_SPECFUNC_GETMINUTE = "getminute";
-    private static final String MP_SPECFUNC_GETSECOND = "getsecond";
-    private static final String MP_SPECFUNC_PREVIOUSMONDAY = "previousmonday";
-    private static final String MP_SPECFUNC_STARTOFTHEMONTH = "startofthemonth";
-    private static final String MP_SPECFUNC_ENDOFTHEMONTH = "endofthemonth";
-    private static final String MP_SPECFUNC_TODATE = "todate";
-    private static final String MP_SPECFUNC_TODATETIME = "todatetime";
-    private static final String MP_SPECFUNC_DISTANCEFROMNOW = "distancefromnow";
-    private static final String MP_SPECFUNC_DISTANCEFROMTODAY = "distancefromtoday";
-    private static final String MP_SPECFUNC_STRINGTODATETIME = "stringtodatetime";
-    private static final String MP_SPECFUNC_TODOUBLE = "todouble";
-    private static final String MP_SPECFUNC_BETWEEN = "between";
-    private static final String MP_SPECFUNC_TRIM = "trim";
-    private static final String MP_SPECFUNC_LTRIM = "ltrim";
-    private static final String MP_SPECFUNC_RTRIM = "rtrim";
-    private static final String MP_SPECFUNC_RAISEERROR = "raiseerror";
-
-    private static final String MP_RANGEFUNC_CHILDSNOTNULL = "childsnotnull";
-    private static final String MP_RANGEFUNC_PARENTNOTNULL = "parentnotnull";
-    private static final String MP_RANGEFUNC_PARENTSNOTNULL = "parentsnotnull";
-    private static final String MP_RANGEFUNC_CHILDS = "childs";
-    private static final String MP_RANGEFUNC_PARENTS = "parents";
-    private static final String MP_RANGEFUNC_PARENT = "parent";
-    private static final String MP_RANGEFUNC_THIS = "this";
-
-    private int decimalNumbers;
-    private final ArrayList<KAParserDataProvider> dataProviders;
-    private final ZoneId zone;
+    // classes of the ASCII characters, for the lexer
+    private static final byte CHAR_DIGIT = 1;
+    private static final byte CHAR_IDENTIFIER_START = 2;
+    private static final byte CHAR_IDENTIFIER_PART = 4;
+    private static final byte[] ASCII_CLASSES = new byte[128];
+
+    // the numbers scanned by the lexer
+    private static final long MAX_MANTISSA = (Long.MAX_VALUE - 9) / 10;
+    private static final int MAX_EXPONENT = 100000;
+    // the levels of the binary operators (see operatorLevel)
+    private static final int OPERATOR_LEVELS = 4;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            ASCII_CLASSES[c] = CHAR_DIGIT | CHAR_IDENTIFIER_PART;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            ASCII_CLASSES[c] = CHAR_IDENTIFIER_START | CHAR_IDENTIFIER_PART;
+            ASCII_CLASSES[Character.toUpperCase(c)] = CHAR_IDENTIFIER_START | CHAR_IDENTIFIER_PART;
+        }
+        ASCII_CLASSES['_'] = CHAR_IDENTIFIER_START | CHAR_IDENTIFIER_PART;
+        ASCII_CLASSES['@'] = CHAR_IDENTIFIER_START | CHAR_IDENTIFIER_PART;
+    }
+
+    private volatile KAParserConfiguration configuration;
+    private volatile KAFormulaCache formulaCache;
+    private volatile KAUserFunctionCache userFunctionCache;
 
     public KAParser(ZoneId zone){
-    	this.zone = zone;
-    	dataProviders = new ArrayList<>();
-    	decimalNumbers = KAMathUtilities.DEFAULT_DECIMAL_NUMBERS;
+        this(KAParserConfiguration.builder(zone).build());
+    }
+
+    /**
+     * A parser with the given configuration. As the configuration is
+     * immutable, the parser can be shared by many threads: besides it, the
+     * parser holds only the caches of the formulas and of the user
+     * functions, while the state of an evaluation is in its own context.
+     */
+    public KAParser(final KAParserConfiguration configuration) {
+        this.configuration = configuration;
+        if (configuration.getFormulaCacheSize() > 0) {
+            formulaCache = new KAFormulaCache(configuration.getFormulaCacheSize());
+        }
+        if (configuration.getUserFunctionCacheSize() > 0) {
+            userFunctionCache = new KAUserFunctionCache(configuration.getUserFunctionCacheSize(),
+                    configuration.getUserFunctionTimeToLive());
+        }
+    }
+
+    public KAParserConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public ZoneId getZone() {
+        return configuration.getZone();
     }
     
+    KACalendar getCalendar() {
+        return configuration.getCalendar();
+    }
+
     public int getDecimalNumbers() {
-        return decimalNumbers;
+        return configuration.getDecimalNumbers();
+    }
+
+    /**
+     * Changes the configuration of the parser, as all the following setters
+     * do: the calls already running keep the configuration they started with.
+     * Prefer a parser created with the complete configuration.
+     */
+    public synchronized void setDecimalNumbers(int decimalNumbers) {
+        configuration = configuration.toBuilder().setDecimalNumbers(decimalNumbers).build();
+    }
+
+    /**
+     * Adds a data provider. As the values are resolved when the formulas are
+     * compiled, the cached formulas are discarded, together with the results
+     * of the user functions kept by the parser.
+     */
+    public synchronized void addDataProvider(KAParserDataProvider dataProvider) {
+        configuration = configuration.toBuilder().addDataProvider(dataProvider).build();
+        KAFormulaCache cache = formulaCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        KAUserFunctionCache results = userFunctionCache;
+        if (results != null) {
+            results.clear();
+        }
+    }
+
+    /**
+     * Adds a function to the ones known by the parser, replacing the function
+     * with the same name and value type, built-in functions included. The
+     * cached formulas are discarded, while the formulas already compiled keep
+     * the functions they were compiled with.
+     */
+    public synchronized void registerFunction(KAFunction function) {
+        configuration = configuration.toBuilder().registerFunction(function).build();
+        KAFormulaCache cache = formulaCache;
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
-    public void setDecimalNumbers(int decimalNumbers) {
-        this.decimalNumbers = decimalNumbers;
+    /**
+     * The function with the given name (case insensitive) calculating the
+     * given value type, or null if the parser does not know it.
+     */
+    public KAFunction getFunction(final String name, final KAParserValueType valueType) {
+        return configuration.getFunctions().get(name, valueType);
     }
 
-    public void addDataProvider(KAParserDataProvider dataProvider) {
-        this.dataProviders.add(dataProvider);
+    /**
+     * The help of the functions known by the parser, for the ones that have it.
+     */
+    public List<KAParserFunctionHelp> getFunctionsHelp() {
+        ArrayList<KAParserFunctionHelp> result = new ArrayList<>();
+        for (KAFunction function : configuration.getFunctions().getFunctions()) {
+            if (function.getHelp() != null) {
+                result.add(function.getHelp());
+            }
+        }
+        return result;
+    }
+
+    public int getFormulaCacheSize() {
+        KAFormulaCache cache = formulaCache;
+        return (cache != null) ? cache.getMaximumSize() : 0;
+    }
+
+    /**
+     * Enables the cache of the compiled formulas used by calculate and
+     * calculateString, keeping at most maximumSize formulas. A size of 0
+     * disables the cache.
+     */
+    public synchronized void setFormulaCacheSize(int maximumSize) {
+        configuration = configuration.toBuilder().setFormulaCacheSize(maximumSize).build();
+        if (maximumSize > 0) {
+            formulaCache = new KAFormulaCache(maximumSize);
+        } else {
+            formulaCache = null;
+        }
     }
 
-    private Boolean isDecimalSeparator(final char aValue) {
-        return (aValue == '.') || (aValue == ',');
+    /**
+     * The cache of the compiled formulas, with its hit, miss and eviction
+     * counters, or null if the cache is not enabled.
+     */
+    public KAFormulaCache getFormulaCache() {
+        return formulaCache;
     }
 
-    private Boolean isStringSeparator(final char aValue) {
-        return (aValue == '\'') || (aValue == '\"');
+    /**
+     * The results of the user functions declared KAUserFunctionPurity.GLOBAL,
+     * with its hit, miss and eviction counters, or null if the memoization is
+     * disabled. Clear it when the data those functions read changes.
+     */
+    public KAUserFunctionCache getUserFunctionCache() {
+        return userFunctionCache;
     }
 
     private String cleanFormula(final String aFormula) {
@@ -137,309 +205,208 @@ public class KAParser {
     	}
     }
 
-    private Boolean doInternalCalculate(final KALexComputationType calculation, final String subFormula,
-    		KAParserCalculationDoubleResult resValue) {
-    	Boolean successful;
-
-    	if (calculation == KALexComputationType.VALUE) {
-    		if (subFormula.equalsIgnoreCase(MP_INTCONST_NOW)) {
-    			resValue.setValue((double) (Instant.now().getEpochSecond() / 3600));
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_INTCONST_TODAY)) {
-    			resValue.setValue(KADateTimeUtilities.instantToDouble(Instant.now()));
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_INTCONST_TRUE)) {
-    			resValue.setValue(1.0);
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_INTCONST_FALSE)) {
-    			resValue.setValue(0.0);
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_INTCONST_PI)) {
-    			resValue.setValue(Math.PI);
-    			successful = true;
-    		} else if (! this.dataProviders.isEmpty()) {
-    			successful = false;
-    			for (KAParserDataProvider dataProvider : this.dataProviders) {
-    				successful = dataProvider.getValue(this, subFormula, resValue);
-    				if (successful) {
-    					break;
-    				}
-    			}
-    		} else {
-    			successful = false;
-    		}
-
-    	} else { // calculation = FUNCTION 
-    			if (subFormula.equalsIgnoreCase(MP_INT_FUNC_TRUNC)) {
-    				resValue.setValue(Math.floor(resValue.getValue()));
-    				successful = true;
-    			} else if (subFormula.equalsIgnoreCase(MP_INT_FUNC_SIN)) {
-    				resValue.setValue(Math.sin(resValue.getValue()));
-    				successful = true;
-    			} else if (subFormula.equalsIgnoreCase(MP_INT_FUNC_COS)) {
-    				resValue.setValue(Math.cos(resValue.getValue()));
-    				successful = true;
-    			} else if (subFormula.equalsIgnoreCase(MP_INT_FUNC_TAN)) {
-    				resValue.setValue(Math.tan(resValue.getValue()));
-    				successful = true;
-    			} else if (subFormula.equalsIgnoreCase(MP_INT_FUNC_FRAC)) {
-    				resValue.setValue(resValue.getValue() - Math.floor(resValue.getValue()));
-    				successful = true;
-    			} else if (subFormula.equalsIgnoreCase(MP_INT_FUNC_INT)) {
-    				resValue.setValue(Math.floor(resValue.getValue()));
-    				successful = true;
-    			} else if (! this.dataProviders.isEmpty()) {
-    				successful = false;
-    				for (KAParserDataProvider dataProvider : this.dataProviders) {
-    					successful = dataProvider.getValue(this, subFormula, resValue);
-    					if (successful) {
-    						break;
-    					}
-    				}
-    			} else {
-    				successful = false;
-    			}
-    	}
-    	return successful;
-    }
-
-    private String trimEnd(final String input, final String charsToTrim) {
-        return input.replaceAll("[" + charsToTrim + "]+$", "");
-    }
-
-    private String trimStart(final String input, final String charsToTrim) {
-        return input.replaceAll("^[" + charsToTrim + "]+", "");
-    }
-
-    private Boolean doInternalStringCalculate(final KALexComputationType calculation, final String subFormula,
-    		KAParserCalculationStringResult resValue) {
-    	Boolean successful;
-    	if (calculation == KALexComputationType.FUNCTION) {
-    		if (subFormula.equalsIgnoreCase(MP_SPECFUNC_TRIM)) {
-    			resValue.setValue(resValue.getValue().trim());
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_SPECFUNC_LTRIM)) {
-    			resValue.setValue(trimStart(resValue.getValue(), " "));
-    			successful = true;
-    		} else if (subFormula.equalsIgnoreCase(MP_SPECFUNC_RTRIM)) {
-    			resValue.setValue(trimEnd(resValue.getValue(), " "));
-    			successful = true;
-    		} else if (this.dataProviders.size() > 0) {
-    			successful = false;
-    			for (KAParserDataProvider dataProvider : this.dataProviders) {
-    				successful = dataProvider.getStrValue(this, subFormula, resValue);
-    				if (successful) {
-    					break;
-    				}
-    			}
-    		} else {
-    			successful = false;
-    		}
-    	} else { // KALexComputationType.VALUE
-    		if (! this.dataProviders.isEmpty()) {
-    			successful = false;
-    			for (KAParserDataProvider dataProvider : this.dataProviders) {
-    				successful = dataProvider.getStrValue(this, subFormula, resValue);
-    				if (successful) {
-    					break;
-    				}
-    			}    			
-    		} else {
-    			successful = false;
-    		}
-
-    	}
-    	return successful;
+    // the aggregate of a range: each data provider, in order, may calculate
+    // it directly or stream the values of the range
+    boolean doInternalRangeCalculate(final KARangeAggregate aggregate, final String rangeFunction, final String func,
+            KAParserCalculationDoubleResult result) {
+        KARangeAccumulator values = new KARangeAccumulator();
+        for (KAParserDataProvider dataProvider : configuration.getDataProviders()) {
+            if (dataProvider.aggregateRange(this, aggregate, rangeFunction, func, result)) {
+                return true;
+            }
+            if (dataProvider.streamRangeValues(this, rangeFunction, func, values)) {
+                result.setValue(values.get(aggregate));
+                return true;
+            }
+        }
+        return false;
     }
 
-    private Boolean doInternalRangeCalculate(final String rangeFunction, final String func,
-            final KAParserValueType ValueType, final ArrayList<Object> valuesArray) {
-        Boolean successful = false;
-
-        if (! this.dataProviders.isEmpty()) {
-        	successful = false;
-        	for (KAParserDataProvider dataProvider : this.dataProviders) {
-        		successful = dataProvider.getRangeValues(this, rangeFunction, func, ValueType, valuesArray);
-        		if (successful) {
-        			break;
-        		}
-        	}
-            
+    boolean doInternalRangeStrCalculate(final String rangeFunction, final String func, final Consumer<String> values) {
+        for (KAParserDataProvider dataProvider : configuration.getDataProviders()) {
+            if (dataProvider.streamRangeStrValues(this, rangeFunction, func, values)) {
+                return true;
+            }
         }
-        return successful;
+        return false;
     }
 
-    private double doUserFunction(final String funct, final ArrayList<String> parametersList, final KALexStatus lexState)
-            throws KAParserException {
+    // a user function, calculated by the first data provider answering it; the
+    // results of the pure ones are kept in the scope the provider declares
+    double doUserFunction(final KAEvaluationContext context, final String funct, final KANode.UserArguments arguments,
+            final String formula, final int position) throws KAParserException {
         Boolean successful;
 
-        if (! this.dataProviders.isEmpty()) {
+        List<KAParserDataProvider> dataProviders = configuration.getDataProviders();
+        if (! dataProviders.isEmpty()) {
+            KAUserFunctionCache.Key key = null;
+            if (isPureUserFunction(funct)) {
+                List<Object> values = arguments.evaluateAll();
+                if (values != null) {
+                    key = new KAUserFunctionCache.Key(funct, KAParserValueType.TYPE_FLOAT, values);
+                    Object result = context.hasUserFunctionResults() ? context.getUserFunctionResult(key) : null;
+                    if (result != null) {
+                        return (Double) result;
+                    }
+                }
+            }
             KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
+            KAParserDataProvider answering = null;
             successful = false;
-            for (KAParserDataProvider dataProvider : this.dataProviders) {
-                successful = dataProvider.calcUserFunction(this, funct, parametersList, tempValue);
+            for (KAParserDataProvider dataProvider : dataProviders) {
+                successful = dataProvider.calcUserFunction(this, funct, arguments, tempValue);
                 if (successful) {
+                    answering = dataProvider;
                 	break;
                 }
             }
             
             if (!successful) {
-                raiseError(KAErrorType.EXTERNAL_FUNCTION_ERROR, funct, lexState);
+                context.raiseError(KAErrorType.EXTERNAL_FUNCTION_ERROR, funct, formula, position);
                 return 0;
             } else {
-                return tempValue.getValue();
+                KAUserFunctionPurity purity = answering.getUserFunctionPurity(funct);
+                if ((key != null) && arguments.isKeyed() && (purity != KAUserFunctionPurity.NOT_PURE)) {
+                    context.putUserFunctionResult(key, purity, tempValue.getDoubleValue());
+                }
+                return tempValue.getDoubleValue();
             }
         } else {
-            raiseError(KAErrorType.FUNCTION_UNKNOWN, funct, lexState);
+            context.raiseError(KAErrorType.FUNCTION_UNKNOWN, funct, formula, position);
             return 0;
         }
     }
 
-    private String doStrUserFunction(final String funct, final ArrayList<String> parametersList,
-            final KALexStatus lexState) throws KAParserException {
+    // whether the results of the function may be kept: only then the values
+    // of its parameters are calculated before the call
+    private boolean isPureUserFunction(final String funct) {
+        if (configuration.getUserFunctionCacheSize() == 0) {
+            return false;
+        }
+        for (KAParserDataProvider dataProvider : configuration.getDataProviders()) {
+            if (dataProvider.getUserFunctionPurity(funct) != KAUserFunctionPurity.NOT_PURE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String doStrUserFunction(final KAEvaluationContext context, final String funct,
+            final KANode.UserArguments arguments, final String formula, final int position) throws KAParserException {
 
         Boolean successful;
-        if (! this.dataProviders.isEmpty()) {
+        List<KAParserDataProvider> dataProviders = configuration.getDataProviders();
+        if (! dataProviders.isEmpty()) {
+            KAUserFunctionCache.Key key = null;
+            if (isPureUserFunction(funct)) {
+                List<Object> values = arguments.evaluateAll();
+                if (values != null) {
+                    key = new KAUserFunctionCache.Key(funct, KAParserValueType.TYPE_STRING, values);
+                    Object result = context.hasUserFunctionResults() ? context.getUserFunctionResult(key) : null;
+                    if (result != null) {
+                        return (String) result;
+                    }
+                }
+            }
             KAParserCalculationStringResult tempValue = new KAParserCalculationStringResult();
+            KAParserDataProvider answering = null;
             
             successful = false;
-            for (KAParserDataProvider dataProvider : this.dataProviders) {
-            	successful = dataProvider.calcStrUserFunction(this, funct, parametersList, tempValue);	
+            for (KAParserDataProvider dataProvider : dataProviders) {
+            	successful = dataProvider.calcStrUserFunction(this, funct, arguments, tempValue);	
             	if (successful) {
+                    answering = dataProvider;
             		break;
             	}
             }
             
             if (!successful) {
-                raiseError(KAErrorType.EXTERNAL_FUNCTION_ERROR, funct, lexState);
+                context.raiseError(KAErrorType.EXTERNAL_FUNCTION_ERROR, funct, formula, position);
                 return "";
             } else {
+                KAUserFunctionPurity purity = answering.getUserFunctionPurity(funct);
+                if ((key != null) && arguments.isKeyed() && (purity != KAUserFunctionPurity.NOT_PURE)) {
+                    context.putUserFunctionResult(key, purity, tempValue.getValue());
+                }
                 return tempValue.getValue();
             }
         } else {
-            raiseError(KAErrorType.FUNCTION_UNKNOWN, funct, lexState);
+            context.raiseError(KAErrorType.FUNCTION_UNKNOWN, funct, formula, position);
             return "";
         }
     }
 
     // Lexical Analyzer Function
     // http://www.gnu.org/software/bison/manual/html_node/Lexical.html
-    private void yylex(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
-        int currentInteger;
-        double currentFloat;
-        double currentdecimal;
+    // The formula is read from its char array with a local cursor; the ASCII
+    // characters are classified by a table, the others by Character. Numbers
+    // and operators allocate nothing, identifiers become strings only when
+    // the parser asks for their text.
+    void yylex(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        final char[] chars = lexState.getChars();
+        final int length = chars.length;
+        int i = lexState.getCharIndex();
 
         lexResult.clear();
 
-        if (lexState.isEof()) {
-            lexResult.setToken(KAToken.TOKEN_EOF);
-            return;
-        }
-
-        while ((lexState.currentChar() == ' ') && (!lexState.isEof())) {
-            lexState.advance();
+        while ((i < length) && (chars[i] == ' ')) {
+            i++;
         }
 
-        if (lexState.isEof()) {
+        if (i >= length) {
+            lexState.setCharIndex(i);
             lexResult.setToken(KAToken.TOKEN_EOF);
             return;
         }
 
-        // ------------ maybe a string..
-
-        if (isStringSeparator(lexState.currentChar())) {            
-            StringBuilder sb = new StringBuilder("");
-            char currentCharSeparator = lexState.currentChar();
+        char currentChar = chars[i];
 
-            lexState.advance();
+        // ------------ maybe a string..
 
-            Boolean doLoop = true;
-            
-            while (doLoop) {
-                if (lexState.isEof()) {
-                    raiseError(KAErrorType.INVALID_STRING, lexState);
-                    return;
-                }
-                if (lexState.currentChar() == currentCharSeparator) {
-                    doLoop = false;
-                } else {
-                    sb.append(lexState.currentChar());                    
-                    lexState.advance();
-                }
+        if ((currentChar == '\'') || (currentChar == '\"')) {
+            int start = i + 1;
+            i = start;
+            while ((i < length) && (chars[i] != currentChar)) {
+                i++;
             }
-
-            lexState.advance();
-            lexResult.setString(sb.toString());
+            lexState.setCharIndex(i);
+            if (i >= length) {
+                raiseError(KAErrorType.INVALID_STRING, lexState);
+                return;
+            }
+            lexState.setCharIndex(i + 1);
+            lexResult.setString(lexState.getFormula().substring(start, i));
             return;
         }
 
         // ------------ maybe a number..
 
-        if (Character.isDigit(lexState.currentChar())) {
-            StringBuilder sb = new StringBuilder(Character.toString(lexState.currentChar()));
-            
-            lexState.advance();
-
-            
-            while ((!lexState.isEof()) && (Character.isDigit(lexState.currentChar()))) {
-                sb.append(Character.toString(lexState.currentChar()));
-                lexState.advance();
-            }
-
-            try {
-                currentInteger = Integer.parseInt(sb.toString());
-            } catch (NumberFormatException e) {
-                lexResult.setToken(KAToken.TOKEN_ERROR);
-                return;
-            }
-
-            if ((!lexState.isEof()) && (isDecimalSeparator(lexState.currentChar()))) {
-                lexState.advance();
-                currentFloat = (double) currentInteger;
-
-                currentdecimal = (double) 1;
-                while ((!lexState.isEof()) && (Character.isDigit(lexState.currentChar()))) {
-                    currentdecimal = currentdecimal / 10;
-                    currentFloat = currentFloat
-                            + (currentdecimal * Integer.parseInt(Character.toString(lexState.currentChar())));
-                    lexState.advance();
-                }
-
-                lexResult.setDouble(currentFloat);
-            } else {
-                lexResult.setInteger(currentInteger);
-            }
-
+        if (isDigit(currentChar)) {
+            lexState.setCharIndex(scanNumber(chars, i, lexState.isArgumentSeparator(), lexResult));
             return;
-
         }
 
         // ------------ forse un identificatore..
 
-        if (Character.isLetter(lexState.currentChar()) || (lexState.currentChar() == '_')
-                || (lexState.currentChar() == '@')) {
-            StringBuilder sb = new StringBuilder(Character.toString(lexState.currentChar()));
-            lexState.advance();
-
-            while ((!lexState.isEof()) && ((Character.isLetterOrDigit(lexState.currentChar()))
-                    || (lexState.currentChar() == '_') || (lexState.currentChar() == '@'))) {
-                sb.append(Character.toString(lexState.currentChar()));
-                lexState.advance();
+        if (isIdentifierStart(currentChar)) {
+            int start = i;
+            i++;
+            while ((i < length) && isIdentifierPart(chars[i])) {
+                i++;
             }
-
-            lexResult.setString(sb.toString());
-            lexResult.setToken(KAToken.TOKEN_IDENTIFIER);
+            lexState.setCharIndex(i);
+            lexResult.setIdentifier(lexState.getFormula(), start, i);
             return;
         }
 
         // ------------ forse un operatore..
 
-        char opChar = lexState.currentChar();
-        lexState.advance();
-        switch (opChar) {
+        i++;
+        int nextChar = (i < length) ? chars[i] : -1;
+        switch (currentChar) {
             case '=': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
-                    lexState.advance();
+                if (nextChar == '=') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_EQUAL);
                 } else {
                     lexResult.setToken(KAToken.TOKEN_ERROR);
@@ -455,8 +422,8 @@ public class KAParser {
                 break;
             }
             case '*': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '*')) {
-                    lexState.advance();
+                if (nextChar == '*') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_POWER);
                 } else {
                     lexResult.setToken(KAToken.TOKEN_MULTIPLE);
@@ -468,8 +435,8 @@ public class KAParser {
                 break;
             }
             case '%': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '%')) {
-                    lexState.advance();
+                if (nextChar == '%') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_PERCENT);
                 } else {
                     lexResult.setToken(KAToken.TOKEN_MOD);
@@ -493,36 +460,32 @@ public class KAParser {
                 break;
             }
             case '<': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
-                    lexState.advance();
+                if (nextChar == '=') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_LESS_EQUAL);
+                } else if (nextChar == '>') {
+                    i++;
+                    lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
                 } else {
-                    if ((!lexState.isEof()) && (lexState.currentChar() == '>')) {
-                        lexState.advance();
-                        lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
-                    } else {
-                        lexResult.setToken(KAToken.TOKEN_LESS);
-                    }
+                    lexResult.setToken(KAToken.TOKEN_LESS);
                 }
                 break;
             }
             case '>': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
-                    lexState.advance();
+                if (nextChar == '=') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_GREATER_EQUAL);
+                } else if (nextChar == '<') {
+                    i++;
+                    lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
                 } else {
-                    if ((!lexState.isEof()) && (lexState.currentChar() == '<')) {
-                        lexState.advance();
-                        lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
-                    } else {
-                        lexResult.setToken(KAToken.TOKEN_GREATER);
-                    }
+                    lexResult.setToken(KAToken.TOKEN_GREATER);
                 }
                 break;
             }
             case '!': {
-                if ((!lexState.isEof()) && (lexState.currentChar() == '=')) {
-                    lexState.advance();
+                if (nextChar == '=') {
+                    i++;
                     lexResult.setToken(KAToken.TOKEN_NOT_EQUAL);
                 } else {
                     lexResult.setToken(KAToken.TOKEN_NOT);
@@ -541,250 +504,313 @@ public class KAParser {
                 lexResult.setToken(KAToken.TOKEN_SEMICOLON);
                 break;
             }
+            case ',': {
+                if (lexState.isArgumentSeparator()) {
+                    lexResult.setToken(KAToken.TOKEN_COMMA);
+                } else {
+                    lexResult.setToken(KAToken.TOKEN_ERROR);
+                    i--;
+                }
+                break;
+            }
             default: {
                 lexResult.setToken(KAToken.TOKEN_ERROR);
-                lexState.goBack();
+                i--;
                 break;
             }
         }
+        lexState.setCharIndex(i);
     }
 
-    // double
-    private void startCalculate(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        calc6(resValue, lexState, lexResult);
-        while (lexResult.getToken().equals(KAToken.TOKEN_SEMICOLON)) {
-            yylex(lexState, lexResult);
-            calc6(resValue, lexState, lexResult);
-        }
-        if (!(lexResult.getToken().equals(KAToken.TOKEN_EOF))) {
-            raiseError(KAErrorType.SYNTAX_ERROR, lexState);
+    // scans the number starting at start, made of digits, an optional decimal
+    // part after '.' (or ',', when it does not separate parameters) and an
+    // optional exponent (e or E, an optional sign and digits). The digits
+    // are accumulated into a long mantissa and a power of ten: integers that
+    // fit a long stay integers, the other values are rounded correctly to a
+    // double, directly while mantissa and power are exact in a double, by
+    // Double.parseDouble otherwise. Returns the index after the number.
+    private static int scanNumber(final char[] chars, final int start, final boolean argumentSeparator,
+            KALexComputationResult lexResult) {
+        final int length = chars.length;
+        int i = start;
+        long mantissa = 0;
+        int exponent = 0;
+        boolean exact = true;
+        boolean integer = true;
+
+        while ((i < length) && isDigit(chars[i])) {
+            if (mantissa <= MAX_MANTISSA) {
+                mantissa = mantissa * 10 + digitValue(chars[i]);
+            } else {
+                exact = false;
+                exponent++;
+            }
+            i++;
         }
-    }
-
-    private void calc6(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
-        KAToken lastToken;
 
-        calc5(resValue, lexState, lexResult);
-        while (lexResult.getToken().equals(KAToken.TOKEN_OR) || lexResult.getToken().equals(KAToken.TOKEN_XOR)
-                || lexResult.getToken().equals(KAToken.TOKEN_AND)) {
-            lastToken = lexResult.getToken();
-            yylex(lexState, lexResult);
-            calc5(newDouble, lexState, lexResult);
-            switch (lastToken) {
-                case TOKEN_OR: {
-                    resValue.setValue(
-                            (double) ((int) Math.floor(resValue.getValue()) | (int) Math.floor(newDouble.getValue())));
-                    break;
-                }
-                case TOKEN_AND: {
-                    resValue.setValue(
-                            (double) ((int) Math.floor(resValue.getValue()) & (int) Math.floor(newDouble.getValue())));
-                    break;
-                }
-                case TOKEN_XOR: {
-                    resValue.setValue(
-                            (double) ((int) Math.floor(resValue.getValue()) ^ (int) Math.floor(newDouble.getValue())));
-                    break;
+        if ((i < length) && ((chars[i] == '.') || ((chars[i] == ',') && !argumentSeparator))) {
+            integer = false;
+            i++;
+            while ((i < length) && isDigit(chars[i])) {
+                if (mantissa <= MAX_MANTISSA) {
+                    mantissa = mantissa * 10 + digitValue(chars[i]);
+                    exponent--;
+                } else {
+                    exact = false;
                 }
-                default: {
-                    // raiseError(KaParserExceptionType.sFunctionUnknown);
-                    break;
+                i++;
+            }
+        }
+
+        if ((i < length) && ((chars[i] == 'e') || (chars[i] == 'E'))) {
+            int j = i + 1;
+            boolean negative = false;
+            if ((j < length) && ((chars[j] == '+') || (chars[j] == '-'))) {
+                negative = chars[j] == '-';
+                j++;
+            }
+            if ((j < length) && isDigit(chars[j])) {
+                integer = false;
+                int exponentValue = 0;
+                while ((j < length) && isDigit(chars[j])) {
+                    if (exponentValue < MAX_EXPONENT) {
+                        exponentValue = exponentValue * 10 + digitValue(chars[j]);
+                    }
+                    j++;
                 }
+                exponent += negative ? -exponentValue : exponentValue;
+                i = j;
+            }
+        }
+
+        if (integer && exact) {
+            lexResult.setInteger(mantissa);
+        } else if (exact && (mantissa < (1L << 53)) && (exponent >= -22) && (exponent <= 22)) {
+            // both mantissa and power of ten are exact doubles: a single
+            // multiplication or division rounds correctly
+            if (exponent >= 0) {
+                lexResult.setDouble(mantissa * POWERS_OF_TEN[exponent]);
+            } else {
+                lexResult.setDouble(mantissa / POWERS_OF_TEN[-exponent]);
             }
+        } else {
+            lexResult.setDouble(parseNumber(chars, start, i));
         }
+        return i;
     }
 
-    private void calc5(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
-        KAToken lastToken;
-
-        calc4(resValue, lexState, lexResult);
-        while (lexResult.getToken().equals(KAToken.TOKEN_LESS) || lexResult.getToken().equals(KAToken.TOKEN_LESS_EQUAL)
-                || lexResult.getToken().equals(KAToken.TOKEN_EQUAL) || lexResult.getToken().equals(KAToken.TOKEN_NOT_EQUAL)
-                || lexResult.getToken().equals(KAToken.TOKEN_GREATER_EQUAL) || lexResult.getToken().equals(KAToken.TOKEN_GREATER)) {
-            lastToken = lexResult.getToken();
-            yylex(lexState, lexResult);
-            calc4(newDouble, lexState, lexResult);
-            switch (lastToken) {
-                case TOKEN_LESS: {
-                    resValue.setValue(booleanToFloat(KAMathUtilities.doubleIsLessThan(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                case TOKEN_LESS_EQUAL: {
-                    resValue.setValue(booleanToFloat(KAMathUtilities.doubleIsEqualOrLessThan(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                case TOKEN_EQUAL: {
-                    resValue.setValue(booleanToFloat(KAMathUtilities.doublesAreEqual(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                case TOKEN_NOT_EQUAL: {
-                    resValue.setValue(booleanToFloat(!KAMathUtilities.doublesAreEqual(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                case TOKEN_GREATER_EQUAL: {
-                    resValue.setValue(booleanToFloat(KAMathUtilities.doubleIsEqualOrGreater(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                case TOKEN_GREATER: {
-                    resValue.setValue(booleanToFloat(KAMathUtilities.doubleIsGreater(resValue.getValue(),
-                            newDouble.getValue(), decimalNumbers)));
-                    break;
-                }
-                default: {
-                    // raiseError(KaParserExceptionType.sFunctionUnknown);
-                    break;
-                }
+    // the rare numbers that do not fit the fast path: too many digits or a
+    // large exponent
+    private static double parseNumber(final char[] chars, final int start, final int end) {
+        char[] text = new char[end - start];
+        for (int i = start; i < end; i++) {
+            char currentChar = chars[i];
+            if (isDigit(currentChar)) {
+                text[i - start] = (char) ('0' + digitValue(currentChar));
+            } else if (currentChar == ',') {
+                text[i - start] = '.';
+            } else {
+                text[i - start] = currentChar;
             }
         }
+        return Double.parseDouble(new String(text));
     }
 
-    private void calc4(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
-        KAToken lastToken;
+    private static boolean isDigit(final char aValue) {
+        if (aValue < 128) {
+            return (ASCII_CLASSES[aValue] & CHAR_DIGIT) != 0;
+        } else {
+            return Character.isDigit(aValue);
+        }
+    }
 
-        calc3(resValue, lexState, lexResult);
-        while ((lexResult.getToken().equals(KAToken.TOKEN_ADD)) || (lexResult.getToken().equals(KAToken.TOKEN_SUBTRACT))) {
-            lastToken = lexResult.getToken();
-            yylex(lexState, lexResult);
-            calc3(newDouble, lexState, lexResult);
-            switch (lastToken) {
-                case TOKEN_ADD: {
-                    resValue.setValue(resValue.getValue() + newDouble.getValue());
-                    break;
-                }
-                case TOKEN_SUBTRACT: {
-                    resValue.setValue(resValue.getValue() - newDouble.getValue());
-                    break;
-                }
-                default: {
-                    // raiseError(KaParserExceptionType.sFunctionUnknown);
-                    break;
-                }
-            }
+    private static int digitValue(final char aValue) {
+        if (aValue < 128) {
+            return aValue - '0';
+        } else {
+            return Character.digit(aValue, 10);
         }
     }
 
-    private void calc3(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
-        KAToken lastToken;
+    private static boolean isIdentifierStart(final char aValue) {
+        if (aValue < 128) {
+            return (ASCII_CLASSES[aValue] & CHAR_IDENTIFIER_START) != 0;
+        } else {
+            return Character.isLetter(aValue);
+        }
+    }
 
-        calc2(resValue, lexState, lexResult);
-        while (lexResult.getToken().equals(KAToken.TOKEN_MULTIPLE) || lexResult.getToken().equals(KAToken.TOKEN_DIVIDE)
-                || lexResult.getToken().equals(KAToken.TOKEN_MOD) || lexResult.getToken().equals(KAToken.TOKEN_PERCENT)) {
-            lastToken = lexResult.getToken();
-            yylex(lexState, lexResult);
-            calc2(newDouble, lexState, lexResult);
-            switch (lastToken) {
-                case TOKEN_MULTIPLE: {
-                    resValue.setValue(resValue.getValue() * newDouble.getValue());
-                    break;
-                }
-                case TOKEN_DIVIDE: {
-                    resValue.setValue(resValue.getValue() / newDouble.getValue());
-                    break;
-                }
-                case TOKEN_MOD: // resto della divisione tra interi
-                {
-                    resValue.setValue(Math.floor(resValue.getValue()) % Math.floor(newDouble.getValue()));
-                    break;
-                }
-                case TOKEN_PERCENT: {
-                    resValue.setValue(resValue.getValue() * newDouble.getValue() / 100);
-                    break;
-                }
-                default: {
-                    // raiseError(KaParserExceptionType.sFunctionUnknown);
-                    break;
-                }
+    private static boolean isIdentifierPart(final char aValue) {
+        if (aValue < 128) {
+            return (ASCII_CLASSES[aValue] & CHAR_IDENTIFIER_PART) != 0;
+        } else {
+            return Character.isLetterOrDigit(aValue);
+        }
+    }
 
-            }
+    // compilation: the formula is lexed and parsed once, building the nodes
+    // of a KACompiledFormula; the parameters of the built-in functions are
+    // parsed in the same pass, with ',' lexed as their separator
+
+    private KANode compileStart(final KAParserValueType valueType, KALexStatus lexState,
+            KALexComputationResult lexResult) throws KAParserException {
+        KANode result = compileSequence(valueType, lexState, lexResult);
+        if (!(lexResult.getToken().equals(KAToken.TOKEN_EOF))) {
+            raiseError(KAErrorType.SYNTAX_ERROR, lexState);
         }
+        return result;
     }
 
-    private void calc2(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAToken lastToken;
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
+    private KANode compileSequence(final KAParserValueType valueType, KALexStatus lexState,
+            KALexComputationResult lexResult) throws KAParserException {
+        ArrayList<KANode> nodes = new ArrayList<>();
 
-        if (lexResult.getToken().equals(KAToken.TOKEN_NOT) || lexResult.getToken().equals(KAToken.TOKEN_INVERT)
-                || lexResult.getToken().equals(KAToken.TOKEN_ADD) || lexResult.getToken().equals(KAToken.TOKEN_SUBTRACT)) {
-            lastToken = lexResult.getToken();
+        while (true) {
+            if (valueType == KAParserValueType.TYPE_FLOAT) {
+                nodes.add(compile6(lexState, lexResult));
+            } else {
+                nodes.add(compileStrLevel1(lexState, lexResult));
+            }
+            if (!lexResult.getToken().equals(KAToken.TOKEN_SEMICOLON)) {
+                return KANode.sequence(nodes);
+            }
             yylex(lexState, lexResult);
-            calc2(newDouble, lexState, lexResult);
-            switch (lastToken) {
-                case TOKEN_NOT: {
-                    if (KAMathUtilities.doublesAreEqual(Math.floor(newDouble.getValue()), 0.0)) {
-                        resValue.setValue(1.0);
-                    } else {
-                        resValue.setValue(0.0);
-                    }
-                    break;
-                }
-                case TOKEN_INVERT: {
-                    resValue.setValue((double) (~(int) (Math.floor(newDouble.getValue()))));
-                    break;
-                }
-                case TOKEN_ADD: {
-                    resValue.setValue(resValue.getValue() + (newDouble.getValue()));
-                    break;
-                }
-                case TOKEN_SUBTRACT: {
-                    resValue.setValue(resValue.getValue() - (newDouble.getValue()));
-                    break;
-                }
-                default: {
-                    break;
+        }
+    }
+
+    // the binary operators, from the level 3 (*, /, mod, %) to the level 6
+    // (or, xor, and), are compiled in a single loop rather than by a method
+    // for each level, so that a nested function call costs fewer frames.
+    // A chain of the operators of a level is closed, as the recursive
+    // descent did, when an operator of a higher level, or no operator,
+    // follows: the chains are the same, shared in the same order
+    private KANode compile6(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        PendingChain[] chains = new PendingChain[OPERATOR_LEVELS];
+        while (true) {
+            KANode node = compile2(lexState, lexResult);
+            KAToken operator = lexResult.getToken();
+            int level = operatorLevel(operator);
+            int closed = (level >= 0) ? level : OPERATOR_LEVELS;
+            for (int i = 0; i < closed; i++) {
+                if (chains[i] != null) {
+                    node = chains[i].close(node, lexState);
+                    chains[i] = null;
+                } else {
+                    node = share(node, lexState);
                 }
             }
-        } else {
-            calc1(resValue, lexState, lexResult);
+            if (level < 0) {
+                return node;
+            }
+            if (chains[level] == null) {
+                chains[level] = new PendingChain(node);
+            } else {
+                chains[level].add(node);
+            }
+            chains[level].add(operator);
+            yylex(lexState, lexResult);
         }
+    }
 
+    // the level of a binary operator, from 0 (*, /, mod, %) to 3 (or, xor,
+    // and), or -1 if the token is not one
+    private static int operatorLevel(final KAToken token) {
+        switch (token) {
+            case TOKEN_MULTIPLE:
+            case TOKEN_DIVIDE:
+            case TOKEN_MOD:
+            case TOKEN_PERCENT:
+                return 0;
+            case TOKEN_ADD:
+            case TOKEN_SUBTRACT:
+                return 1;
+            case TOKEN_LESS:
+            case TOKEN_LESS_EQUAL:
+            case TOKEN_EQUAL:
+            case TOKEN_NOT_EQUAL:
+            case TOKEN_GREATER_EQUAL:
+            case TOKEN_GREATER:
+                return 2;
+            case TOKEN_OR:
+            case TOKEN_XOR:
+            case TOKEN_AND:
+                return 3;
+            default:
+                return -1;
+        }
     }
 
-    private void calc1(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationDoubleResult newDouble = new KAParserCalculationDoubleResult();
+    // the operands and the operators of a level compiled so far
+    private static final class PendingChain {
+
+        private final KANode first;
+        private final ArrayList<KAToken> operators = new ArrayList<>();
+        private final ArrayList<KANode> operands = new ArrayList<>();
+
+        PendingChain(final KANode first) {
+            this.first = first;
+        }
+
+        void add(final KANode operand) {
+            operands.add(operand);
+        }
+
+        void add(final KAToken operator) {
+            operators.add(operator);
+        }
+
+        KANode close(final KANode last, KALexStatus lexState) {
+            operands.add(last);
+            return share(KANode.chain(first, operators, operands), lexState);
+        }
+    }
 
-        calcTerm(resValue, lexState, lexResult);
+    // the unary operators before a term (or a power) are applied from the
+    // last one
+    private KANode compile2(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        ArrayList<KAToken> unaryOperators = null;
+        while (lexResult.getToken().equals(KAToken.TOKEN_NOT) || lexResult.getToken().equals(KAToken.TOKEN_INVERT)
+                || lexResult.getToken().equals(KAToken.TOKEN_ADD) || lexResult.getToken().equals(KAToken.TOKEN_SUBTRACT)) {
+            if (unaryOperators == null) {
+                unaryOperators = new ArrayList<>();
+            }
+            unaryOperators.add(lexResult.getToken());
+            yylex(lexState, lexResult);
+        }
+
+        KANode result = compileTerm(lexState, lexResult);
         if (lexResult.getToken().equals(KAToken.TOKEN_POWER)) {
             yylex(lexState, lexResult);
-            calcTerm(newDouble, lexState, lexResult);
-            resValue.setValue(Math.pow(resValue.getValue(), newDouble.getValue()));
+            result = share(new KANode.Power(result, compileTerm(lexState, lexResult)), lexState);
+        }
+        if (unaryOperators != null) {
+            for (int i = unaryOperators.size() - 1; i >= 0; i--) {
+                result = share(new KANode.Unary(unaryOperators.get(i), result), lexState);
+            }
         }
+        return result;
     }
 
-    private void calcTerm(KAParserCalculationDoubleResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        String currentIdent;
-        ArrayList<String> paramList = new ArrayList<>();
+    private KANode compileTerm(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        KANode result = null;
 
         switch (lexResult.getToken()) {
             case TOKEN_NUMBER: {
                 if (lexResult.isInteger()) {
-                    resValue.setValue((double) lexResult.getIntValue());
+                    result = new KANode.Constant((double) lexResult.getIntValue());
                 } else {
-                    resValue.setValue(lexResult.getDoubleValue());
+                    result = new KANode.Constant(lexResult.getDoubleValue());
                 }
                 yylex(lexState, lexResult);
                 break;
             }
             case TOKEN_LEFTBRACE: {
+                boolean argumentSeparator = lexState.isArgumentSeparator();
+                lexState.setArgumentSeparator(false);
                 yylex(lexState, lexResult);
-                calc6(resValue, lexState, lexResult);
+                result = compile6(lexState, lexResult);
                 if (lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE)) {
+                    lexState.setArgumentSeparator(argumentSeparator);
                     yylex(lexState, lexResult);
                 } else {
                     raiseError(KAErrorType.SYNTAX_ERROR, lexState);
@@ -792,36 +818,20 @@ public class KAParser {
                 break;
             }
             case TOKEN_IDENTIFIER: {
-                currentIdent = lexResult.getStringValue();
+                String currentIdent = lexResult.getStringValue();
                 yylex(lexState, lexResult);
                 if (lexResult.getToken().equals(KAToken.TOKEN_LEFTBRACE)) {
-                    if (isFunction(currentIdent)) {
-                        paramList.clear();
-                        parseFunctionParameters(currentIdent, paramList, lexState);
-                        resValue.setValue(executeFunction(currentIdent, paramList, lexState));
-                        yylex(lexState, lexResult);
-                    } else if (isInternalFunction(currentIdent)) {
-                        yylex(lexState, lexResult);
-                        calc6(resValue, lexState, lexResult);
-                        if (lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE)) {
-                            yylex(lexState, lexResult);
-                        } else {
-                            raiseError(KAErrorType.FUNCTION_ERROR, currentIdent, lexState);
-                        }
-                        if (!doInternalCalculate(KALexComputationType.FUNCTION, currentIdent, resValue)) {
-                            raiseError(KAErrorType.FUNCTION_ERROR, currentIdent, lexState);
-                        }
+                    KAFunction function = lexState.getConfiguration().getFunctions().get(currentIdent,
+                            KAParserValueType.TYPE_FLOAT);
+                    if (function instanceof KABuiltinFunctions.InternalFunction) {
+                        result = compileInternalCall(function, lexState, lexResult);
+                    } else if (lexState.getConfiguration().getFunctions().isFunction(currentIdent)) {
+                        result = compileFunctionCall(currentIdent, KAParserValueType.TYPE_FLOAT, lexState, lexResult);
                     } else {
-                        paramList.clear();
-                        parseFunctionParameters(currentIdent, paramList, lexState);
-                        resValue.setValue(doUserFunction(currentIdent, paramList, lexState));
-
-                        yylex(lexState, lexResult);
+                        result = compileUserFunction(currentIdent, lexState, lexResult);
                     }
                 } else {
-                    if (!doInternalCalculate(KALexComputationType.VALUE, currentIdent, resValue)) {
-                        raiseError(KAErrorType.FUNCTION_ERROR, currentIdent, lexState);
-                    }
+                    result = compileValue(currentIdent, lexState);
                 }
                 break;
             }
@@ -830,46 +840,47 @@ public class KAParser {
                 break;
             }
         }
-
+        return share(result, lexState);
     }
 
-    // string
-    private void startCalculateStr(KAParserCalculationStringResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        calculateStrLevel1(resValue, lexState, lexResult);
-        while (lexResult.getToken().equals(KAToken.TOKEN_SEMICOLON)) {
-            yylex(lexState, lexResult);
-            calculateStrLevel1(resValue, lexState, lexResult);
-        }
-        if (!(lexResult.getToken().equals(KAToken.TOKEN_EOF))) {
-            raiseError(KAErrorType.SYNTAX_ERROR, lexState);
-        }
+    // the node equal to node already compiled by the formulas of the same
+    // KAFormulaSet, if any
+    private static KANode share(final KANode node, KALexStatus lexState) {
+        KANode.Interner interner = lexState.getInterner();
+        return (interner != null) ? interner.intern(node) : node;
     }
 
-    private void calculateStrLevel1(KAParserCalculationStringResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
-        KAParserCalculationStringResult newString = new KAParserCalculationStringResult();
+    private KANode compileStrLevel1(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        ArrayList<KANode> operands = new ArrayList<>();
 
-        calculateStrLevel2(resValue, lexState, lexResult);
+        KANode first = compileStrLevel2(lexState, lexResult);
         while (lexResult.getToken().equals(KAToken.TOKEN_ADD)) {
             yylex(lexState, lexResult);
-            calculateStrLevel2(newString, lexState, lexResult);
-            resValue.setValue(resValue.getValue() + newString.getValue());
+            operands.add(compileStrLevel2(lexState, lexResult));
+        }
+        if (operands.isEmpty()) {
+            return first;
+        } else {
+            return new KANode.Concatenation(first, operands.toArray(new KANode[operands.size()]));
         }
     }
 
-    private void calculateStrLevel2(KAParserCalculationStringResult resValue, KALexStatus lexState, KALexComputationResult lexResult)
-            throws KAParserException {
+    private KANode compileStrLevel2(KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        KANode result;
+
         switch (lexResult.getToken()) {
             case TOKEN_STRING: {
-                resValue.setValue(lexResult.getStringValue().substring(0, lexResult.getStringValue().length()));
+                result = new KANode.StringConstant(lexResult.getStringValue());
                 yylex(lexState, lexResult);
                 break;
             }
             case TOKEN_LEFTBRACE: {
+                boolean argumentSeparator = lexState.isArgumentSeparator();
+                lexState.setArgumentSeparator(false);
                 yylex(lexState, lexResult);
-                calculateStrLevel1(resValue, lexState, lexResult);
+                result = compileStrLevel1(lexState, lexResult);
                 if (lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE)) {
+                    lexState.setArgumentSeparator(argumentSeparator);
                     yylex(lexState, lexResult);
                 } else {
                     raiseError(KAErrorType.SYNTAX_ERROR, lexState);
@@ -880,981 +891,429 @@ public class KAParser {
                 String currentIdent = lexResult.getStringValue();
                 yylex(lexState, lexResult);
                 if (lexResult.getToken().equals(KAToken.TOKEN_LEFTBRACE)) {
-                    ArrayList<String> paramList = new ArrayList<>();
-
-                    parseFunctionParameters(currentIdent, paramList, lexState);
-
-                    if (isFunction(currentIdent)) {
-                        resValue.setValue(executeStrFunction(currentIdent, paramList, lexState));
+                    if (lexState.getConfiguration().getFunctions().isFunction(currentIdent)
+                            && !(lexState.getConfiguration().getFunctions().get(currentIdent,
+                                    KAParserValueType.TYPE_STRING) instanceof KABuiltinFunctions.TrimFunction)) {
+                        result = compileFunctionCall(currentIdent, KAParserValueType.TYPE_STRING, lexState, lexResult);
                     } else {
-                        if (paramList.size() == 1) {
-                            calculateString(paramList.get(0), resValue);
-                            if (!doInternalStringCalculate(KALexComputationType.FUNCTION, currentIdent, resValue)) {
-                                resValue.setValue(doStrUserFunction(currentIdent, paramList, lexState));
-                            }
-                        } else {
-                            resValue.setValue(doStrUserFunction(currentIdent, paramList, lexState));
-                        }
+                        result = compileStringFunction(currentIdent, lexState, lexResult);
                     }
-                    yylex(lexState, lexResult);
                 } else {
-                    if (!doInternalStringCalculate(KALexComputationType.VALUE, currentIdent, resValue)) {
-                        raiseError(KAErrorType.FUNCTION_ERROR, currentIdent, lexState);
-                    }
+                    result = new KANode.StringValue(currentIdent, lexState.columnSlot(currentIdent),
+                            resolveValue(currentIdent, lexState), lexState.getFormula(), lexState.getCharIndex());
                 }
                 break;
             }
             default: {
-                // raiseError(KaParserExceptionType.sSyntaxError);
+                result = new KANode.Unchanged();
                 break;
             }
         }
-
+        return result;
     }
-    // range functions
 
-    private String insideBraces(final String value, final KALexStatus lexState) throws KAParserException {
-        String tempValue = value.trim();
+    // the internal constants are known when the formula is compiled, the
+    // other identifiers are values of the data providers
+    private KANode compileValue(final String identifier, KALexStatus lexState) {
+        switch (identifier.toLowerCase(Locale.ROOT)) {
+            case MP_INTCONST_TRUE:
+                return new KANode.Constant(1.0);
+            case MP_INTCONST_FALSE:
+                return new KANode.Constant(0.0);
+            case MP_INTCONST_PI:
+                return new KANode.Constant(Math.PI);
+            case MP_INTCONST_NOW:
+                lexState.setTimeDependent(true);
+                return new KANode.Now(false);
+            case MP_INTCONST_TODAY:
+                lexState.setTimeDependent(true);
+                return new KANode.Now(true);
+            default:
+                return new KANode.Value(identifier, lexState.columnSlot(identifier), resolveValue(identifier, lexState),
+                        lexState.getFormula(), lexState.getCharIndex());
+        }
+    }
 
-        int len = tempValue.length();
+    private KAResolvedValue resolveValue(final String identifier, KALexStatus lexState) {
+        lexState.addReference(identifier);
+        return KAResolvedValue.resolve(lexState.getConfiguration().getValueProviders(), identifier);
+    }
 
-        if (len <= 2) {
-            raiseError(KAErrorType.SYNTAX_ERROR, lexState); // stringa vuota
-            // o '()'
-            return "";
+    // the current token is the '(' opening the parameters; on return it is
+    // the token following the ')' that closes them. The function is found
+    // once here: a name the registry knows only for the other value type
+    // raises FUNCTION_UNKNOWN when it is calculated
+    private KANode compileFunctionCall(final String funct, final KAParserValueType valueType,
+            KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        String formula = lexState.getFormula();
+        KAFunction function = lexState.getConfiguration().getFunctions().get(funct, valueType);
+        ArrayList<KANode> arguments = new ArrayList<>();
+        ArrayList<Integer> bounds = new ArrayList<>();
+
+        if (!skipEmptyParameters(lexState)) {
+            boolean argumentSeparator = lexState.isArgumentSeparator();
+            lexState.setArgumentSeparator(true);
+            do {
+                KAParserValueType parameterType = (function != null) ? function.getParameterType(arguments.size())
+                        : null;
+                bounds.add(lexState.getCharIndex());
+                if (parameterType != null) {
+                    arguments.add(compileFunctionParameter(funct, parameterType, lexState, lexResult));
+                } else {
+                    // the parameter is never calculated, its text is enough
+                    skipToParameterEnd(funct, lexState, lexResult);
+                    arguments.add(null);
+                }
+                bounds.add(lexState.getCharIndex() - 1);
+            } while (lexResult.getToken().equals(KAToken.TOKEN_COMMA));
+            lexState.setArgumentSeparator(argumentSeparator);
         }
 
-        if (tempValue.charAt(0) != '(') {
-            raiseError(KAErrorType.SYNTAX_ERROR, lexState); // non inizia
-            // con '('
-            return "";
+        KANode result;
+        if (function == null) {
+            result = new KANode.CallError(KAErrorType.FUNCTION_UNKNOWN, formula, lexState.getCharIndex());
+        } else {
+            if (function instanceof KABuiltinFunctions.ClockFunction) {
+                lexState.setTimeDependent(true);
+            }
+            int[] parameterBounds = toIntArray(bounds);
+            result = compileRange(function, arguments, parameterBounds, formula, lexState.getCharIndex());
+            if (result == null) {
+                result = new KANode.FunctionCall(bindFunction(function, arguments, lexState),
+                        arguments.toArray(new KANode[arguments.size()]), parameterBounds, formula,
+                        lexState.getCharIndex());
+            }
         }
+        yylex(lexState, lexResult);
+        return result;
+    }
 
-        if (tempValue.charAt(len - 1) != ')') {
-            raiseError(KAErrorType.SYNTAX_ERROR, lexState); // non finisce
-            // con ')'
-            return "";
+    // a built-in aggregate whose only parameter is a range, like
+    // sum(childs(NAME)), is recognized here once, so that its calculation
+    // does not look at the text again; null if the call is not a range. The
+    // parameter is a range only if it compiled to a single call of a range
+    // function, so the call spans its whole text: sum(childs(A) * 2) is an
+    // ordinary expression
+    private static KANode compileRange(final KAFunction function, final List<KANode> arguments,
+            final int[] bounds, final String formula, final int position) {
+        if (!(function instanceof KABuiltinFunctions.RangeFunction) || (arguments.size() != 1)) {
+            return null;
+        }
+        String calledFunction = KANode.calledFunction(arguments.get(0));
+        String rangeFunction = (calledFunction != null) ? KABuiltinFunctions.rangeFunction(calledFunction) : null;
+        if (rangeFunction == null) {
+            return null;
         }
+        String argument = KABuiltinFunctions.rangeArgument(KANode.parameterText(formula, bounds, 0));
+        if (argument == null) {
+            return new KANode.CallError(KAErrorType.SYNTAX_ERROR, formula, position);
+        }
+        return new KANode.RangeAggregate(((KABuiltinFunctions.RangeFunction) function).getAggregate(),
+                rangeFunction, argument, formula, position);
+    }
 
-        return tempValue.substring(1, len - 1).trim();
+    // stringtodatetime with a literal pattern gets the pattern compiled here,
+    // once; a pattern that is not valid raises its error when the call is
+    // calculated, as before
+    private static KAFunction bindFunction(final KAFunction function, final List<KANode> arguments,
+            KALexStatus lexState) {
+        if ((function instanceof KABuiltinFunctions.StringToDateTime) && (arguments.size() == 2)
+                && (arguments.get(1) instanceof KANode.StringConstant)) {
+            try {
+                return ((KABuiltinFunctions.StringToDateTime) function).withPattern(
+                        ((KANode.StringConstant) arguments.get(1)).getValue(), lexState.getConfiguration().getZone());
+            } catch (IllegalArgumentException e) {
+                return function;
+            }
+        }
+        return function;
     }
 
-    private void manageRangeFunction(final String funct, final ArrayList<String> parametersList,
-            final KAParserValueType valueType, ArrayList<Object> tempValuesArray, KALexStatus lexState)
-            throws KAParserException {
-
-        tempValuesArray.clear();
-
-        if (parametersList.size() == 1) {
-            String lowercaseFunct = funct.toLowerCase();
-
-            int k = lowercaseFunct.indexOf(MP_RANGEFUNC_CHILDSNOTNULL);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_CHILDSNOTNULL.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_CHILDSNOTNULL, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_PARENTNOTNULL);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_PARENTNOTNULL.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_PARENTNOTNULL, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_PARENTSNOTNULL);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_PARENTSNOTNULL.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_PARENTSNOTNULL, insideBraces(tempString, lexState),
-                        valueType, tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_CHILDS);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_CHILDS.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_CHILDS, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_PARENT);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_PARENT.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_PARENT, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_PARENTS);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_PARENTS.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_PARENTS, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
-            }
-            k = lowercaseFunct.indexOf(MP_RANGEFUNC_THIS);
-            if (k >= 0) {
-                String tempString = funct.substring(k + MP_RANGEFUNC_THIS.length() - 1);
-                if (!doInternalRangeCalculate(MP_RANGEFUNC_THIS, insideBraces(tempString, lexState), valueType,
-                        tempValuesArray)) {
-                    raiseError(KAErrorType.FUNCTION_ERROR, lexState);
-                }
-                return;
+    // a parameter that cannot be compiled raises its error only when it is
+    // calculated: its text is skipped up to the ',' or the ')' that ends it
+    private KANode compileFunctionParameter(final String funct, final KAParserValueType parameterType,
+            KALexStatus lexState, KALexComputationResult lexResult) throws KAParserException {
+        int startIndex = lexState.getCharIndex();
+        try {
+            yylex(lexState, lexResult);
+            KANode result = compileSequence(parameterType, lexState, lexResult);
+            if (!(lexResult.getToken().equals(KAToken.TOKEN_COMMA)
+                    || lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE))) {
+                raiseError(KAErrorType.SYNTAX_ERROR, lexState);
             }
+            return result;
+        } catch (KAParserException e) {
+            lexState.setCharIndex(startIndex);
+            lexState.setArgumentSeparator(true);
+            skipToParameterEnd(funct, lexState, lexResult);
+            return new KANode.Failure(e);
         }
+    }
 
-        for (int i = 0; i < parametersList.size(); i++) {
-            if (valueType == KAParserValueType.TYPE_FLOAT) {
-                KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-                calculate(parametersList.get(i), tempDouble);
-                tempValuesArray.add(tempDouble.getValue());
-            } else {
-                KAParserCalculationStringResult tempString = new KAParserCalculationStringResult();
-                calculateString(parametersList.get(i), tempString);
-                tempValuesArray.add(tempString.getValue());
-            }
+    // skips the text of a parameter, leaving the lexer after the ',' or the
+    // ')' that ends it, as if it was its last token
+    private void skipToParameterEnd(final String funct, KALexStatus lexState, KALexComputationResult lexResult)
+            throws KAParserException {
+        skipFunctionParameter(funct, lexState);
+        if (lexState.currentChar() == ',') {
+            lexResult.setToken(KAToken.TOKEN_COMMA);
+        } else {
+            lexResult.setToken(KAToken.TOKEN_RIGHTBRACE);
         }
+        lexState.advance();
     }
 
-    private Boolean isInternalFunction(final String functionName) {        
-
-        return MP_INT_FUNC_TRUNC.equalsIgnoreCase(functionName) || MP_INT_FUNC_SIN.equalsIgnoreCase(functionName) || 
-        		MP_INT_FUNC_COS.equalsIgnoreCase(functionName) || MP_INT_FUNC_TAN.equalsIgnoreCase(functionName) ||
-        		MP_INT_FUNC_FRAC.equalsIgnoreCase(functionName) || MP_INT_FUNC_INT.equalsIgnoreCase(functionName);
-    }
-
-    private Boolean isFunction(final String functionName) {
-
-        return (functionName.equalsIgnoreCase(MP_SPECFUNC_IF) || (functionName.equalsIgnoreCase(MP_SPECFUNC_EMPTY))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_LEN)) || (functionName.equalsIgnoreCase(MP_SPECFUNC_AND))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_OR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_SAFEDIV))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_CONCATENATE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_REPLICATE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_LEFT))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_RIGHT))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_SUBSTR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_TOSTR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_POS))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_UPPERCASE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_LOWERCASE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_EQUALS))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_EQUALSIGNORECASE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_COMPARETO))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_COMPARETOIGNORECASE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_ROUND))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_CEIL))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_FLOOR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_NOT)) || (functionName.equalsIgnoreCase(MP_SPECFUNC_SUM))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_MAX)) || (functionName.equalsIgnoreCase(MP_SPECFUNC_MIN))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_AVG))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_COUNT))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETDAY))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETWEEK))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETMONTH))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETYEAR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETHOUR))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETMINUTE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_GETSECOND))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_PREVIOUSMONDAY))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_STARTOFTHEMONTH))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_ENDOFTHEMONTH))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_TODATE))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_TODATETIME))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_DISTANCEFROMNOW))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_DISTANCEFROMTODAY))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_STRINGTODATETIME))
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_TODOUBLE)) 
-                || (functionName.equalsIgnoreCase(MP_SPECFUNC_RAISEERROR))
-        		);
-    }
-
-    private void parseFunctionParameters(final String funct, ArrayList<String> parametersList, KALexStatus lexState)
+    // a string function with a single parameter may be trim, ltrim, rtrim or
+    // a function of the data providers applied to the value of the parameter,
+    // otherwise it is a user function
+    private KANode compileStringFunction(final String funct, KALexStatus lexState, KALexComputationResult lexResult)
             throws KAParserException {
-        int startindex = lexState.getCharIndex();
-        int i;
-        int q;
-        int par = 1;
-        Boolean insideCommas = false;
-
-        // questa funzione deve cercare la prima parentesi ( e poi andare avanti
-        // verso dx
-        // aprendo e chiudendo le eventuali parentesi
-        // fino a trovare la parentesi ) che corrisponde alla prima trovata
-        // cosi' si risolve il problema delle parentesi annidate
-
-        while (!lexState.isEof()) {
-            if (lexState.getFormula().charAt(lexState.getCharIndex()) == '\'') {
-                insideCommas = !insideCommas;
-            } else if ((!insideCommas) && (lexState.getFormula().charAt(lexState.getCharIndex()) == '(')) {
-                par++;
-            } else if ((!insideCommas) && (lexState.getFormula().charAt(lexState.getCharIndex()) == ')')) {
-                par--;
-            }
-
-            if (par == 0) {
-                break;
-            } else {
-                lexState.advance();
+        String formula = lexState.getFormula();
+        int startIndex = lexState.getCharIndex();
+        ArrayList<Integer> bounds = new ArrayList<>();
+        KANode argument = null;
+
+        if (!skipEmptyParameters(lexState)) {
+            boolean argumentSeparator = lexState.isArgumentSeparator();
+            lexState.setArgumentSeparator(true);
+            try {
+                yylex(lexState, lexResult);
+                argument = compileSequence(KAParserValueType.TYPE_STRING, lexState, lexResult);
+                if (!lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE)) {
+                    raiseError(KAErrorType.SYNTAX_ERROR, lexState);
+                }
+                bounds.add(startIndex);
+                bounds.add(lexState.getCharIndex() - 1);
+            } catch (KAParserException e) {
+                argument = new KANode.Failure(e);
             }
+            lexState.setArgumentSeparator(argumentSeparator);
         }
-
-        String parametersStr = lexState.getFormula().substring(startindex, lexState.getCharIndex()).trim();
-
-        if (par != 0) {
-            raiseError(KAErrorType.FUNCTION_ERROR, funct, lexState);
+        if (bounds.isEmpty()) {
+            // more than one parameter, or a parameter that cannot be compiled
+            lexState.setCharIndex(startIndex);
+            scanFunctionParameters(funct, bounds, lexState);
         }
-        if (parametersStr.equalsIgnoreCase("")) {
-            return; // no parameters
-        }
-
-        lexState.advance(); // spostiamoci al carattere successivo alla
-        // parentesi
-
-        par = 0;
-        i = 0;
-        int k = 0;
-        q = 0;
-        insideCommas = false;
-
-        while (i < parametersStr.length()) {
-            if (parametersStr.charAt(i) == '\'') {
-                insideCommas = !insideCommas;
-            }
-            if ((!insideCommas) && (parametersStr.charAt(i) == '(')) {
-                par++;
-            } else if ((!insideCommas) && (parametersStr.charAt(i) == ')')) {
-                par--;
-            }
-            if ((!insideCommas) && (parametersStr.charAt(i) == ',') && (par == 0)) {
-                parametersList.add(parametersStr.substring(q, k + q).trim());
-                q = i + 1;
-                k = 0;
-            } else {
-                k++;
-            }
-            i++;
 
+        KANode result;
+        KAFunction function = lexState.getConfiguration().getFunctions().get(funct, KAParserValueType.TYPE_STRING);
+        if ((bounds.size() == 2) && (function instanceof KABuiltinFunctions.TrimFunction)) {
+            result = new KANode.FunctionCall(function, new KANode[] {argument}, toIntArray(bounds), formula,
+                    lexState.getCharIndex());
+        } else if (bounds.size() == 2) {
+            result = new KANode.StringFunction(funct, resolveValue(funct, lexState), argument, toIntArray(bounds), formula,
+                    lexState.getCharIndex());
+        } else {
+            result = new KANode.UserFunction(funct, parameterTexts(formula, bounds), formula, lexState.getCharIndex());
         }
+        yylex(lexState, lexResult);
+        return result;
+    }
 
-        parametersList.add(parametersStr.substring(q).trim());
-
+    // an internal function (trunc, sin...) has the whole text between the
+    // braces as its only parameter, so a ',' there is a decimal separator
+    private KANode compileInternalCall(final KAFunction function, KALexStatus lexState,
+            KALexComputationResult lexResult) throws KAParserException {
+        int startIndex = lexState.getCharIndex();
+        boolean argumentSeparator = lexState.isArgumentSeparator();
+        lexState.setArgumentSeparator(false);
+        yylex(lexState, lexResult);
+        KANode argument = compile6(lexState, lexResult);
+        if (!lexResult.getToken().equals(KAToken.TOKEN_RIGHTBRACE)) {
+            raiseError(KAErrorType.FUNCTION_ERROR, function.getName(), lexState);
+        }
+        lexState.setArgumentSeparator(argumentSeparator);
+        KANode result = new KANode.FunctionCall(function, new KANode[] {argument},
+                new int[] {startIndex, lexState.getCharIndex() - 1}, lexState.getFormula(), lexState.getCharIndex());
+        yylex(lexState, lexResult);
+        return result;
     }
 
-    private double executeFunction(final String funct, ArrayList<String> parametersList, KALexStatus lexState)
+    private KANode compileUserFunction(final String funct, KALexStatus lexState, KALexComputationResult lexResult)
             throws KAParserException {
-        if (funct.equalsIgnoreCase(MP_SPECFUNC_IF)) {
-            if (parametersList.size() != 3) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempResult);
-            if (tempResult.getValue() != 0) {
-                calculate(parametersList.get(1), tempResult);
-            } else {
-                calculate(parametersList.get(2), tempResult);
-            }
-            return tempResult.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_LEN)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            return new Double((double) tempStrValue.getValue().length());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_RAISEERROR)) {
-        	if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-        	raiseError(KAErrorType.USER_EXCEPTION, parametersList.get(0), lexState);
-        	return 0;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_POS)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationStringResult tempStrValue2 = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            calculateString(parametersList.get(1), tempStrValue2);
-            return (double) tempStrValue2.getValue().indexOf(tempStrValue.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_TODOUBLE)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            return strToFloatExt(tempStrValue.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_DISTANCEFROMTODAY)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return Math.floor(KADateTimeUtilities.instantToDouble(KADateTimeUtilities.today()) - tempDouble.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_DISTANCEFROMNOW)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.instantToDouble(Instant.now()) - tempDouble.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETDAY)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getDayOfMonth(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETYEAR)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getYear(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETWEEK)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.doubleToInstant(tempDouble.getValue()).get(ChronoField.ALIGNED_WEEK_OF_YEAR);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETMONTH)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getMonth(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETHOUR)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getHour(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETMINUTE)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getMinute(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_GETSECOND)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.getSecond(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_PREVIOUSMONDAY)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return KADateTimeUtilities.instantToDouble(
-                    KADateTimeUtilities.previousMonday(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_STARTOFTHEMONTH)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-
-            return KADateTimeUtilities.instantToDouble(
-                    KADateTimeUtilities.startOfTheMonth(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_ENDOFTHEMONTH)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-
-            return KADateTimeUtilities.instantToDouble(
-                    KADateTimeUtilities.endOfTheMonth(KADateTimeUtilities.doubleToInstant(tempDouble.getValue()), zone));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_TODATE)) {
-            if (parametersList.size() != 3) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble2 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble3 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            calculate(parametersList.get(1), tempDouble2);
-            calculate(parametersList.get(2), tempDouble3);
-            LocalDate dt = LocalDate.of((int) Math.floor(tempDouble3.getValue()),
-                    (int) Math.floor(tempDouble2.getValue()), (int) Math.floor(tempDouble.getValue()));
-
-            return KADateTimeUtilities.instantToDouble(Instant.from(dt.atStartOfDay(this.zone)));
-            // return
-            // KADateTimeUtilities.instantToDouble(dt.atStartOfDay().toInstant(ZoneOffset.UTC));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_TODATETIME)) {
-            if (parametersList.size() != 6) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble2 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble3 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble4 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble5 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble6 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            calculate(parametersList.get(1), tempDouble2);
-            calculate(parametersList.get(2), tempDouble3);
-            calculate(parametersList.get(3), tempDouble4);
-            calculate(parametersList.get(4), tempDouble5);
-            calculate(parametersList.get(5), tempDouble6);
-
-            LocalDateTime dt = LocalDateTime.of((int) Math.floor(tempDouble3.getValue()),
-                    (int) Math.floor(tempDouble2.getValue()), (int) Math.floor(tempDouble.getValue()),
-                    (int) Math.floor(tempDouble4.getValue()), (int) Math.floor(tempDouble5.getValue()),
-                    (int) Math.floor(tempDouble6.getValue()));
-            return KADateTimeUtilities.instantToDouble(Instant.from(dt));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_EMPTY)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            return booleanToFloat(tempStrValue.getValue().trim().length() == 0);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_EQUALS) || funct.equalsIgnoreCase(MP_SPECFUNC_EQUALSIGNORECASE)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationStringResult tempStrValue2 = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            calculateString(parametersList.get(1), tempStrValue2);
-            if (funct.equalsIgnoreCase(MP_SPECFUNC_EQUALS)) {
-            	return booleanToFloat((tempStrValue.getValue().compareTo(tempStrValue2.getValue()) == 0));	
-            } else {
-            	return booleanToFloat(tempStrValue.getValue().equalsIgnoreCase(tempStrValue2.getValue()));
-            }
-            
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_COMPARETO) || funct.equalsIgnoreCase(MP_SPECFUNC_COMPARETOIGNORECASE)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationStringResult tempStrValue2 = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            calculateString(parametersList.get(1), tempStrValue2);
-            if (funct.equalsIgnoreCase(MP_SPECFUNC_COMPARETO)) {
-            	return tempStrValue.getValue().compareTo(tempStrValue2.getValue());
-            } else {
-            	return tempStrValue.getValue().compareToIgnoreCase(tempStrValue2.getValue());	
-            }             
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_AND)) {
-            if (parametersList.size() < 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            if (! floatToBoolean(tempDouble.getValue())) {
-            	return booleanToFloat(false);
-            } else {
-                for (int i = 1; i <= (parametersList.size() - 1); i++) {
-                    tempDouble.setValue(0.0);
-                    calculate(parametersList.get(i), tempDouble);
-                    //tempBoolean = tempBoolean && floatToBoolean(tempDouble.getValue());
-                    if (!floatToBoolean(tempDouble.getValue())) {
-                    	return booleanToFloat(false);
-                    }
-                }
-            }
-            return booleanToFloat(true);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_OR)) {
-            if (parametersList.size() < 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            if (floatToBoolean(tempDouble.getValue())) {
-            	return booleanToFloat(true);
-            } else  {
-                for (int i = 1; i <= (parametersList.size() - 1); i++) {
-                    tempDouble.setValue(0.0);
-                    calculate(parametersList.get(i), tempDouble);
-                    //tempBoolean = tempBoolean || floatToBoolean(tempDouble.getValue());
-                    if (floatToBoolean(tempDouble.getValue())) {
-                    	return booleanToFloat(true);                        
-                    }
-                }
-            }
-            return booleanToFloat(false);
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_SAFEDIV)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble2 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            calculate(parametersList.get(1), tempDouble2);
-
-            return KAMathUtilities.safeDiv(tempDouble.getValue(), tempDouble2.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_BETWEEN)) {
-            if (parametersList.size() != 3) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble2 = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble3 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            calculate(parametersList.get(1), tempDouble2);
-            calculate(parametersList.get(2), tempDouble3);
-
-            return booleanToFloat(KAMathUtilities.doubleIsEqualOrGreater(tempDouble.getValue(), tempDouble2.getValue(),
-                    decimalNumbers)
-                    && KAMathUtilities.doubleIsEqualOrLessThan(tempDouble.getValue(), tempDouble3.getValue(),
-                            decimalNumbers));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_ROUND)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            KAParserCalculationDoubleResult tempDouble2 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            calculate(parametersList.get(1), tempDouble2);
-
-            return (double) KAMathUtilities.roundTo(tempDouble.getValue(), (int) Math.round(tempDouble2.getValue()));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_CEIL)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return Math.ceil(tempDouble.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_FLOOR)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            return Math.floor(tempDouble.getValue());
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_STRINGTODATETIME)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationStringResult tempStrValue2 = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            calculateString(parametersList.get(1), tempStrValue2);
-            // java è pazzo. Questo per ripristinare un minimo di semplicità e
-            // far accettare formati alla Oracle tipo "DD-MM-YYYY".
-            tempStrValue2.setValue(tempStrValue2.getValue().replace("DD", "dd").replace("YYYY", "yyyy")
-                    .replace("YY", "yy").replace("mm", "MM"));
-
-            SimpleDateFormat sdf = new SimpleDateFormat(tempStrValue2.getValue());
-            Date tempDate = new Date();
-            try {
-                // sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-                sdf.setTimeZone(TimeZone.getTimeZone(this.zone));
-                tempDate = sdf.parse(tempStrValue.getValue());
-            } catch (ParseException e) {
-                raiseError(KAErrorType.PARSE_ERROR, tempStrValue.getValue(), lexState);
-            }
-
-            return KADateTimeUtilities.instantToDouble(DateToInstant(tempDate));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_NOT)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), tempDouble);
-            if (floatToBoolean(tempDouble.getValue())) {
-                return 0;
-            } else {
-                return 1;
-            }
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_SUM)) {
-            if (parametersList.isEmpty()) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_FLOAT, tempValuesArray, lexState);
-
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-
-            for (int i = 0; i < tempValuesArray.size(); i++) {
-                tempDouble.setValue(tempDouble.getValue() + (Double) tempValuesArray.get(i));
-            }
-            return tempDouble.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_MAX)) {
-            if (parametersList.isEmpty()) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_FLOAT, tempValuesArray, lexState);
-
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
-
-            if (tempValuesArray.isEmpty()) {
-                tempDouble.setValue(0.0);
-            } else {
-                tempDouble.setValue((Double) tempValuesArray.get(0));
-            }
-            for (int i = 1; i < tempValuesArray.size(); i++) {
-                if ((Double) tempValuesArray.get(i) > tempDouble.getValue()) {
-                    tempDouble.setValue((Double) tempValuesArray.get(i));
-                }
-            }
-            return tempDouble.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_MIN)) {
-            if (parametersList.isEmpty()) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
+        ArrayList<Integer> bounds = new ArrayList<>();
+        scanFunctionParameters(funct, bounds, lexState);
+        KANode result = new KANode.UserFunction(funct, parameterTexts(lexState.getFormula(), bounds),
+                lexState.getFormula(), lexState.getCharIndex());
+        yylex(lexState, lexResult);
+        return result;
+    }
 
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_FLOAT, tempValuesArray, lexState);
+    // a parameter of a user function, compiled when a data provider first
+    // asks for its value: as the parameters of the built-in functions, one
+    // that cannot be compiled raises its error when it is calculated
+    KANode compileParameter(final String text, final KAParserValueType valueType) {
+        try {
+            return compileFormula(text, valueType, null, null).getRoot();
+        } catch (KAParserException e) {
+            return new KANode.Failure(e);
+        }
+    }
 
-            KAParserCalculationDoubleResult tempDouble = new KAParserCalculationDoubleResult();
+    private KACompiledFormula compileFormula(final String newFormula, final KAParserValueType valueType)
+            throws KAParserException {
+        return compileFormula(newFormula, valueType, null, new HashMap<String, Integer>());
+    }
 
-            if (tempValuesArray.isEmpty()) {
-                tempDouble.setValue(0.0);
-            } else {
-                tempDouble.setValue((Double) tempValuesArray.get(0));
-            }
-            for (int i = 1; i < tempValuesArray.size(); i++) {
-                if ((Double) tempValuesArray.get(i) < tempDouble.getValue()) {
-                    tempDouble.setValue((Double) tempValuesArray.get(i));
-                }
-            }
-            return tempDouble.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_AVG)) {
-            if (parametersList.isEmpty()) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
+    private KACompiledFormula compileFormula(final String newFormula, final KAParserValueType valueType,
+            final KANode.Interner interner, final HashMap<String, Integer> columnSlots) throws KAParserException {
+        KALexStatus tempKaLexStatus = new KALexStatus();
+        KALexComputationResult tempKaLexComputationResult = new KALexComputationResult();
 
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_FLOAT, tempValuesArray, lexState);
+        tempKaLexStatus.setFormula(newFormula);
+        tempKaLexStatus.setConfiguration(configuration);
+        tempKaLexStatus.setInterner(interner);
+        tempKaLexStatus.setColumnSlots(columnSlots);
 
-            Double tempDouble = 0.0;
+        yylex(tempKaLexStatus, tempKaLexComputationResult);
 
-            for (int i = 0; i < tempValuesArray.size(); i++) {
-                tempDouble = tempDouble + (Double) tempValuesArray.get(i);
-            }
-            if (!tempValuesArray.isEmpty()) {
-                tempDouble = tempDouble / tempValuesArray.size();
-            }
-            return tempDouble;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_COUNT)) {
-            if (parametersList.isEmpty()) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return 0;
-            }
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
+        KANode root = compileStart(valueType, tempKaLexStatus, tempKaLexComputationResult);
+        return new KACompiledFormula(this, newFormula, valueType, root, tempKaLexStatus.getReferences(),
+                tempKaLexStatus.isTimeDependent(), tempKaLexStatus.getColumnCount());
+    }
 
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_FLOAT, tempValuesArray, lexState);
-            return tempValuesArray.size();
+    // there are no parameters when only blanks come before the ')': in this
+    // case the lexer is moved after it
+    private boolean skipEmptyParameters(KALexStatus lexState) {
+        String formula = lexState.getFormula();
+        int i = lexState.getCharIndex();
+        while ((i < formula.length()) && (formula.charAt(i) <= ' ')) {
+            i++;
+        }
+        if ((i < formula.length()) && (formula.charAt(i) == ')')) {
+            lexState.setCharIndex(i + 1);
+            return true;
         } else {
-            raiseError(KAErrorType.FUNCTION_UNKNOWN, lexState);
-            return 0;
+            return false;
         }
     }
 
-    private String executeStrFunction(final String funct, ArrayList<String> parametersList, KALexStatus lexState)
+    // scans the parameters of a function call as text, without parsing them,
+    // storing where each one starts and ends; on return the lexer is after
+    // the ')' closing them
+    private void scanFunctionParameters(final String funct, ArrayList<Integer> bounds, KALexStatus lexState)
             throws KAParserException {
-        if (funct.equalsIgnoreCase(MP_SPECFUNC_IF)) {
-            if (parametersList.size() != 3) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-
-            KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
-
-            calculate(parametersList.get(0), tempValue);
-
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-
-            if (KAMathUtilities.doubleIsEqualOrGreater(tempValue.getValue(), 1.0, decimalNumbers)) {
-                calculateString(parametersList.get(1), tempStrValue);
-            } else {
-                calculateString(parametersList.get(2), tempStrValue);
-            }
-
-            return tempStrValue.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_REPLICATE)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(1), tempValue);
-            String tempStrValue2 = tempStrValue.getValue();
-            for (int i = 1; i <= (int) Math.round(tempValue.getValue()); i++) {
-                tempStrValue2 = tempStrValue2 + tempStrValue.getValue();
-            }
-            return tempStrValue2;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_CONCATENATE)) {
-            if (parametersList.size() < 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
+        if (skipEmptyParameters(lexState)) {
+            return;
+        }
+        char separator;
+        do {
+            bounds.add(lexState.getCharIndex());
+            skipFunctionParameter(funct, lexState);
+            bounds.add(lexState.getCharIndex());
+            separator = lexState.currentChar();
+            lexState.advance();
+        } while (separator == ',');
+    }
 
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationStringResult tempStrValue2 = new KAParserCalculationStringResult();
-            for (int i = 0; i < parametersList.size(); i++) {
-                calculateString(parametersList.get(i), tempStrValue);
-                tempStrValue2.setValue(tempStrValue2.getValue() + tempStrValue.getValue());
-            }
-            return tempStrValue2.getValue();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_TOSTR)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationDoubleResult TempValue = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(0), TempValue);
-            return TempValue.getValue().toString();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_UPPERCASE)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            return tempStrValue.getValue().toUpperCase();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_LOWERCASE)) {
-            if (parametersList.size() != 1) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            return tempStrValue.getValue().toLowerCase();
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_LEFT)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            calculate(parametersList.get(1), tempValue);
+    // moves the lexer to the ',' or the ')' ending the current parameter,
+    // skipping the nested parentheses and the quoted text
+    private void skipFunctionParameter(final String funct, KALexStatus lexState) throws KAParserException {
+        int par = 0;
+        boolean insideCommas = false;
 
-            return tempStrValue.getValue().substring(0,Math.min(tempStrValue.getValue().length(), (int) Math.round(tempValue.getValue())));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_RIGHT)) {
-            if (parametersList.size() != 2) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(1), tempValue);
-            return tempStrValue.getValue().substring(Math.max(0, tempStrValue.getValue().length() - (int) Math.round(tempValue.getValue())));
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_SUBSTR)) {
-            if (parametersList.size() != 3) {
-                raiseError(KAErrorType.WRONG_PARAM_COUNT, lexState);
-                return "";
-            }
-            KAParserCalculationStringResult tempStrValue = new KAParserCalculationStringResult();
-            calculateString(parametersList.get(0), tempStrValue);
-            KAParserCalculationDoubleResult tempValue = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(1), tempValue);
-            KAParserCalculationDoubleResult tempValue2 = new KAParserCalculationDoubleResult();
-            calculate(parametersList.get(2), tempValue2);
-            return tempStrValue.getValue().substring((int) Math.round(tempValue.getValue()), (int) Math.round(tempValue.getValue()) + (int) Math.round(tempValue2.getValue())); // -1, alla pascal!
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_SUM)) {
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_STRING, tempValuesArray, lexState);
-            String tempStrValue = "";
-            for (int i = 0; i < tempValuesArray.size(); i++) {
-                tempStrValue = tempStrValue + tempValuesArray.get(i).toString();
-            }
-            return tempStrValue;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_MAX)) {
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_STRING, tempValuesArray, lexState);
-            String tempStrValue = "";
-            for (int i = 0; i < tempValuesArray.size(); i++) {
-                if (tempStrValue.compareTo(tempValuesArray.get(i).toString()) < 0) {
-                    tempStrValue = tempValuesArray.get(i).toString();
-                }
-            }
-            return tempStrValue;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_MIN)) {
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_STRING, tempValuesArray, lexState);
-            String tempStrValue = "";
-            for (int i = 0; i < tempValuesArray.size(); i++) {
-                if (tempStrValue.compareTo(tempValuesArray.get(i).toString()) > 0) {
-                    tempStrValue = tempValuesArray.get(i).toString();
+        while (!lexState.isEof()) {
+            char currentChar = lexState.currentChar();
+            if (currentChar == '\'') {
+                insideCommas = !insideCommas;
+            } else if (!insideCommas) {
+                if (currentChar == '(') {
+                    par++;
+                } else if (currentChar == ')') {
+                    if (par == 0) {
+                        return;
+                    }
+                    par--;
+                } else if ((currentChar == ',') && (par == 0)) {
+                    return;
                 }
             }
-            return tempStrValue;
-        } else if (funct.equalsIgnoreCase(MP_SPECFUNC_COUNT)) {
-            ArrayList<Object> tempValuesArray = new ArrayList<>();
-            manageRangeFunction(funct, parametersList, KAParserValueType.TYPE_STRING, tempValuesArray, lexState);
-            return Integer.toString(tempValuesArray.size());
-        } else {
-            raiseError(KAErrorType.FUNCTION_UNKNOWN, lexState);
-            return "";
+            lexState.advance();
         }
-
+        raiseError(KAErrorType.FUNCTION_ERROR, funct, lexState);
     }
 
-    private String formatErrorString(final KAErrorType errorCode, final String currentIdent,
-            final KALexStatus lexState) {
-        String errorDescription;
-
-        switch (errorCode) {
-            case INVALID_STRING:
-                errorDescription = "Invalid string";
-                break;
-            case SYNTAX_ERROR:
-                errorDescription = "Syntax error";
-                break;
-            case FUNCTION_ERROR:
-                errorDescription = "Function error";
-                break;
-            case WRONG_PARAM_COUNT:
-                errorDescription = "Wrong parameters count";
-                break;
-            case FUNCTION_UNKNOWN:
-                errorDescription = "Function unknown";
-                break;
-            case PARSE_ERROR:
-                errorDescription = "Parse error";
-                break;
-            case EXTERNAL_FUNCTION_ERROR:
-                errorDescription = "External function error";
-                break;
-            case USER_EXCEPTION:
-            	errorDescription = "User exception";
-            	break;
-            default:
-                errorDescription = "Unknown error";
-        }
-        if ((!currentIdent.isEmpty()) && (currentIdent.length() > 0)) {
-            errorDescription = String.format(
-                    "Error %s (description: %s) while validating %s in formula [%s] before position %s",
-                    errorCode.toString(), errorDescription, currentIdent, lexState.getFormula(),
-                    lexState.getCharIndex().toString());
-        } else {
-            errorDescription = String.format("Error %s (description: %s) in formula [%s] before position %s",
-                    errorCode.toString(), errorDescription, lexState.getFormula(), lexState.getCharIndex().toString());
+    private static int[] toIntArray(final ArrayList<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
         }
+        return result;
+    }
 
-        return errorDescription;
+    private static List<String> parameterTexts(final String formula, final ArrayList<Integer> bounds) {
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = 0; i < bounds.size(); i += 2) {
+            result.add(formula.substring(bounds.get(i), bounds.get(i + 1)).trim());
+        }
+        return Collections.unmodifiableList(result);
     }
 
     private void raiseError(final KAErrorType errorCode, final KALexStatus lexState) throws KAParserException {
-        String tempErrorString = formatErrorString(errorCode, "generic error", lexState);
-        throw new KAParserException(tempErrorString);
+        raiseError(errorCode, lexState.getFormula(), lexState.getCharIndex());
     }
 
     private void raiseError(final KAErrorType errorCode, final String errorMessage, final KALexStatus lexState)
             throws KAParserException {
-        String tempErrorString = formatErrorString(errorCode, errorMessage, lexState);
-        throw new KAParserException(tempErrorString);
+        raiseError(errorCode, errorMessage, lexState.getFormula(), lexState.getCharIndex());
     }
 
-    private double booleanToFloat(final Boolean aValue) {
-        if (aValue) {
-            return 1;
-        } else {
-            return 0;
-        }
+    void raiseError(final KAErrorType errorCode, final String formula, final int position) throws KAParserException {
+        raiseError(errorCode, KAParserException.GENERIC_ERROR, formula, position);
     }
 
-    private Boolean floatToBoolean(final double aValue) {
-        return Math.round(Math.abs(aValue)) >= 1;
+    void raiseError(final KAErrorType errorCode, final String errorMessage, final String formula, final int position)
+            throws KAParserException {
+        raiseError(errorCode, errorMessage, formula, position, configuration.hasErrorStackTraces());
     }
 
-    private double strToFloatExt(final String value) {
-        String tempValue = value;
-
-        // float.Parse(aValue, CultureInfo.InvariantCulture.NumberFormat);
-
-        if (tempValue.indexOf(',') >= 0) {
-            tempValue = tempValue.replace(',', '.');
-        }
-
-        return Double.parseDouble(tempValue);
+    // the message of the error is built only if asked for
+    void raiseError(final KAErrorType errorCode, final String errorMessage, final String formula, final int position,
+            final boolean stackTrace) throws KAParserException {
+        throw new KAParserException(errorCode, errorMessage, formula, position, stackTrace);
     }
 
     public void calculate(final String formula, KAParserCalculationDoubleResult resValue) throws KAParserException {
-        String newFormula = cleanFormula(formula);
-        KALexStatus tempKaLexStatus = new KALexStatus();
-        KALexComputationResult tempKaLexComputationResult = new KALexComputationResult();
-
-        tempKaLexStatus.setFormula(newFormula);
-
-        yylex(tempKaLexStatus, tempKaLexComputationResult);
-
-        startCalculate(resValue, tempKaLexStatus, tempKaLexComputationResult);
+        getCompiledFormula(cleanFormula(formula), KAParserValueType.TYPE_FLOAT).evaluate(resValue);
     }
 
     public void calculateString(final String formula, KAParserCalculationStringResult resValue) throws KAParserException {
-        String newFormula = cleanFormula(formula);
-        KALexStatus tempKaLexStatus = new KALexStatus();
-        KALexComputationResult tempKaLexComputationResult = new KALexComputationResult();
+        getCompiledFormula(cleanFormula(formula), KAParserValueType.TYPE_STRING).evaluateString(resValue);
+    }
 
-        tempKaLexStatus.setFormula(newFormula);
+    public KACompiledFormula compile(final String formula) throws KAParserException {
+        return compileFormula(cleanFormula(formula), KAParserValueType.TYPE_FLOAT);
+    }
 
-        yylex(tempKaLexStatus, tempKaLexComputationResult);
+    public KACompiledFormula compileString(final String formula) throws KAParserException {
+        return compileFormula(cleanFormula(formula), KAParserValueType.TYPE_STRING);
+    }
 
-        startCalculateStr(resValue, tempKaLexStatus, tempKaLexComputationResult);
+    /**
+     * Compiles numeric formulas calculated together on the same values, with
+     * their common subexpressions calculated once: see KAFormulaSet.
+     */
+    public KAFormulaSet compileSet(final List<String> formulas) throws KAParserException {
+        KANode.Interner interner = new KANode.Interner();
+        HashMap<String, Integer> columnSlots = new HashMap<>();
+        KACompiledFormula[] compiled = new KACompiledFormula[formulas.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compileFormula(cleanFormula(formulas.get(i)), KAParserValueType.TYPE_FLOAT, interner,
+                    columnSlots);
+        }
+        return new KAFormulaSet(this, compiled, interner.assignSlots(), columnSlots.size());
     }
-    
-    private Instant DateToInstant(Date value) {
-    	if (value != null) {
-    		return value.toInstant();
-    	} else {
-    		return null;
-    	}
+
+    private KACompiledFormula getCompiledFormula(final String newFormula, final KAParserValueType valueType)
+            throws KAParserException {
+        KAFormulaCache cache = formulaCache;
+        KACompiledFormula result = (cache != null) ? cache.get(newFormula, valueType) : null;
+        if (result == null) {
+            result = compileFormula(newFormula, valueType);
+            if (cache != null) {
+                cache.put(result);
+            }
+        }
+        return result;
     }
-    
 }
@@ -13,8 +13,13 @@
 package it.mammola.kaparser;
 
 
+/**
+ * A numeric result. The value is kept as a primitive double: getDoubleValue
+ * and setValue(double) read and write it with no boxing.
+ */
 public class KAParserCalculationDoubleResult {
-    private Double value;
+    private double value;
+    private final KAEvaluationError error = new KAEvaluationError();
     
     public KAParserCalculationDoubleResult(){
         value = 0.0;
@@ -32,4 +37,40 @@ public class KAParserCalculationDoubleResult {
     		
         
     }    
+
+    public double getDoubleValue() {
+        return value;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    /**
+     * The type of the error of the last tryEvaluate, or null if it
+     * succeeded.
+     */
+    public KAErrorType getErrorType() {
+        return error.getErrorType();
+    }
+
+    /**
+     * The position in the formula the error of the last tryEvaluate was
+     * found before, or -1.
+     */
+    public int getErrorPosition() {
+        return error.getPosition();
+    }
+
+    /**
+     * The error of the last tryEvaluate, or null if it succeeded. It is
+     * created, with no stack trace, when it is first asked for.
+     */
+    public KAParserException getError() {
+        return error.getException();
+    }
+
+    KAEvaluationError getEvaluationError() {
+        return error;
+    }
 }
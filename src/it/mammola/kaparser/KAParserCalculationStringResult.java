@@ -14,6 +14,7 @@ package it.mammola.kaparser;
 
 public class KAParserCalculationStringResult {
     private String value;
+    private final KAEvaluationError error = new KAEvaluationError();
     
     public KAParserCalculationStringResult(){
         value = "";
@@ -31,4 +32,32 @@ public class KAParserCalculationStringResult {
     	}
         
     }    
+
+    /**
+     * The type of the error of the last tryEvaluateString, or null if it
+     * succeeded.
+     */
+    public KAErrorType getErrorType() {
+        return error.getErrorType();
+    }
+
+    /**
+     * The position in the formula the error of the last tryEvaluateString was
+     * found before, or -1.
+     */
+    public int getErrorPosition() {
+        return error.getPosition();
+    }
+
+    /**
+     * The error of the last tryEvaluateString, or null if it succeeded. It is
+     * created, with no stack trace, when it is first asked for.
+     */
+    public KAParserException getError() {
+        return error.getException();
+    }
+
+    KAEvaluationError getEvaluationError() {
+        return error;
+    }
 }
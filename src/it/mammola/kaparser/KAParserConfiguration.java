@@ -0,0 +1,252 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.time.Clock;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The settings of a KAParser: time zone, clock, decimal numbers of the
+ * comparisons, data providers, functions, size of the formula cache,
+ * memoization of the user functions and stack traces of the errors.
+ *
+ * A configuration is immutable, so a parser created with it can be shared by
+ * many threads: the per-call state (lexer status, evaluation context) is
+ * created by every call. The data providers, however, are called by all
+ * those threads and must be thread-safe themselves.
+ */
+public final class KAParserConfiguration {
+
+    public static final int DEFAULT_USER_FUNCTION_CACHE_SIZE = 1024;
+
+    private final ZoneId zone;
+    private final Clock clock;
+    private final int decimalNumbers;
+    private final List<KAParserDataProvider> dataProviders;
+    private final List<KAPrimitiveDataProvider> valueProviders;
+    private final KAFunctionRegistry functions;
+    private final int formulaCacheSize;
+    private final int userFunctionCacheSize;
+    private final long userFunctionTimeToLive;
+    private final boolean errorStackTraces;
+    // built when a date function first needs it
+    private volatile KACalendar calendar;
+
+    private KAParserConfiguration(final Builder builder) {
+        this.zone = builder.zone;
+        this.clock = builder.clock;
+        this.decimalNumbers = builder.decimalNumbers;
+        this.dataProviders = Collections.unmodifiableList(new ArrayList<>(builder.dataProviders));
+        this.valueProviders = Collections.unmodifiableList(new ArrayList<>(builder.valueProviders));
+        this.functions = builder.functions;
+        this.formulaCacheSize = builder.formulaCacheSize;
+        this.userFunctionCacheSize = builder.userFunctionCacheSize;
+        this.userFunctionTimeToLive = builder.userFunctionTimeToLive;
+        this.errorStackTraces = builder.errorStackTraces;
+    }
+
+    public static Builder builder(final ZoneId zone) {
+        return new Builder(zone);
+    }
+
+    /**
+     * A builder initialized with this configuration, to create a modified
+     * copy of it.
+     */
+    public Builder toBuilder() {
+        Builder result = new Builder(zone);
+        result.clock = clock;
+        result.decimalNumbers = decimalNumbers;
+        result.dataProviders.addAll(dataProviders);
+        result.valueProviders.addAll(valueProviders);
+        result.functions = functions;
+        result.formulaCacheSize = formulaCacheSize;
+        result.userFunctionCacheSize = userFunctionCacheSize;
+        result.userFunctionTimeToLive = userFunctionTimeToLive;
+        result.errorStackTraces = errorStackTraces;
+        return result;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * The clock of now, today and of the functions of the current time.
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    public int getDecimalNumbers() {
+        return decimalNumbers;
+    }
+
+    /**
+     * The data providers, asked for ranges and user functions in this order.
+     */
+    public List<KAParserDataProvider> getDataProviders() {
+        return dataProviders;
+    }
+
+    /**
+     * The providers of the values, in the order they are asked for them: the
+     * data providers, wrapped by a KADataProviderAdapter, and the primitive
+     * providers, in the order they were added.
+     */
+    public List<KAPrimitiveDataProvider> getValueProviders() {
+        return valueProviders;
+    }
+
+    public int getFormulaCacheSize() {
+        return formulaCacheSize;
+    }
+
+    public int getUserFunctionCacheSize() {
+        return userFunctionCacheSize;
+    }
+
+    public long getUserFunctionTimeToLive() {
+        return userFunctionTimeToLive;
+    }
+
+    public boolean hasErrorStackTraces() {
+        return errorStackTraces;
+    }
+
+    KAFunctionRegistry getFunctions() {
+        return functions;
+    }
+
+    KACalendar getCalendar() {
+        KACalendar result = calendar;
+        if (result == null) {
+            result = KACalendar.of(zone);
+            calendar = result;
+        }
+        return result;
+    }
+
+    public static final class Builder {
+
+        private final ZoneId zone;
+        private Clock clock = Clock.systemUTC();
+        private int decimalNumbers = KAMathUtilities.DEFAULT_DECIMAL_NUMBERS;
+        private final ArrayList<KAParserDataProvider> dataProviders = new ArrayList<>();
+        private final ArrayList<KAPrimitiveDataProvider> valueProviders = new ArrayList<>();
+        private KAFunctionRegistry functions = KAFunctionRegistry.builtins();
+        private int formulaCacheSize;
+        private int userFunctionCacheSize = DEFAULT_USER_FUNCTION_CACHE_SIZE;
+        private long userFunctionTimeToLive;
+        private boolean errorStackTraces = true;
+
+        private Builder(final ZoneId zone) {
+            this.zone = zone;
+        }
+
+        /**
+         * The clock read by now, today and the functions of the current
+         * time, the system clock by default: a fixed clock, for instance,
+         * gives repeatable results. Each evaluation reads it once.
+         */
+        public Builder setClock(final Clock clock) {
+            if (clock == null) {
+                throw new IllegalArgumentException("The clock is missing");
+            }
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder setDecimalNumbers(final int decimalNumbers) {
+            this.decimalNumbers = decimalNumbers;
+            return this;
+        }
+
+        public Builder addDataProvider(final KAParserDataProvider dataProvider) {
+            dataProviders.add(dataProvider);
+            valueProviders.add(new KADataProviderAdapter(dataProvider));
+            return this;
+        }
+
+        /**
+         * Adds a provider of values only: it is not asked for ranges and user
+         * functions.
+         */
+        public Builder addValueProvider(final KAPrimitiveDataProvider valueProvider) {
+            valueProviders.add(valueProvider);
+            return this;
+        }
+
+        // a provider of values asked before all the others
+        Builder insertValueProvider(final KAPrimitiveDataProvider valueProvider) {
+            valueProviders.add(0, valueProvider);
+            return this;
+        }
+
+        /**
+         * Adds a function, replacing the function with the same name and
+         * value type, built-in functions included.
+         */
+        public Builder registerFunction(final KAFunction function) {
+            functions = functions.with(Collections.singletonList(function));
+            return this;
+        }
+
+        /**
+         * The number of compiled formulas cached by calculate and
+         * calculateString; 0, the default, disables the cache.
+         */
+        public Builder setFormulaCacheSize(final int formulaCacheSize) {
+            this.formulaCacheSize = Math.max(formulaCacheSize, 0);
+            return this;
+        }
+
+        /**
+         * The number of results of pure user functions (see
+         * KAUserFunctionPurity) kept by each scope: by every evaluation,
+         * by every batch and by the parser. 0 disables the memoization.
+         */
+        public Builder setUserFunctionCacheSize(final int userFunctionCacheSize) {
+            this.userFunctionCacheSize = Math.max(userFunctionCacheSize, 0);
+            return this;
+        }
+
+        /**
+         * The milliseconds the results of the user functions declared
+         * KAUserFunctionPurity.GLOBAL are kept by the parser; 0, the
+         * default, keeps them until they are evicted or the cache is cleared.
+         */
+        public Builder setUserFunctionTimeToLive(final long userFunctionTimeToLive) {
+            this.userFunctionTimeToLive = Math.max(userFunctionTimeToLive, 0);
+            return this;
+        }
+
+        /**
+         * Whether the errors of the formulas fill in their stack trace,
+         * true by default. Without it an error costs far less, which
+         * matters when many rows fail; the type, the formula and the position
+         * of the error still tell where it is.
+         */
+        public Builder setErrorStackTraces(final boolean errorStackTraces) {
+            this.errorStackTraces = errorStackTraces;
+            return this;
+        }
+
+        public KAParserConfiguration build() {
+            return new KAParserConfiguration(this);
+        }
+    }
+}
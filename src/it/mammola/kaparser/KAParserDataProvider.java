@@ -12,13 +12,110 @@
  */
 package it.mammola.kaparser;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 
 public interface KAParserDataProvider {
 
+    int NOT_RESOLVED = -1;
+
     Boolean getValue (final Object sender, final String valueName, KAParserCalculationDoubleResult value);
     Boolean getStrValue(final Object sender, final String valueName, KAParserCalculationStringResult value);
     Boolean getRangeValues(final Object sender, final String rangeFunction, final String internalFunc, final KAParserValueType valueType, List<Object> valuesArray);
     public abstract Boolean calcUserFunction(final Object sender, final String func, final List<String> parameters, KAParserCalculationDoubleResult value) throws KAParserException;
     public abstract Boolean calcStrUserFunction(final Object sender, final String func, final List<String> parameters, KAParserCalculationStringResult value);    
+
+    /**
+     * Resolves the name of a value once, when a formula using it is compiled,
+     * to a slot (any number from 0) that getValue(Object, int, ...) and
+     * getStrValue(Object, int, ...) read at every evaluation, with no lookup
+     * by name. NOT_RESOLVED, the default, keeps the lookup by name. These
+     * are the KAPrimitiveDataProvider methods of the provider, as seen
+     * through its KADataProviderAdapter.
+     */
+    default int resolve(final String valueName) {
+        return NOT_RESOLVED;
+    }
+
+    /**
+     * The value of a slot returned by resolve; false, as getValue by name,
+     * if the provider has no value for it now.
+     */
+    default boolean getValue(final Object sender, final int slot, KAParserCalculationDoubleResult value) {
+        return false;
+    }
+
+    default boolean getStrValue(final Object sender, final int slot, KAParserCalculationStringResult value) {
+        return false;
+    }
+
+    /**
+     * Calculates the user function func, as calcUserFunction with the texts
+     * of the parameters, but with the parameters already compiled: the
+     * provider asks for the values it needs (arguments.getDouble,
+     * arguments.getString), each one calculated when it is asked for, with
+     * no text to parse again. The default implementation passes the texts
+     * to calcUserFunction.
+     */
+    default Boolean calcUserFunction(final Object sender, final String func, final KAFunctionArguments arguments,
+            KAParserCalculationDoubleResult value) throws KAParserException {
+        return calcUserFunction(sender, func, arguments.getTexts(), value);
+    }
+
+    default Boolean calcStrUserFunction(final Object sender, final String func, final KAFunctionArguments arguments,
+            KAParserCalculationStringResult value) throws KAParserException {
+        return calcStrUserFunction(sender, func, arguments.getTexts(), value);
+    }
+
+    /**
+     * How long the results of the user function func, when this provider
+     * calculates them, can be reused for a call with the same parameters:
+     * NOT_PURE, the default, calculates the function at every call.
+     */
+    default KAUserFunctionPurity getUserFunctionPurity(final String func) {
+        return KAUserFunctionPurity.NOT_PURE;
+    }
+
+    /**
+     * Calculates an aggregate of a range (childs, parents... of internalFunc)
+     * directly, for the providers that can do it cheaper than passing its
+     * values, storing it into value. If it returns false, the default, the
+     * values of the range are asked to streamRangeValues.
+     */
+    default boolean aggregateRange(final Object sender, final KARangeAggregate aggregate, final String rangeFunction,
+            final String internalFunc, KAParserCalculationDoubleResult value) {
+        return false;
+    }
+
+    /**
+     * Streams the values of a range (childs, parents... of internalFunc) into
+     * values, one by one, with no list and no boxing: the range functions
+     * aggregate them as they come. The default implementation collects
+     * them with getRangeValues.
+     */
+    default boolean streamRangeValues(final Object sender, final String rangeFunction, final String internalFunc,
+            final DoubleConsumer values) {
+        ArrayList<Object> valuesArray = new ArrayList<>();
+        if (!getRangeValues(sender, rangeFunction, internalFunc, KAParserValueType.TYPE_FLOAT, valuesArray)) {
+            return false;
+        }
+        for (Object value : valuesArray) {
+            values.accept(((Number) value).doubleValue());
+        }
+        return true;
+    }
+
+    default boolean streamRangeStrValues(final Object sender, final String rangeFunction, final String internalFunc,
+            final Consumer<String> values) {
+        ArrayList<Object> valuesArray = new ArrayList<>();
+        if (!getRangeValues(sender, rangeFunction, internalFunc, KAParserValueType.TYPE_STRING, valuesArray)) {
+            return false;
+        }
+        for (Object value : valuesArray) {
+            values.accept(value.toString());
+        }
+        return true;
+    }
 }
@@ -12,12 +12,138 @@
  */
 package it.mammola.kaparser;
 
+/**
+ * An error of a formula. The errors raised by the parser tell their type,
+ * formula and position; their message, which quotes the whole formula, is
+ * built when it is first asked for.
+ *
+ * The errors of an evaluation are created without a stack trace when the
+ * configuration says so (KAParserConfiguration.Builder.setErrorStackTraces)
+ * and when they are collected instead of raised (the batches with a
+ * KABatchErrors). KACompiledFormula.tryEvaluate returns the type of the
+ * error, and creates the error only if it is asked for.
+ */
 public class KAParserException extends Exception {
 
     private static final long serialVersionUID = 7436734623842384762L;
 
+    // the description of the errors raised without one
+    static final String GENERIC_ERROR = "generic error";
+
+    private final KAErrorType errorType;
+    private final String description;
+    private final String formula;
+    private final int position;
+    private String message;
+
     public KAParserException(String errorMessage) {
         super(errorMessage);
+        this.errorType = null;
+        this.description = null;
+        this.formula = null;
+        this.position = -1;
+        this.message = errorMessage;
+    }
+
+    KAParserException(final KAErrorType errorType, final String description, final String formula,
+            final int position, final boolean stackTrace) {
+        super(null, null, true, stackTrace);
+        this.errorType = errorType;
+        this.description = description;
+        this.formula = formula;
+        this.position = position;
+    }
+
+    /**
+     * The type of the error, or null if it was not raised by the parser.
+     */
+    public KAErrorType getErrorType() {
+        return errorType;
+    }
+
+    // the identifier or the message the error was raised with
+    String getDescription() {
+        return description;
+    }
+
+    /**
+     * The formula of the error, or null if it was not raised by the parser.
+     */
+    public String getFormula() {
+        return formula;
+    }
+
+    /**
+     * The position in the formula the error was found before, or -1 if it
+     * was not raised by the parser.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public String getMessage() {
+        String result = message;
+        if (result == null) {
+            result = formatMessage(errorType, description, formula, position);
+            message = result;
+        }
+        return result;
+    }
+
+    // the same error, with a stack trace of its own if stackTrace
+    KAParserException copy(final boolean stackTrace) {
+        if (errorType == null) {
+            return new KAParserException(getMessage());
+        }
+        return new KAParserException(errorType, description, formula, position, stackTrace);
+    }
+
+    private static String formatMessage(final KAErrorType errorCode, final String currentIdent,
+            final String formula, final int position) {
+        String errorDescription;
+
+        switch (errorCode) {
+            case INVALID_STRING:
+                errorDescription = "Invalid string";
+                break;
+            case SYNTAX_ERROR:
+                errorDescription = "Syntax error";
+                break;
+            case FUNCTION_ERROR:
+                errorDescription = "Function error";
+                break;
+            case WRONG_PARAM_COUNT:
+                errorDescription = "Wrong parameters count";
+                break;
+            case FUNCTION_UNKNOWN:
+                errorDescription = "Function unknown";
+                break;
+            case PARSE_ERROR:
+                errorDescription = "Parse error";
+                break;
+            case EXTERNAL_FUNCTION_ERROR:
+                errorDescription = "External function error";
+                break;
+            case CIRCULAR_REFERENCE:
+                errorDescription = "Circular reference";
+                break;
+            case USER_EXCEPTION:
+                errorDescription = "User exception";
+                break;
+            default:
+                errorDescription = "Unknown error";
+        }
+        if (!currentIdent.isEmpty()) {
+            errorDescription = String.format(
+                    "Error %s (description: %s) while validating %s in formula [%s] before position %s",
+                    errorCode.toString(), errorDescription, currentIdent, formula,
+                    Integer.toString(position));
+        } else {
+            errorDescription = String.format("Error %s (description: %s) in formula [%s] before position %s",
+                    errorCode.toString(), errorDescription, formula, Integer.toString(position));
+        }
 
-    }    
+        return errorDescription;
+    }
 }
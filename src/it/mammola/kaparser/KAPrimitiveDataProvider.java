@@ -0,0 +1,42 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * The values of the formulas, read by the parser at every evaluation.
+ *
+ * A name is resolved once, when a formula using it is compiled, to a slot;
+ * the value of the slot is then read with primitive results and no boxing.
+ * The parser reads all its values through this interface, the only slot
+ * contract: the KAParserDataProviders are wrapped by a
+ * KADataProviderAdapter, which passes the slots of their resolve, getValue
+ * and getStrValue through unchanged.
+ */
+public interface KAPrimitiveDataProvider {
+
+    int NOT_RESOLVED = -1;
+
+    /**
+     * The slot (any number from 0) of the value with the given name, or
+     * NOT_RESOLVED if the provider does not know it.
+     */
+    int resolve(final String valueName);
+
+    /**
+     * Stores the numeric value of the slot into value, returning false if
+     * there is no value for it now: the next providers are then asked.
+     */
+    boolean tryGetDouble(final Object sender, final int slot, KAParserCalculationDoubleResult value);
+
+    boolean tryGetString(final Object sender, final int slot, KAParserCalculationStringResult value);
+}
@@ -0,0 +1,59 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * The values of a numeric range function, aggregated as they come: count,
+ * sum, min and max are kept in O(1) memory, with no boxing.
+ */
+final class KARangeAccumulator implements DoubleConsumer {
+
+    private long count;
+    private double sum;
+    private double min;
+    private double max;
+
+    @Override
+    public void accept(final double value) {
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            if (value > max) {
+                max = value;
+            }
+            if (value < min) {
+                min = value;
+            }
+        }
+        sum = sum + value;
+        count++;
+    }
+
+    double get(final KARangeAggregate aggregate) {
+        switch (aggregate) {
+            case SUM:
+                return sum;
+            case MIN:
+                return (count == 0) ? 0.0 : min;
+            case MAX:
+                return (count == 0) ? 0.0 : max;
+            case AVG:
+                return (count == 0) ? 0.0 : sum / count;
+            default:
+                return count;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * The aggregates the numeric range functions calculate, asked to the data
+ * providers by KAParserDataProvider.aggregateRange. The minimum, maximum
+ * and average of an empty range are 0.
+ */
+public enum KARangeAggregate {
+    SUM,
+    MIN,
+    MAX,
+    AVG,
+    COUNT
+}
@@ -0,0 +1,81 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A value name resolved to a slot by the value providers when the formula
+ * was compiled. At every evaluation the providers that resolved it are
+ * asked for the slot, in order, until one of them has a value; the data
+ * providers that did not resolve it are asked by name, in their place.
+ */
+final class KAResolvedValue {
+
+    private final String name;
+    private final KAPrimitiveDataProvider[] providers;
+    // NOT_RESOLVED for a data provider reading the name
+    private final int[] slots;
+
+    private KAResolvedValue(final String name, final KAPrimitiveDataProvider[] providers, final int[] slots) {
+        this.name = name;
+        this.providers = providers;
+        this.slots = slots;
+    }
+
+    static KAResolvedValue resolve(final List<KAPrimitiveDataProvider> valueProviders, final String valueName) {
+        KAPrimitiveDataProvider[] providers = new KAPrimitiveDataProvider[valueProviders.size()];
+        int[] slots = new int[valueProviders.size()];
+        int count = 0;
+        for (KAPrimitiveDataProvider valueProvider : valueProviders) {
+            int slot = valueProvider.resolve(valueName);
+            if ((slot >= 0) || (valueProvider instanceof KADataProviderAdapter)) {
+                providers[count] = valueProvider;
+                slots[count] = (slot >= 0) ? slot : KAPrimitiveDataProvider.NOT_RESOLVED;
+                count++;
+            }
+        }
+        return new KAResolvedValue(valueName, Arrays.copyOf(providers, count), Arrays.copyOf(slots, count));
+    }
+
+    boolean getValue(final KAParser sender, KAParserCalculationDoubleResult value) {
+        for (int i = 0; i < providers.length; i++) {
+            boolean found;
+            if (slots[i] >= 0) {
+                found = providers[i].tryGetDouble(sender, slots[i], value);
+            } else {
+                found = ((KADataProviderAdapter) providers[i]).tryGetDouble(sender, name, value);
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean getStrValue(final KAParser sender, KAParserCalculationStringResult value) {
+        for (int i = 0; i < providers.length; i++) {
+            boolean found;
+            if (slots[i] >= 0) {
+                found = providers[i].tryGetString(sender, slots[i], value);
+            } else {
+                found = ((KADataProviderAdapter) providers[i]).tryGetString(sender, name, value);
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -21,6 +21,7 @@ public enum KAToken {
     TOKEN_NUMBER, 
     TOKEN_IDENTIFIER, 
     TOKEN_SEMICOLON, 
+    TOKEN_COMMA,
     TOKEN_POWER,
     TOKEN_INVERT, 
     TOKEN_NOT,
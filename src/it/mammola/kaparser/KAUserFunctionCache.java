@@ -0,0 +1,237 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The results of the user functions their data providers declare
+ * KAUserFunctionPurity.GLOBAL, kept by KAParser for all its evaluations.
+ *
+ * As KAFormulaCache, the cache is split into segments, each one a small LRU
+ * map with its own lock; when a segment is full its least recently used
+ * result is evicted. A result older than the time to live, if any, is
+ * calculated again.
+ */
+public class KAUserFunctionCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 32;
+
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    private final Segment[] segments;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    // no lookup at all until a first result is stored
+    private volatile boolean used;
+
+    /**
+     * A cache of at most maximumSize results, each one kept for
+     * timeToLiveMillis milliseconds; 0 keeps them until they are evicted.
+     */
+    public KAUserFunctionCache(final int maximumSize, final long timeToLiveMillis) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("The maximum size of the cache must be greater than 0");
+        }
+        if (timeToLiveMillis < 0) {
+            throw new IllegalArgumentException("The time to live of the results cannot be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLiveMillis * 1000000L;
+
+        int segmentsCount = 1;
+        while ((segmentsCount < MAX_SEGMENTS) && (maximumSize / (segmentsCount * 2) >= MIN_SEGMENT_SIZE)) {
+            segmentsCount = segmentsCount * 2;
+        }
+        segments = new Segment[segmentsCount];
+        for (int i = 0; i < segmentsCount; i++) {
+            int segmentSize = (maximumSize / segmentsCount) + ((i < maximumSize % segmentsCount) ? 1 : 0);
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getTimeToLiveMillis() {
+        return timeToLiveNanos / 1000000L;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public int size() {
+        int result = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                result += segment.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards every result, for instance when the data the functions read
+     * has changed.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    boolean isUsed() {
+        return used;
+    }
+
+    // the stored result (a Double or a String), or null
+    Object get(final Key key) {
+        Segment segment = segmentFor(key);
+        Stored entry;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if ((entry != null) && (timeToLiveNanos > 0) && (System.nanoTime() - entry.storedAt >= timeToLiveNanos)) {
+                segment.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hitCount.increment();
+            return entry.result;
+        } else {
+            missCount.increment();
+            return null;
+        }
+    }
+
+    void put(final Key key, final Object result) {
+        Stored entry = new Stored(result, (timeToLiveNanos > 0) ? System.nanoTime() : 0);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+        if (!used) {
+            used = true;
+        }
+    }
+
+    private Segment segmentFor(final Key key) {
+        int hash = key.hashCode();
+        hash = hash ^ (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * A call to a user function: its name, its value type and the values of
+     * all its parameters (see KANode.UserArguments).
+     */
+    static final class Key {
+
+        private final String function;
+        private final KAParserValueType valueType;
+        private final List<Object> parameters;
+        private final int hash;
+
+        Key(final String function, final KAParserValueType valueType, final List<Object> parameters) {
+            this.function = function;
+            this.valueType = valueType;
+            this.parameters = parameters;
+            this.hash = (function.hashCode() * 31 + parameters.hashCode()) * 31 + valueType.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return (hash == other.hash) && (valueType == other.valueType) && function.equals(other.function)
+                    && parameters.equals(other.parameters);
+        }
+    }
+
+    /**
+     * The results kept by a single evaluation context, used by one thread:
+     * no lock and no time to live. When full, the oldest result is evicted.
+     */
+    static final class Local extends LinkedHashMap<Key, Object> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maximumSize;
+
+        Local(final int maximumSize) {
+            this.maximumSize = maximumSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Object> eldest) {
+            return size() > maximumSize;
+        }
+    }
+
+    private static final class Stored {
+
+        private final Object result;
+        private final long storedAt;
+
+        Stored(final Object result, final long storedAt) {
+            this.result = result;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final class Segment extends LinkedHashMap<Key, Stored> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int segmentSize;
+
+        Segment(final int segmentSize) {
+            super(16, 0.75f, true);
+            this.segmentSize = segmentSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Stored> eldest) {
+            if (size() > segmentSize) {
+                evictionCount.increment();
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+}
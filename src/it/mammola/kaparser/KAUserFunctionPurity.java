@@ -0,0 +1,45 @@
+/*
+ *  This is part of the KaParser4Java Library
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * This software is distributed without any warranty.
+ *
+ * @author Domenico Mammola (mimmo71@gmail.com - www.mammola.net)
+ *
+ */
+package it.mammola.kaparser;
+
+/**
+ * How long the result of a user function can be reused, declared by the
+ * data provider calculating it (KAParserDataProvider.getUserFunctionPurity).
+ * A result is reused for a call with the same name, the same number of
+ * parameters and the same values of all of them: a parameter reading a
+ * column of a batch gives a result for each value of the column. The values
+ * are calculated before the call, as numbers or as strings as the provider
+ * read them the last time, so a pure function gets all its parameters
+ * calculated, even those it would not read.
+ */
+public enum KAUserFunctionPurity {
+    /**
+     * The function is calculated at every call, the default.
+     */
+    NOT_PURE,
+    /**
+     * The result holds for a single evaluation: a formula calculated once,
+     * the formulas of a KAFormulaSet on the same values, a row of a batch.
+     */
+    EVALUATION,
+    /**
+     * The result holds for a whole batch, or for the part of it evaluated
+     * by one task of a parallel batch.
+     */
+    BATCH,
+    /**
+     * The result holds for every evaluation of the parser, until the time to
+     * live of the configuration expires or the cache is cleared.
+     */
+    GLOBAL
+}
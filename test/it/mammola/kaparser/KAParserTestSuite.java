@@ -12,7 +12,26 @@
  */
 package it.mammola.kaparser;
 
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.DoubleConsumer;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -63,5 +82,1260 @@ public class KAParserTestSuite {
         
         
     }
+
+    @Test
+    public void testCompiledFormula() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+        String[] formulas = {"2 + 2", "((21 * 2) - 1) - 20", "IF(1, 0, 1)", "DOUBLE1 * 2 - 1", "-2", "if(5, -1, 0)",
+            "len(STRING1) + round(3.14159, 2)", "and(1, DOUBLE1 > 3) | 4", "sum(1, 2, 3) / count(1, 2)"};
+        KAParserCalculationDoubleResult interpreted = new KAParserCalculationDoubleResult();
+        KAParserCalculationDoubleResult compiled = new KAParserCalculationDoubleResult();
+        for (String formula : formulas) {
+            KACompiledFormula compiledFormula = parser.compile(formula);
+            for (int i = 0; i < 2; i++) {
+                parser.calculate(formula, interpreted);
+                compiledFormula.evaluate(compiled);
+                assertEquals(formula, interpreted.getValue(), compiled.getValue());
+            }
+        }
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.compileString("if(DOUBLE1 > 3, uppercase(STRING1), 'no') + '!'").evaluateString(tempStrResult);
+        assertEquals("DONALD!", tempStrResult.getValue());
+
+        // a parameter asked for with the other value type is calculated as its text would be
+        parser.registerFunction(new KAFunction("twice", KAParserValueType.TYPE_FLOAT, 1, 1, true) {
+            @Override
+            public KAParserValueType getParameterType(int index) {
+                return KAParserValueType.TYPE_STRING;
+            }
+
+            @Override
+            public double calculate(KAParser sender, KAFunctionArguments arguments) throws KAParserException {
+                return arguments.getDouble(0) * 2;
+            }
+        });
+        parser.compile("twice(DOUBLE1)").evaluate(compiled);
+        assertEquals(6.4, compiled.getValue(), 1e-12);
+        parser.registerFunction(new KAFunction("nothing", KAParserValueType.TYPE_FLOAT, 0, 0, true) {
+        });
+        try {
+            parser.compile("nothing()").evaluate(compiled);
+            fail("a numeric function without calculate");
+        } catch (KAParserException e) {
+            assertEquals(KAErrorType.FUNCTION_ERROR, e.getErrorType());
+        }
+        double[][] outputs = new double[2][1];
+        parser.compileSet(Arrays.asList("len(uppercase(STRING1))", "len(uppercase(STRING1)) * 2"))
+                .evaluate(new KAColumnarBatch(1), outputs);
+        assertEquals(6.0, outputs[0][0], 0.0);
+        assertEquals(12.0, outputs[1][0], 0.0);
+    }
+
+    @Test
+    public void testFormulaCache() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+        parser.setFormulaCacheSize(2);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        parser.calculate("DOUBLE1 + 1", tempResult);
+        parser.calculate("  DOUBLE1 + 1 ", tempResult);
+        assertEquals(4.2, tempResult.getValue(), 0.0);
+        assertEquals(1, parser.getFormulaCache().getMissCount());
+        assertEquals(1, parser.getFormulaCache().getHitCount());
+
+        parser.calculate("2 * 3", tempResult);
+        parser.calculate("2 * 4", tempResult);
+        assertEquals(8.0, tempResult.getValue(), 0.0);
+        assertEquals(1, parser.getFormulaCache().getEvictionCount());
+        assertEquals(2, parser.getFormulaCache().size());
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.calculateString("STRING1 + '!'", tempStrResult);
+        assertEquals("DONALD!", tempStrResult.getValue());
+
+        parser.setFormulaCacheSize(0);
+        assertNull(parser.getFormulaCache());
+    }
+
+    @Test
+    public void testNestedFunctionParameters() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        StringBuilder formula = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            formula.append("if(DOUBLE1 > ").append(i % 3).append(", ");
+        }
+        formula.append("round(DOUBLE1 * (1,5), 2)");
+        for (int i = 0; i < 500; i++) {
+            formula.append(", 0)");
+        }
+        parser.calculate(formula.toString(), tempResult);
+        assertEquals(4.8, tempResult.getValue(), 0.0);
+
+        // a parameter that is not calculated may contain errors
+        parser.calculate("if(0, 1 +, sum(1, 2))", tempResult);
+        assertEquals(3.0, tempResult.getValue(), 0.0);
+        try {
+            parser.calculate("if(1, 1 +, sum(1, 2))", tempResult);
+            fail("the second parameter is calculated and is not valid");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("SYNTAX_ERROR"));
+        }
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.calculateString("concatenate(\"a,b\", left(STRING1, 3), 'c)')", tempStrResult);
+        assertEquals("a,bDONc)", tempStrResult.getValue());
+    }
+
+    @Test
+    public void testRegisteredFunctions() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+        parser.setFormulaCacheSize(10);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        KAFunction hypot = new KAFunction("hypot", KAParserValueType.TYPE_FLOAT, 2, 2, true) {
+            @Override
+            public double calculate(KAParser sender, KAFunctionArguments arguments) throws KAParserException {
+                return Math.hypot(arguments.getDouble(0), arguments.getDouble(1));
+            }
+        };
+        hypot.setHelp(new KAParserFunctionHelp("hypot", "hypot(x, y)", "The hypotenuse", "hypot(3, 4)", "Math"));
+        parser.registerFunction(hypot);
+
+        parser.calculate("HYPOT((DOUBLE1 - 0,2), 4) + 1", tempResult);
+        assertEquals(6.0, tempResult.getValue(), 0.0);
+        assertSame(hypot, parser.getFunction("Hypot", KAParserValueType.TYPE_FLOAT));
+        assertNull(parser.getFunction("hypot", KAParserValueType.TYPE_STRING));
+        assertEquals(1, parser.getFunctionsHelp().size());
+        try {
+            parser.calculate("hypot(3)", tempResult);
+            fail("hypot needs two parameters");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("WRONG_PARAM_COUNT"));
+        }
+
+        // a registered function replaces the built-in one, also in the cached formulas
+        parser.calculate("between(5, 1, 10)", tempResult);
+        assertEquals(1.0, tempResult.getValue(), 0.0);
+        parser.registerFunction(new KAFunction("between", KAParserValueType.TYPE_FLOAT, 3, 3, true) {
+            @Override
+            public double calculate(KAParser sender, KAFunctionArguments arguments) throws KAParserException {
+                return 42;
+            }
+        });
+        parser.calculate("between(5, 1, 10)", tempResult);
+        assertEquals(42.0, tempResult.getValue(), 0.0);
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.registerFunction(new KAFunction("quote", KAParserValueType.TYPE_STRING, 1, 1, true) {
+            @Override
+            public KAParserValueType getParameterType(int index) {
+                return null;
+            }
+
+            @Override
+            public String calculateString(KAParser sender, KAFunctionArguments arguments) throws KAParserException {
+                return "[" + arguments.getText(0) + "]";
+            }
+        });
+        parser.calculateString("quote(1 + ) + STRING1", tempStrResult);
+        assertEquals("[1 +]DONALD", tempStrResult.getValue());
+    }
+
+    @Test
+    public void testNumericLiterals() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        parser.calculate("1,22 * 100", tempResult);
+        assertEquals(1.22 * 100, tempResult.getValue(), 0.0);
+        parser.calculate("0.1 + 0,2", tempResult);
+        assertEquals(0.1 + 0.2, tempResult.getValue(), 0.0);
+        parser.calculate("3000000000 + 1", tempResult);
+        assertEquals(3000000001.0, tempResult.getValue(), 0.0);
+        parser.calculate("9007199254740993", tempResult);
+        assertEquals(9007199254740992.0, tempResult.getValue(), 0.0);
+        parser.calculate("123456789012345678901234567890", tempResult);
+        assertEquals(123456789012345678901234567890.0, tempResult.getValue(), 0.0);
+        parser.calculate("1.5e3 + 2E-2 + 1e+1", tempResult);
+        assertEquals(1510.02, tempResult.getValue(), 0.0);
+        parser.calculate("0.30000000000000000000001", tempResult);
+        assertEquals(0.3, tempResult.getValue(), 0.0);
+        parser.calculate("sum(1,5e2, 2)", tempResult);
+        assertEquals(1.0 + 5e2 + 2, tempResult.getValue(), 0.0);
+        // the internal functions read a ',' in their parameter as a decimal separator
+        parser.calculate("sin(1,2)", tempResult);
+        assertEquals(Math.sin(1.2), tempResult.getValue(), 0.0);
+        parser.calculate("int(3,7) + trunc(2,5) * 10 + frac((1,5) * 0,5)", tempResult);
+        assertEquals(3.0 + 20.0 + 0.75, tempResult.getValue(), 0.0);
+        try {
+            parser.calculate("cos(1, 2)", tempResult);
+            fail("a ',' followed by a blank is not a decimal separator");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("FUNCTION_ERROR"));
+        }
+        try {
+            parser.calculate("2e", tempResult);
+            fail("an exponent needs digits");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("SYNTAX_ERROR"));
+        }
+    }
+
+    @Test
+    public void testColumnarBatch() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+
+        KAColumnarBatch batch = new KAColumnarBatch(3);
+        BitSet nulls = new BitSet();
+        nulls.set(1);
+        batch.setDoubleColumn("PRICE", new double[] {10, 20, 30});
+        batch.setDoubleColumn("DOUBLE1", new double[] {1, 2, 3}, nulls);
+        batch.setStringColumn("STRING1", new String[] {"A", null, "C"});
+
+        // the null value of the second row is read from the data provider
+        double[] output = new double[3];
+        parser.compile("PRICE * DOUBLE1 + 1").evaluate(batch, output);
+        assertArrayEquals(new double[] {11, 65, 91}, output, 0.0);
+
+        String[] strOutput = new String[3];
+        parser.compileString("STRING1 + '!'").evaluateString(batch, strOutput);
+        assertArrayEquals(new String[] {"A!", "DONALD!", "C!"}, strOutput);
+        try {
+            parser.compile("PRICE + MISSING").evaluate(batch, output);
+            fail("MISSING is not a column nor a value of the data provider");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("MISSING"));
+        }
+    }
+
+    @Test
+    public void testParallelBatch() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+
+        int rows = 10000;
+        double[] price = new double[rows];
+        BitSet nulls = new BitSet();
+        for (int i = 0; i < rows; i++) {
+            price[i] = i;
+            if (i % 1000 == 999) {
+                nulls.set(i);
+            }
+        }
+        KAColumnarBatch batch = new KAColumnarBatch(rows);
+        batch.setDoubleColumn("PRICE", price, nulls);
+        KACompiledFormula formula = parser.compile("if(PRICE > 5000, PRICE * 2, PRICE) + DOUBLE1");
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            double[] output = new double[rows];
+            KABatchErrors errors = new KABatchErrors();
+            formula.evaluateParallel(batch, output, errors, pool);
+            assertEquals(10, errors.size());
+            for (int i = 0; i < errors.size(); i++) {
+                assertEquals(i * 1000 + 999, errors.getRow(i));
+                assertTrue(errors.getError(i).getMessage().contains("PRICE"));
+            }
+
+            double[] expected = new double[rows];
+            KABatchErrors sequentialErrors = new KABatchErrors();
+            formula.evaluate(batch, expected, sequentialErrors);
+            assertEquals(errors.size(), sequentialErrors.size());
+            assertArrayEquals(expected, output, 0.0);
+            assertEquals(5001 * 2 + 3.2, output[5001], 0.0);
+
+            try {
+                formula.evaluateParallel(batch, new double[rows], null, pool);
+                fail("PRICE is null in some rows");
+            } catch (KAParserException e) {
+                assertEquals(errors.getError(0).getMessage(), e.getMessage());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedParser() throws Exception {
+        final KAParser parser = new KAParser(KAParserConfiguration.builder(ZoneId.systemDefault())
+                .setDecimalNumbers(2)
+                .addDataProvider(testProvider)
+                .setFormulaCacheSize(16)
+                .build());
+        assertEquals(2, parser.getDecimalNumbers());
+        assertEquals(16, parser.getFormulaCacheSize());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Double>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<Double>() {
+                    @Override
+                    public Double call() throws KAParserException {
+                        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+                        parser.calculate("DOUBLE1 * " + (n % 8) + " + (1,001 == 1)", tempResult);
+                        return tempResult.getValue();
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(3.2 * (i % 8) + 1, results.get(i).get(), 1e-9);
+            }
+
+            // formulas compiled and evaluated on batches by many threads at once
+            List<Future<double[]>> outputs = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                final int n = i;
+                outputs.add(executor.submit(new Callable<double[]>() {
+                    @Override
+                    public double[] call() throws KAParserException {
+                        KAColumnarBatch batch = new KAColumnarBatch(2);
+                        batch.setDoubleColumn("C" + n, new double[] {n, n + 1});
+                        batch.setDoubleColumn("X", new double[] {1, 2});
+                        double[] output = new double[2];
+                        parser.compile("X * 10 + C" + n).evaluate(batch, output);
+                        return output;
+                    }
+                }));
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                assertArrayEquals(new double[] {10 + i, 21 + i}, outputs.get(i).get(), 0.0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the setters change a copy of the configuration
+        KAParserConfiguration before = parser.getConfiguration();
+        parser.setDecimalNumbers(4);
+        assertEquals(2, before.getDecimalNumbers());
+        assertEquals(4, parser.getDecimalNumbers());
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        parser.calculate("1,001 == 1", tempResult);
+        assertEquals(0.0, tempResult.getValue(), 0.0);
+    }
+
+    @Test
+    public void testResolvedValues() throws KAParserException {
+        final int[] calls = new int[3];
+        KaParserTestDataProvider slotProvider = new KaParserTestDataProvider() {
+            @Override
+            public Boolean getValue(Object sender, String valueName, KAParserCalculationDoubleResult value) {
+                calls[0]++;
+                return super.getValue(sender, valueName, value);
+            }
+
+            @Override
+            public int resolve(String valueName) {
+                calls[1]++;
+                return "PRICE".equalsIgnoreCase(valueName) ? 7 : NOT_RESOLVED;
+            }
+
+            @Override
+            public boolean getValue(Object sender, int slot, KAParserCalculationDoubleResult value) {
+                calls[2]++;
+                value.setValue(slot * 10.0);
+                return true;
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(slotProvider);
+
+        KACompiledFormula formula = parser.compile("price + DOUBLE1");
+        assertEquals(2, calls[1]);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        for (int i = 0; i < 3; i++) {
+            formula.evaluate(tempResult);
+            assertEquals(73.2, tempResult.getValue(), 1e-9);
+        }
+        assertEquals(2, calls[1]);
+        assertEquals(3, calls[2]);
+        // DOUBLE1 is not resolved, so it is still read by name
+        assertEquals(3, calls[0]);
+
+        // the adapter keeps the slots of the provider
+        KADataProviderAdapter adapter = new KADataProviderAdapter(slotProvider);
+        assertEquals(7, adapter.resolve("PRICE"));
+        assertEquals(KAPrimitiveDataProvider.NOT_RESOLVED, adapter.resolve("DOUBLE1"));
+        assertTrue(adapter.tryGetDouble(parser, 7, tempResult));
+        assertEquals(70.0, tempResult.getValue(), 0.0);
+    }
+
+    @Test
+    public void testPrimitiveDataProvider() throws KAParserException {
+        final double[] row = {2.5, 4};
+        KAPrimitiveDataProvider rowProvider = new KAPrimitiveDataProvider() {
+            @Override
+            public int resolve(String valueName) {
+                switch (valueName) {
+                    case "PRICE":
+                        return 0;
+                    case "QUANTITY":
+                        return 1;
+                    case "DOUBLE1":
+                        return 2;
+                    default:
+                        return NOT_RESOLVED;
+                }
+            }
+
+            @Override
+            public boolean tryGetDouble(Object sender, int slot, KAParserCalculationDoubleResult value) {
+                if (slot < row.length) {
+                    value.setValue(row[slot]);
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean tryGetString(Object sender, int slot, KAParserCalculationStringResult value) {
+                return false;
+            }
+        };
+        // DOUBLE1 is resolved by both providers, the first one has no value for it
+        KAParser parser = new KAParser(KAParserConfiguration.builder(ZoneId.systemDefault())
+                .addValueProvider(rowProvider)
+                .addDataProvider(testProvider)
+                .build());
+        assertEquals(1, parser.getConfiguration().getDataProviders().size());
+        assertEquals(2, parser.getConfiguration().getValueProviders().size());
+
+        KACompiledFormula formula = parser.compile("PRICE * QUANTITY + DOUBLE1");
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        formula.evaluate(tempResult);
+        assertEquals(13.2, tempResult.getDoubleValue(), 1e-9);
+        row[0] = 3;
+        formula.evaluate(tempResult);
+        assertEquals(15.2, tempResult.getDoubleValue(), 1e-9);
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.calculateString("STRING1", tempStrResult);
+        assertEquals("DONALD", tempStrResult.getValue());
+    }
+
+    @Test
+    public void testRangeFunctions() throws KAParserException {
+        KaParserTestDataProvider rangeProvider = new KaParserTestDataProvider() {
+            @Override
+            public boolean streamRangeValues(Object sender, String rangeFunction, String internalFunc,
+                    DoubleConsumer values) {
+                if (!"childs".equals(rangeFunction) || !"AMOUNT".equals(internalFunc)) {
+                    return super.streamRangeValues(sender, rangeFunction, internalFunc, values);
+                }
+                for (int i = 1; i <= 100000; i++) {
+                    values.accept(i);
+                }
+                return true;
+            }
+
+            @Override
+            public Boolean getRangeValues(Object sender, String rangeFunction, String internalFunc,
+                    KAParserValueType valueType, List<Object> valuesArray) {
+                // the values of the other ranges go through the list
+                if (!"parents".equals(rangeFunction)) {
+                    return false;
+                }
+                for (String value : new String[] {"b", "c", "a"}) {
+                    valuesArray.add((valueType == KAParserValueType.TYPE_FLOAT) ? (Object) 2.0 : value);
+                }
+                return true;
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(rangeProvider);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        parser.calculate("sum(childs(AMOUNT))", tempResult);
+        assertEquals(5000050000.0, tempResult.getValue(), 0.0);
+        parser.calculate("max(Childs (AMOUNT)) - min(childs(AMOUNT)) + avg(childs(AMOUNT))", tempResult);
+        assertEquals(99999 + 50000.5, tempResult.getValue(), 0.0);
+        parser.calculate("count(parents(AMOUNT)) * sum(parents(AMOUNT))", tempResult);
+        assertEquals(18.0, tempResult.getValue(), 0.0);
+        parser.calculate("sum(1, 2, 3) + max(4, 7, 5)", tempResult);
+        assertEquals(13.0, tempResult.getValue(), 0.0);
+        try {
+            parser.calculate("sum(parent(AMOUNT))", tempResult);
+            fail("no provider has the parent range");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("FUNCTION_ERROR"));
+        }
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.calculateString("sum(parents(NAME)) + max(parents(NAME)) + count(parents(NAME))", tempStrResult);
+        assertEquals("bcac3", tempStrResult.getValue());
+    }
+
+    @Test
+    public void testRangeAggregatePushDown() throws KAParserException {
+        final int[] streamed = new int[1];
+        KaParserTestDataProvider aggregatingProvider = new KaParserTestDataProvider() {
+            @Override
+            public boolean aggregateRange(Object sender, KARangeAggregate aggregate, String rangeFunction,
+                    String internalFunc, KAParserCalculationDoubleResult value) {
+                // the provider knows the sum and the count of its range only
+                if (!"childs".equals(rangeFunction) || ((aggregate != KARangeAggregate.SUM)
+                        && (aggregate != KARangeAggregate.COUNT))) {
+                    return false;
+                }
+                value.setValue((aggregate == KARangeAggregate.SUM) ? 5000050000.0 : 100000.0);
+                return true;
+            }
+
+            @Override
+            public boolean streamRangeValues(Object sender, String rangeFunction, String internalFunc,
+                    DoubleConsumer values) {
+                if (!"childs".equals(rangeFunction)) {
+                    return super.streamRangeValues(sender, rangeFunction, internalFunc, values);
+                }
+                streamed[0]++;
+                for (int i = 1; i <= 100000; i++) {
+                    values.accept(i);
+                }
+                return true;
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(aggregatingProvider);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        parser.calculate("sum(childs(AMOUNT)) / count(childs(AMOUNT))", tempResult);
+        assertEquals(50000.5, tempResult.getValue(), 0.0);
+        assertEquals(0, streamed[0]);
+        parser.calculate("max(childs(AMOUNT)) + avg(childs(AMOUNT))", tempResult);
+        assertEquals(100000 + 50000.5, tempResult.getValue(), 0.0);
+        assertEquals(2, streamed[0]);
+    }
+
+    @Test
+    public void testCompiledRanges() throws KAParserException {
+        final List<String> ranges = new ArrayList<>();
+        KaParserTestDataProvider rangeProvider = new KaParserTestDataProvider() {
+            @Override
+            public boolean streamRangeValues(Object sender, String rangeFunction, String internalFunc,
+                    DoubleConsumer values) {
+                ranges.add(rangeFunction + ":" + internalFunc);
+                values.accept(3);
+                values.accept(4);
+                return true;
+            }
+
+            @Override
+            public Boolean calcUserFunction(Object sender, String func, List<String> parameters,
+                    KAParserCalculationDoubleResult value) {
+                // childs(A) is 5, childs(B) is 7 and this(X) is 2 as user functions
+                value.setValue("this".equals(func) ? 2 : ("A".equals(parameters.get(0)) ? 5 : 7));
+                return true;
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(rangeProvider);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        KACompiledFormula formula = parser.compile("Sum( ChildsNotNull ( A + B ) ) + count(this(C))");
+        for (int i = 0; i < 3; i++) {
+            formula.evaluate(tempResult);
+            assertEquals(9.0, tempResult.getValue(), 0.0);
+        }
+        assertEquals(6, ranges.size());
+        assertEquals("childsnotnull:A + B", ranges.get(0));
+        assertEquals("this:C", ranges.get(1));
+
+        try {
+            parser.calculate("sum(childs())", tempResult);
+            fail("a range without its internal function");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("SYNTAX_ERROR"));
+        }
+
+        // a parameter that only starts with a range is an ordinary expression
+        parser.calculate("sum(childs(A) + childs(B))", tempResult);
+        assertEquals(12.0, tempResult.getValue(), 0.0);
+        parser.calculate("sum(childs(A) * 2)", tempResult);
+        assertEquals(10.0, tempResult.getValue(), 0.0);
+        parser.calculate("count(this(X) + 1)", tempResult);
+        assertEquals(1.0, tempResult.getValue(), 0.0);
+        assertEquals(6, ranges.size());
+
+        // a function replacing a built-in aggregate gets the range as a parameter
+        parser.registerFunction(new KAFunction("sum", KAParserValueType.TYPE_FLOAT, 1, 1, false) {
+            @Override
+            public double calculate(KAParser sender, KAFunctionArguments arguments) {
+                return arguments.getText(0).length();
+            }
+        });
+        parser.calculate("sum(childs(A))", tempResult);
+        assertEquals(9.0, tempResult.getValue(), 0.0);
+        assertEquals(6, ranges.size());
+    }
+
+    @Test
+    public void testFormulaSheet() throws KAParserException {
+        KAFormulaSheet sheet = new KAFormulaSheet(KAParserConfiguration.builder(ZoneId.systemDefault())
+                .addDataProvider(new KaParserTestDataProvider()).build());
+        sheet.setValue("PRICE", 10);
+        sheet.setValue("QUANTITY", 3);
+        sheet.setFormula("AMOUNT", "PRICE * QUANTITY");
+        sheet.setFormula("TAX", "AMOUNT * 0.2");
+        sheet.setFormula("TOTAL", "AMOUNT + TAX + DOUBLE1");
+        sheet.setFormula("DISCOUNT", "if(QUANTITY > 5, 10, 0)");
+        sheet.setStringFormula("LABEL", "\"total \" + TOTAL_TEXT");
+        sheet.setStringValue("TOTAL_TEXT", "36");
+
+        assertEquals(5, sheet.recalculate());
+        assertEquals(30.0, sheet.getValue("AMOUNT"), 0.0);
+        assertEquals(36.0 + 3.2, sheet.getValue("TOTAL"), 1e-9);
+        assertEquals("total 36", sheet.getStringValue("LABEL"));
+        assertEquals(0, sheet.recalculate());
+
+        // only what depends on PRICE is calculated again
+        sheet.setValue("PRICE", 20);
+        assertEquals(3, sheet.recalculate());
+        assertEquals(72.0 + 3.2, sheet.getValue("TOTAL"), 1e-9);
+        assertEquals(0.0, sheet.getValue("DISCOUNT"), 0.0);
+
+        // a cell hides the value of the data provider
+        sheet.setValue("DOUBLE1", 8);
+        assertEquals(72.0 + 8, sheet.getValue("TOTAL"), 1e-9);
+        sheet.remove("DOUBLE1");
+        assertEquals(72.0 + 3.2, sheet.getValue("TOTAL"), 1e-9);
+
+        try {
+            sheet.setFormula("PRICE", "TOTAL / 2");
+            fail("TOTAL depends on PRICE");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("CIRCULAR_REFERENCE"));
+        }
+        assertEquals(20.0, sheet.getValue("PRICE"), 0.0);
+
+        // an error is kept by its cell and reaches the formulas reading it
+        sheet.setFormula("AMOUNT", "PRICE * UNKNOWN_VALUE");
+        assertNotNull(sheet.getError("AMOUNT"));
+        assertNotNull(sheet.getError("TOTAL"));
+        try {
+            sheet.getValue("TAX");
+            fail("AMOUNT has no value");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains("AMOUNT"));
+        }
+        sheet.setValue("UNKNOWN_VALUE", 1);
+        assertEquals(20.0 * 1.2 + 3.2, sheet.getValue("TOTAL"), 1e-9);
+        assertNull(sheet.getError("TAX"));
+    }
+
+    @Test
+    public void testParallelFormulaSheet() throws KAParserException {
+        KAParserConfiguration configuration = KAParserConfiguration.builder(ZoneId.systemDefault()).build();
+        KAFormulaSheet serialSheet = new KAFormulaSheet(configuration);
+        KAFormulaSheet parallelSheet = new KAFormulaSheet(configuration);
+        // levels wide enough to be split in chunks
+        int width = 600;
+        int levels = 10;
+        for (KAFormulaSheet sheet : new KAFormulaSheet[] {serialSheet, parallelSheet}) {
+            for (int i = 0; i < width; i++) {
+                sheet.setValue("L0_" + i, i);
+            }
+            for (int level = 1; level <= levels; level++) {
+                for (int i = 0; i < width; i++) {
+                    sheet.setFormula("L" + level + "_" + i, "L" + (level - 1) + "_" + i + " * 0.5 + L"
+                            + (level - 1) + "_" + ((i + 1) % width) + " + " + level);
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(width * levels, serialSheet.recalculate());
+            assertEquals(width * levels, parallelSheet.recalculate(pool));
+            serialSheet.setValue("L0_7", 100);
+            parallelSheet.setValue("L0_7", 100);
+            // L1_6 and L1_7 read L0_7, two more cells each level up to all of them
+            int changed = 0;
+            for (int level = 1; level <= levels; level++) {
+                changed += Math.min(level + 1, width);
+            }
+            assertEquals(changed, serialSheet.recalculate());
+            assertEquals(changed, parallelSheet.recalculate(pool));
+            assertEquals(0, parallelSheet.recalculate(pool));
+        } finally {
+            pool.shutdown();
+        }
+        for (int level = 0; level <= levels; level++) {
+            for (int i = 0; i < width; i++) {
+                String name = "L" + level + "_" + i;
+                assertEquals(name, serialSheet.getValue(name), parallelSheet.getValue(name), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testFormulaSet() throws KAParserException {
+        final List<String> fetched = new ArrayList<>();
+        KaParserTestDataProvider countingProvider = new KaParserTestDataProvider() {
+            @Override
+            public Boolean getValue(Object sender, String valueName, KAParserCalculationDoubleResult value) {
+                fetched.add(valueName);
+                switch (valueName) {
+                    case "PRICE":
+                        value.setValue(12.5);
+                        return true;
+                    case "QUANTITY":
+                        value.setValue(4);
+                        return true;
+                    default:
+                        return super.getValue(sender, valueName, value);
+                }
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.of("UTC"));
+        parser.addDataProvider(countingProvider);
+        List<String> formulas = new ArrayList<>();
+        formulas.add("PRICE * QUANTITY");
+        formulas.add("PRICE * QUANTITY * 0.2");
+        formulas.add("safediv(PRICE * QUANTITY, DOUBLE1) + todate(2, 1, 2020)");
+        formulas.add("todate(2, 1, 2020) - PRICE * QUANTITY + -QUANTITY");
+        KAFormulaSet set = parser.compileSet(formulas);
+        assertEquals(4, set.size());
+        assertTrue(set.getSharedCount() >= 4);
+
+        double[] results = new double[4];
+        set.evaluate(results);
+        assertEquals(3, fetched.size());
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        for (int i = 0; i < formulas.size(); i++) {
+            tempResult.setValue(0.0);
+            parser.calculate(formulas.get(i), tempResult);
+            assertEquals(formulas.get(i), tempResult.getValue(), results[i], 0.0);
+        }
+
+        // every row calculates the shared subexpressions again
+        KAColumnarBatch batch = new KAColumnarBatch(3);
+        batch.setDoubleColumn("PRICE", new double[] {1, 2, 3});
+        batch.setDoubleColumn("QUANTITY", new double[] {10, 20, 30});
+        batch.setDoubleColumn("DOUBLE1", new double[] {2, 2, 2});
+        double[][] outputs = new double[4][3];
+        fetched.clear();
+        set.evaluate(batch, outputs);
+        assertTrue(fetched.isEmpty());
+        assertArrayEquals(new double[] {10, 40, 90}, outputs[0], 0.0);
+        assertArrayEquals(new double[] {2, 8, 18}, outputs[1], 1e-12);
+        tempResult.setValue(0.0);
+        parser.calculate("todate(2, 1, 2020)", tempResult);
+        assertEquals(45 + tempResult.getValue(), outputs[2][2], 1e-9);
+    }
+
+    @Test
+    public void testUserFunctionMemoization() throws KAParserException, InterruptedException {
+        final List<String> calls = new ArrayList<>();
+        KaParserTestDataProvider pureProvider = new KaParserTestDataProvider() {
+            @Override
+            public Boolean calcUserFunction(Object sender, String func, List<String> parameters,
+                    KAParserCalculationDoubleResult value) throws KAParserException {
+                calls.add(func);
+                value.setValue(calls.size());
+                return true;
+            }
+
+            @Override
+            public KAUserFunctionPurity getUserFunctionPurity(String func) {
+                switch (func) {
+                    case "rowrate":
+                        return KAUserFunctionPurity.EVALUATION;
+                    case "batchrate":
+                        return KAUserFunctionPurity.BATCH;
+                    case "globalrate":
+                        return KAUserFunctionPurity.GLOBAL;
+                    default:
+                        return KAUserFunctionPurity.NOT_PURE;
+                }
+            }
+        };
+        KAParser parser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(pureProvider).setUserFunctionTimeToLive(50).build());
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        parser.calculate("noisy(1) + noisy(1)", tempResult);
+        assertEquals(2, calls.size());
+        assertEquals(3, tempResult.getValue(), 0.0);
+
+        calls.clear();
+        parser.calculate("rowrate(1) + rowrate(1) + rowrate(2)", tempResult);
+        assertEquals(2, calls.size());
+        assertEquals(4, tempResult.getValue(), 0.0);
+
+        KAColumnarBatch batch = new KAColumnarBatch(3);
+        double[] output = new double[3];
+        calls.clear();
+        parser.compile("rowrate(1) * 10 + rowrate(1)").evaluate(batch, output);
+        assertEquals(3, calls.size());
+        assertArrayEquals(new double[] {11, 22, 33}, output, 0.0);
+        calls.clear();
+        parser.compile("batchrate(1) * 10 + batchrate(1)").evaluate(batch, output);
+        assertEquals(1, calls.size());
+        assertArrayEquals(new double[] {11, 11, 11}, output, 0.0);
+
+        calls.clear();
+        parser.calculate("globalrate(1)", tempResult);
+        parser.calculate("globalrate(1) + globalrate(2)", tempResult);
+        assertEquals(2, calls.size());
+        assertEquals(3, tempResult.getValue(), 0.0);
+        assertEquals(2, parser.getUserFunctionCache().size());
+        assertTrue(parser.getUserFunctionCache().getHitCount() >= 1);
+        parser.getUserFunctionCache().clear();
+        parser.calculate("globalrate(1)", tempResult);
+        assertEquals(3, calls.size());
+        Thread.sleep(60);
+        parser.calculate("globalrate(1)", tempResult);
+        assertEquals(4, calls.size());
+
+        // no memoization at all
+        KAParser plainParser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(pureProvider).setUserFunctionCacheSize(0).build());
+        assertNull(plainParser.getUserFunctionCache());
+        calls.clear();
+        plainParser.calculate("rowrate(1) + globalrate(1) + globalrate(1)", tempResult);
+        assertEquals(3, calls.size());
+
+        // the results are kept for the values of the parameters, not their texts
+        final List<Double> read = new ArrayList<>();
+        KaParserTestDataProvider valuesProvider = new KaParserTestDataProvider() {
+            @Override
+            public Boolean calcUserFunction(Object sender, String func, KAFunctionArguments arguments,
+                    KAParserCalculationDoubleResult value) throws KAParserException {
+                read.add(arguments.getDouble(0));
+                value.setValue(arguments.getDouble(0) * 10);
+                return true;
+            }
+
+            @Override
+            public KAUserFunctionPurity getUserFunctionPurity(String func) {
+                return "times10".equals(func) ? KAUserFunctionPurity.BATCH : KAUserFunctionPurity.GLOBAL;
+            }
+        };
+        KAParser valuesParser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(valuesProvider).build());
+        KAColumnarBatch columnBatch = new KAColumnarBatch(4);
+        columnBatch.setDoubleColumn("X", new double[] {1, 2, 3, 4});
+        double[] columnOutput = new double[4];
+        valuesParser.compile("times10(X) + times10(X)").evaluate(columnBatch, columnOutput);
+        assertArrayEquals(new double[] {20, 40, 60, 80}, columnOutput, 0.0);
+        assertEquals(4, read.size());
+        read.clear();
+        valuesParser.compile("global10(X)").evaluate(columnBatch, columnOutput);
+        assertArrayEquals(new double[] {10, 20, 30, 40}, columnOutput, 0.0);
+        columnBatch.setDoubleColumn("X", new double[] {3, 4, 5, 6});
+        valuesParser.compile("global10(X)").evaluate(columnBatch, columnOutput);
+        assertArrayEquals(new double[] {30, 40, 50, 60}, columnOutput, 0.0);
+        assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0, 5.0, 6.0), read);
+
+        // all the parameters are in the key, also those after the ones of another call
+        final List<Integer> totals = new ArrayList<>();
+        KAParser totParser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .addDataProvider(new KaParserTestDataProvider() {
+                    @Override
+                    public Boolean calcUserFunction(Object sender, String func, KAFunctionArguments arguments,
+                            KAParserCalculationDoubleResult value) throws KAParserException {
+                        totals.add(arguments.size());
+                        double total = 0;
+                        for (int i = 0; i < arguments.size(); i++) {
+                            total += arguments.getDouble(i);
+                        }
+                        value.setValue(total);
+                        return true;
+                    }
+
+                    @Override
+                    public KAUserFunctionPurity getUserFunctionPurity(String func) {
+                        return KAUserFunctionPurity.GLOBAL;
+                    }
+                }).build());
+        totParser.calculate("tot(1, 2)", tempResult);
+        assertEquals(3.0, tempResult.getValue(), 0.0);
+        totParser.calculate("tot(1, 2, 3)", tempResult);
+        assertEquals(6.0, tempResult.getValue(), 0.0);
+        totParser.calculate("tot(1, 2, 100)", tempResult);
+        assertEquals(103.0, tempResult.getValue(), 0.0);
+        totParser.calculate("tot(1)", tempResult);
+        assertEquals(1.0, tempResult.getValue(), 0.0);
+        totParser.calculate("tot(1, 1 + 1) + tot(1, 2, 3)", tempResult);
+        assertEquals(9.0, tempResult.getValue(), 0.0);
+        assertEquals(Arrays.asList(2, 3, 3, 1), totals);
+    }
+
+    @Test
+    public void testUserFunctionArguments() throws KAParserException {
+        final List<String> resolved = new ArrayList<>();
+        KaParserTestDataProvider argumentsProvider = new KaParserTestDataProvider() {
+            @Override
+            public int resolve(String valueName) {
+                resolved.add(valueName);
+                return NOT_RESOLVED;
+            }
+
+            @Override
+            public Boolean calcUserFunction(Object sender, String func, KAFunctionArguments arguments,
+                    KAParserCalculationDoubleResult value) throws KAParserException {
+                if (!"firstpositive".equals(func)) {
+                    return super.calcUserFunction(sender, func, arguments, value);
+                }
+                // the second parameter is calculated only if the first is not positive
+                double first = arguments.getDouble(0);
+                value.setValue((first > 0) ? first : arguments.getDouble(1));
+                return true;
+            }
+
+            @Override
+            public Boolean calcStrUserFunction(Object sender, String func, KAFunctionArguments arguments,
+                    KAParserCalculationStringResult value) throws KAParserException {
+                value.setValue(arguments.getString(0).toLowerCase() + arguments.size());
+                return true;
+            }
+        };
+        KAParser parser = new KAParser(ZoneId.of("UTC"));
+        parser.addDataProvider(argumentsProvider);
+
+        KACompiledFormula formula = parser.compile("firstpositive(DOUBLE1 * 2, MISSING) + 1");
+        resolved.clear();
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        for (int i = 0; i < 3; i++) {
+            tempResult.setValue(0.0);
+            formula.evaluate(tempResult);
+            assertEquals(7.4, tempResult.getValue(), 1e-12);
+        }
+        // compiled once, when first calculated
+        assertEquals(1, resolved.size());
+
+        try {
+            parser.calculate("firstpositive(-DOUBLE1, MISSING)", tempResult);
+            fail("MISSING is calculated and unknown");
+        } catch (KAParserException e) {
+            // expected
+        }
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        parser.calculateString("label(STRING1 + '_X')", tempStrResult);
+        assertEquals("donald_x1", tempStrResult.getValue());
+        parser.calculateString("label(STRING1, 'Y')", tempStrResult);
+        assertEquals("donald2", tempStrResult.getValue());
+        // trim is internal only with a single parameter
+        parser.calculateString("trim(' ' + STRING1 + ' ')", tempStrResult);
+        assertEquals("DONALD", tempStrResult.getValue());
+        parser.calculateString("trim(STRING1, 'Y')", tempStrResult);
+        assertEquals("donald2", tempStrResult.getValue());
+
+        // the providers implementing only the texts flavour still get them
+        final List<String> texts = new ArrayList<>();
+        KAParser textsParser = new KAParser(ZoneId.of("UTC"));
+        textsParser.addDataProvider(new KaParserTestDataProvider() {
+            @Override
+            public Boolean calcUserFunction(Object sender, String func, List<String> parameters,
+                    KAParserCalculationDoubleResult value) {
+                texts.addAll(parameters);
+                value.setValue(parameters.size());
+                return true;
+            }
+        });
+        textsParser.calculate("tally(DOUBLE1 + 1, 'a,b')", tempResult);
+        assertEquals(2, tempResult.getValue(), 0.0);
+        assertEquals("DOUBLE1 + 1", texts.get(0));
+        assertEquals("'a,b'", texts.get(1));
+    }
+
+    @Test
+    public void testCalendarKernel() {
+        Random random = new Random(20);
+        String[] zones = {"UTC", "Europe/Rome", "America/Nassau", "Asia/Kathmandu", "Australia/Lord_Howe",
+            "America/Sao_Paulo"};
+        for (String zoneName : zones) {
+            ZoneId zone = ZoneId.of(zoneName);
+            KACalendar calendar = KACalendar.of(zone);
+            for (int i = 0; i < 20000; i++) {
+                // from 1800 to 2200, some with minutes and seconds
+                double value = random.nextInt(3500000) - 1500000 + ((i % 3 == 0) ? random.nextDouble() : 0);
+                Instant instant = KADateTimeUtilities.doubleToInstant(value);
+                String message = zoneName + " " + value;
+                assertEquals(message, (int) KADateTimeUtilities.getYear(instant, zone), calendar.getYear(value));
+                assertEquals(message, (int) KADateTimeUtilities.getMonth(instant, zone), calendar.getMonth(value));
+                assertEquals(message, (int) KADateTimeUtilities.getDayOfMonth(instant, zone),
+                        calendar.getDayOfMonth(value));
+                assertEquals(message, (int) KADateTimeUtilities.getHour(instant, zone), calendar.getHour(value));
+                assertEquals(message, (int) KADateTimeUtilities.getMinute(instant, zone), calendar.getMinute(value));
+                assertEquals(message, (int) KADateTimeUtilities.getSecond(instant, zone), calendar.getSecond(value));
+                assertEquals(message, KADateTimeUtilities.instantToDouble(
+                        KADateTimeUtilities.previousMonday(instant, zone)), calendar.previousMonday(value), 0.0);
+                assertEquals(message, KADateTimeUtilities.instantToDouble(
+                        KADateTimeUtilities.startOfTheMonth(instant, zone)), calendar.startOfTheMonth(value), 0.0);
+                assertEquals(message, KADateTimeUtilities.instantToDouble(
+                        KADateTimeUtilities.endOfTheMonth(instant, zone)), calendar.endOfTheMonth(value), 0.0);
+            }
+        }
+
+        // the dates outside the table of the transitions are left to java.time
+        KACalendar calendar = KACalendar.of(ZoneId.of("Europe/Rome"));
+        assertEquals(1970, calendar.getYear(Double.NaN));
+        assertEquals(20000, calendar.getYear(KADateTimeUtilities.instantToDouble(
+                LocalDate.of(20000, 6, 1).atStartOfDay(ZoneId.of("Europe/Rome")).toInstant())));
+        try {
+            calendar.getYear(Double.POSITIVE_INFINITY);
+            fail("The instant is out of range");
+        } catch (DateTimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStringToDateTimeFormats() throws KAParserException, ParseException {
+        ZoneId zone = ZoneId.of("Europe/Rome");
+        KAParser parser = new KAParser(zone);
+        parser.addDataProvider(testProvider);
+        String[][] cases = {
+            {"DD-MM-YYYY", "dd-MM-yyyy", "14-06-2020"},
+            {"YYYYMMDD", "yyyyMMdd", "20201025"},
+            {"YYYY-MM-DD HH:ss", "yyyy-MM-dd HH:ss", "2020-10-25 02:30"},
+            {"YYYY-MM-DD HH:ss", "yyyy-MM-dd HH:ss", "2020-03-29 02:30"},
+            // left to SimpleDateFormat: lenient, single digits, trailing text, two digit years
+            {"DD-MM-YYYY", "dd-MM-yyyy", "31-02-2020"},
+            {"DD-MM-YYYY", "dd-MM-yyyy", "1-2-2020"},
+            {"DD-MM-YYYY", "dd-MM-yyyy", "14-06-2020 and more"},
+            {"DD/MM/YY", "dd/MM/yy", "14/06/20"},
+            {"DD-MM-YYYY", "dd-MM-yyyy", "14-06-1850"},
+        };
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        for (String[] testCase : cases) {
+            SimpleDateFormat expected = new SimpleDateFormat(testCase[1]);
+            expected.setTimeZone(TimeZone.getTimeZone(zone));
+            double expectedValue = KADateTimeUtilities.instantToDouble(expected.parse(testCase[2]).toInstant());
+            parser.calculate("stringtodatetime('" + testCase[2] + "', '" + testCase[0] + "')", tempResult);
+            assertEquals(testCase[2], expectedValue, tempResult.getValue(), 0.0);
+            // the same pattern, not a literal
+            parser.calculate("stringtodatetime('" + testCase[2] + "', '" + testCase[0] + "' + '')", tempResult);
+            assertEquals(testCase[2], expectedValue, tempResult.getValue(), 0.0);
+        }
+        assertSame(KADateTimeFormat.of("DD-MM-YYYY", zone), KADateTimeFormat.of("DD-MM-YYYY", zone));
+
+        try {
+            parser.calculate("stringtodatetime('june 2020', 'DD-MM-YYYY')", tempResult);
+            fail("The text does not match the pattern");
+        } catch (KAParserException e) {
+            assertTrue(e.getMessage().contains(KAErrorType.PARSE_ERROR.name()));
+        }
+        // a pattern that is not valid fails when it is calculated only
+        KACompiledFormula invalid = parser.compile("if(DOUBLE1 > 5, stringtodatetime('2020', 'ABC'), 1)");
+        invalid.evaluate(tempResult);
+        assertEquals(1, tempResult.getValue(), 0.0);
+    }
+
+    @Test
+    public void testPinnedClock() throws KAParserException {
+        Instant start = Instant.parse("2020-06-14T10:59:59Z");
+        KAParserConfiguration fixed = KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .setClock(Clock.fixed(start, ZoneId.of("UTC"))).build();
+        KAParser parser = new KAParser(fixed);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+        double hour = KADateTimeUtilities.instantToDouble(start);
+        parser.calculate("now", tempResult);
+        assertEquals(hour, tempResult.getValue(), 0.0);
+        // today is the hour of the clock, as now; distancefromtoday starts from midnight
+        parser.calculate("today", tempResult);
+        assertEquals(hour, tempResult.getValue(), 0.0);
+        parser.calculate("distancefromnow(now - 5)", tempResult);
+        assertEquals(5, tempResult.getValue(), 0.0);
+        parser.calculate("distancefromtoday(now - 13)", tempResult);
+        assertEquals(3, tempResult.getValue(), 0.0);
+        assertTrue(parser.compile("if(DOUBLE1 > 1, now, 0)").isTimeDependent());
+        assertTrue(parser.compile("distancefromtoday(3)").isTimeDependent());
+        assertFalse(parser.compile("todate(1, 1, 2020) + 1").isTimeDependent());
+
+        // a batch reads the clock once; the clock is start plus offset[0] seconds
+        long[] offset = new long[1];
+        long[] reads = new long[1];
+        Clock settable = new Clock() {
+            @Override
+            public ZoneId getZone() {
+                return ZoneId.of("UTC");
+            }
+
+            @Override
+            public Clock withZone(final ZoneId zone) {
+                return this;
+            }
+
+            @Override
+            public Instant instant() {
+                reads[0]++;
+                return start.plusSeconds(offset[0]);
+            }
+        };
+        parser = new KAParser(KAParserConfiguration.builder(ZoneId.of("UTC")).setClock(settable).build());
+        KAColumnarBatch batch = new KAColumnarBatch(3);
+        batch.setDoubleColumn("X", new double[] {1, 2, 3});
+        double[] output = new double[3];
+        parser.compile("now + X").evaluate(batch, output);
+        assertEquals(1, reads[0]);
+        assertArrayEquals(new double[] {hour + 1, hour + 2, hour + 3}, output, 0.0);
+
+        // a sheet recalculates its time cells when the hour changes
+        offset[0] = -3600;
+        KAFormulaSheet sheet = new KAFormulaSheet(KAParserConfiguration.builder(ZoneId.of("UTC"))
+                .setClock(settable).build());
+        sheet.setValue("A", 1);
+        sheet.setFormula("T", "now + A");
+        sheet.setFormula("U", "T + 1");
+        sheet.setFormula("B", "A * 2");
+        assertEquals(3, sheet.recalculate());
+        assertEquals(hour + 1, sheet.getValue("U"), 0.0);
+        offset[0] = -3601;
+        assertEquals(0, sheet.recalculate());
+        offset[0] = 0;
+        assertEquals(2, sheet.recalculate());
+        assertEquals(hour + 2, sheet.getValue("U"), 0.0);
+        assertEquals(2, sheet.getValue("B"), 0.0);
+    }
+
+    @Test
+    public void testErrorResults() throws KAParserException {
+        KAParser parser = new KAParser(ZoneId.systemDefault());
+        parser.addDataProvider(testProvider);
+        KAParserCalculationDoubleResult tempResult = new KAParserCalculationDoubleResult();
+
+        assertNull(parser.compile("DOUBLE1 * 2").tryEvaluate(tempResult));
+        assertEquals(6.4, tempResult.getValue(), 0.0);
+        String[] formulas = {"DOUBLE1 + MISSING", "if(1, 1 +, 2)", "raiseerror('too big')", "tally(1)"};
+        for (String formula : formulas) {
+            KAParserException thrown = null;
+            try {
+                parser.calculate(formula, tempResult);
+            } catch (KAParserException e) {
+                thrown = e;
+            }
+            assertNotNull(formula, thrown);
+            assertTrue(thrown.getStackTrace().length > 0);
+            tempResult.setValue(1.5);
+            assertEquals(thrown.getErrorType(), parser.compile(formula).tryEvaluate(tempResult));
+            assertEquals(1.5, tempResult.getValue(), 0.0);
+            assertEquals(thrown.getErrorType(), tempResult.getErrorType());
+            assertEquals(thrown.getPosition(), tempResult.getErrorPosition());
+            KAParserException returned = tempResult.getError();
+            assertSame(returned, tempResult.getError());
+            assertEquals(thrown.getErrorType(), returned.getErrorType());
+            assertEquals(thrown.getPosition(), returned.getPosition());
+            assertEquals(formula, returned.getFormula());
+            assertEquals(0, returned.getStackTrace().length);
+            assertEquals(thrown.getMessage(), returned.getMessage());
+        }
+        assertEquals(KAErrorType.FUNCTION_ERROR, parser.compile("DOUBLE1 + MISSING").tryEvaluate(tempResult));
+        assertTrue(tempResult.getError().getMessage().contains("MISSING"));
+        assertNull(parser.compile("DOUBLE1 * 3").tryEvaluate(tempResult));
+        assertNull(tempResult.getErrorType());
+        assertEquals(-1, tempResult.getErrorPosition());
+        assertNull(tempResult.getError());
+        assertNull(new KAParserException("an error").getErrorType());
+        assertEquals(-1, new KAParserException("an error").getPosition());
+
+        KAParserCalculationStringResult tempStrResult = new KAParserCalculationStringResult();
+        assertNull(parser.compileString("STRING1 + '!'").tryEvaluateString(tempStrResult));
+        assertEquals("DONALD!", tempStrResult.getValue());
+        assertEquals(KAErrorType.FUNCTION_ERROR,
+                parser.compileString("MISSING + '!'").tryEvaluateString(tempStrResult));
+        assertEquals(KAErrorType.FUNCTION_ERROR, tempStrResult.getError().getErrorType());
+        assertEquals("MISSING + '!'", tempStrResult.getError().getFormula());
+
+        // the collected errors of a batch have no stack trace
+        KAColumnarBatch batch = new KAColumnarBatch(3);
+        batch.setDoubleColumn("PRICE", new double[] {10, 20, 30});
+        double[] output = new double[3];
+        KABatchErrors errors = new KABatchErrors();
+        parser.compile("if(PRICE > 15, raiseerror('too big'), PRICE)").evaluate(batch, output, errors);
+        assertEquals(2, errors.size());
+        assertEquals(KAErrorType.USER_EXCEPTION, errors.getError(0).getErrorType());
+        assertEquals(0, errors.getError(0).getStackTrace().length);
+
+        // the stackless errors raised by the evaluations
+        KAParser stackless = new KAParser(KAParserConfiguration.builder(ZoneId.systemDefault())
+                .addDataProvider(testProvider).setErrorStackTraces(false).build());
+        try {
+            stackless.calculate("DOUBLE1 + MISSING", tempResult);
+            fail("MISSING is not a value of the data provider");
+        } catch (KAParserException e) {
+            assertEquals(0, e.getStackTrace().length);
+            assertTrue(e.getMessage().contains("MISSING"));
+        }
+    }
+
+    @Test
+    public void testMathKernel() {
+        Random random = new Random(24);
+        for (int i = 0; i < 500000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    // decimals, ties included
+                    value = (random.nextInt(2000001) - 1000000) / Math.pow(10, random.nextInt(7));
+                    break;
+                case 1:
+                    value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(30) - 12);
+                    break;
+                case 2:
+                    value = (random.nextInt(20001) - 10000) / 8.0;
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+            }
+            int precision = random.nextInt(30) - 4;
+            int roundingMode = (i % 8 == 0) ? random.nextInt(7) : BigDecimal.ROUND_HALF_EVEN;
+            String expected;
+            try {
+                expected = Long.toString(Double.doubleToRawLongBits(
+                        new BigDecimal(Double.toString(value)).setScale(precision, roundingMode).doubleValue()));
+            } catch (ArithmeticException | NumberFormatException e) {
+                expected = e.getClass().getName();
+            }
+            String actual;
+            try {
+                actual = Long.toString(Double.doubleToRawLongBits(
+                        KAMathUtilities.roundTo(value, precision, roundingMode)));
+            } catch (ArithmeticException | NumberFormatException e) {
+                actual = e.getClass().getName();
+            }
+            assertEquals(value + " " + precision + " " + roundingMode, expected, actual);
+
+            double other = (i % 3 == 0) ? value + (random.nextDouble() - 0.5) * Math.pow(10, -random.nextInt(10))
+                    : Double.longBitsToDouble(Double.doubleToRawLongBits(value) + random.nextInt(1000) - 500);
+            int decimalNumbers = random.nextInt(30) - 5;
+            Double compareValue = Math.pow(10.0, -1.0 * decimalNumbers) - Math.pow(10.0, -1.0 * (decimalNumbers + 1))
+                    - Math.pow(10.0, -1.0 * (decimalNumbers + 2.0));
+            boolean equal = Math.abs(value - other) <= compareValue;
+            assertEquals(equal, KAMathUtilities.isEqual(value, other, decimalNumbers));
+            assertEquals(equal || (value > other), KAMathUtilities.isEqualOrGreater(value, other, decimalNumbers));
+            assertEquals(!equal && (value < other), KAMathUtilities.isLessThan(value, other, decimalNumbers));
+        }
+        assertEquals(2.68, KAMathUtilities.roundTo(2.675, 2), 0.0);
+        assertEquals(Double.doubleToRawLongBits(0.0), Double.doubleToRawLongBits(KAMathUtilities.roundTo(-0.001, 2)));
+        assertTrue(KAMathUtilities.doublesAreEqual(1.000001, 1.0));
+        assertFalse(KAMathUtilities.doublesAreEqual(1.00001, 1.0));
+        // the public methods take boxed values, mixed with primitives as well
+        Double boxed = 0.000001;
+        assertTrue(KAMathUtilities.doublesAreEqual(boxed, 0.0));
+        assertTrue(KAMathUtilities.doubleIsGreater(boxed, 0.0, 6));
+        assertFalse(KAMathUtilities.doubleIsGreater(boxed, Double.valueOf(0.0), 5));
+        assertEquals(0.0, KAMathUtilities.safeDiv(boxed, 0.0), 0.0);
+        assertFalse(KAMathUtilities.doubleIsInteger(null));
+    }
+
+
+
+
+
+
+
     
 }